@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Class that writes the masks produced by SAMJ as a COCO annotation file, with the segmentation of every
+ * object as COCO compressed RLE (column-major counts encoded as a string), its bounding box and its area.
+ *
+ * The row-major RLE of {@link Mask} is converted directly to the column-major counts of COCO, sweeping the
+ * columns of the bounding box of the object, so the binary mask of the object is never created.
+ * The file is written incrementally: {@link #append(List)} returns immediately and the masks are converted
+ * in parallel and written in a background thread, so it can be called from the {@code drawRoi} method of a
+ * batch callback and the export overlaps with the inference. The annotations keep the order in which the masks
+ * were appended. {@link #close()} waits until every mask is written and completes the file.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class CocoRleWriter implements Closeable {
+
+	private final long width;
+
+	private final long height;
+
+	private final int imageId;
+
+	private final int categoryId;
+
+	private final Writer writer;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "samj-coco-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private int nextId = 1;
+
+	private volatile IOException error;
+
+	private boolean closed = false;
+
+	/**
+	 * Create the COCO file and write the information of the image and of the only category
+	 * @param file
+	 * 	the json file that is created
+	 * @param imageName
+	 * 	name of the file of the image
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @throws IOException if there is any error creating the file
+	 */
+	public CocoRleWriter(File file, String imageName, long width, long height) throws IOException {
+		this(file, imageName, 1, width, height, "object", 1);
+	}
+
+	/**
+	 * Create the COCO file and write the information of the image and of the only category
+	 * @param file
+	 * 	the json file that is created
+	 * @param imageName
+	 * 	name of the file of the image
+	 * @param imageId
+	 * 	identifier of the image in the dataset
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param categoryName
+	 * 	name of the category of the objects
+	 * @param categoryId
+	 * 	identifier of the category of the objects
+	 * @throws IOException if there is any error creating the file
+	 */
+	public CocoRleWriter(File file, String imageName, int imageId, long width, long height, String categoryName, int categoryId)
+			throws IOException {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("The dimensions of the image should be positive.");
+		this.width = width;
+		this.height = height;
+		this.imageId = imageId;
+		this.categoryId = categoryId;
+		this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		writer.write("{" + System.lineSeparator());
+		writer.write("  \"images\": [{\"id\": " + imageId + ", \"file_name\": \"" + escape(imageName) + "\", "
+				+ "\"width\": " + width + ", \"height\": " + height + "}]," + System.lineSeparator());
+		writer.write("  \"categories\": [{\"id\": " + categoryId + ", \"name\": \"" + escape(categoryName) + "\"}]," + System.lineSeparator());
+		writer.write("  \"annotations\": [");
+	}
+
+	/**
+	 * Queue masks to be written. The method returns immediately, the conversion and the writing
+	 * are done in the background
+	 * @param masks
+	 * 	the masks
+	 * @throws IOException if the conversion or the writing of previous masks failed
+	 */
+	public synchronized void append(List<Mask> masks) throws IOException {
+		if (closed)
+			throw new IllegalStateException("The COCO writer has been closed.");
+		if (error != null)
+			throw error;
+		List<Mask> copy = new ArrayList<Mask>(masks);
+		int firstId = nextId;
+		nextId += copy.size();
+		executor.submit(() -> {
+			if (error != null)
+				return;
+			try {
+				List<String> annotations = copy.parallelStream().map(mm -> toAnnotation(mm))
+						.collect(Collectors.toList());
+				for (int i = 0; i < annotations.size(); i ++) {
+					writer.write(firstId + i == 1 ? System.lineSeparator() : "," + System.lineSeparator());
+					writer.write("    {\"id\": " + (firstId + i) + annotations.get(i));
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException("Error converting the masks to COCO annotations: " + e.getMessage(), e);
+			}
+		});
+	}
+
+	/**
+	 * Wait until all the masks are written and complete the file
+	 * @throws IOException if there is any error writing the file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+		}
+		try {
+			if (error != null)
+				throw error;
+			writer.write(System.lineSeparator() + "  ]" + System.lineSeparator() + "}" + System.lineSeparator());
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Annotation of a mask without the opening brace and the id
+	 */
+	private String toAnnotation(Mask mask) {
+		CompactMask compact = mask.toCompactMask(width);
+		String counts = compress(toColumnMajorCounts(compact, width, height));
+		return ", \"image_id\": " + imageId + ", \"category_id\": " + categoryId + ", "
+				+ "\"segmentation\": {\"size\": [" + height + ", " + width + "], \"counts\": \"" + escape(counts) + "\"}, "
+				+ "\"area\": " + compact.area() + ", "
+				+ "\"bbox\": [" + compact.getMinX() + ", " + compact.getMinY() + ", " + compact.getWidth() + ", " + compact.getHeight() + "], "
+				+ "\"iscrowd\": 0}";
+	}
+
+	/**
+	 * Convert the run-length encoding used by {@link Mask} into the uncompressed COCO RLE: alternating counts
+	 * of background and foreground pixels in column-major order, starting with the background
+	 * @param rle
+	 * 	RLE of the mask, pairs of [absolute start position, length] in row-major order
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @return the COCO counts
+	 */
+	public static long[] toColumnMajorCounts(long[] rle, long width, long height) {
+		return toColumnMajorCounts(CompactMask.fromRLE(rle, width), width, height);
+	}
+
+	/**
+	 * Sweep the columns of the bounding box. The rows covered by the current column only change at the columns
+	 * where a run starts or ends, so the vertical runs are recomputed only there
+	 */
+	private static long[] toColumnMajorCounts(CompactMask mask, long width, long height) {
+		Counts counts = new Counts();
+		if (!mask.isEmpty()) {
+			long[] rows = mask.toRLE(width);
+			int nRuns = rows.length / 2;
+			int minX = mask.getMinX();
+			int minY = mask.getMinY();
+			// events as (column << 32) | (run << 1) | start flag, sorted by column and then by run. The runs of a row
+			// are in raster order, so if a run ends in the column where the next one of the row starts, the end comes first
+			long[] events = new long[2 * nRuns];
+			int[] runRow = new int[nRuns];
+			for (int i = 0; i < nRuns; i ++) {
+				long y = rows[2 * i] / width;
+				long x = rows[2 * i] - y * width;
+				runRow[i] = (int) (y - minY);
+				events[2 * i] = ((x - minX) << 32) | ((long) i << 1) | 1;
+				events[2 * i + 1] = ((x + rows[2 * i + 1] - minX) << 32) | ((long) i << 1);
+			}
+			Arrays.sort(events);
+			boolean[] on = new boolean[mask.getHeight()];
+			int[] intervals = new int[mask.getHeight() + 1];
+			int nIntervals = 0;
+			int e = 0;
+			for (int c = 0; c < mask.getWidth(); c ++) {
+				boolean changed = false;
+				while (e < events.length && (events[e] >>> 32) == c) {
+					int run = (int) ((events[e] & 0xFFFFFFFFL) >>> 1);
+					on[runRow[run]] = (events[e] & 1) == 1;
+					changed = true;
+					e ++;
+				}
+				if (changed) {
+					nIntervals = 0;
+					for (int y = 0; y < on.length; y ++) {
+						if (on[y] && (y == 0 || !on[y - 1]))
+							intervals[nIntervals ++] = y;
+						if (on[y] && (y == on.length - 1 || !on[y + 1]))
+							intervals[nIntervals ++] = y + 1;
+					}
+				}
+				long column = (minX + c) * height + minY;
+				for (int i = 0; i < nIntervals; i += 2)
+					counts.addForeground(column + intervals[i], intervals[i + 1] - intervals[i]);
+			}
+		}
+		counts.finish(width * height);
+		return Arrays.copyOf(counts.values, counts.size);
+	}
+
+	/**
+	 * Compress COCO counts into the string format used by the COCO API: every count, minus the count two positions
+	 * before it after the third, is written as a signed variable-length number in groups of 5 bits, each
+	 * group stored as a character with an offset of 48
+	 * @param counts
+	 * 	the uncompressed COCO counts
+	 * @return the compressed counts
+	 */
+	public static String compress(long[] counts) {
+		StringBuilder sb = new StringBuilder(counts.length * 2);
+		for (int i = 0; i < counts.length; i ++) {
+			long x = counts[i];
+			if (i > 2)
+				x -= counts[i - 2];
+			boolean more = true;
+			while (more) {
+				int c = (int) (x & 0x1f);
+				x >>= 5;
+				more = (c & 0x10) != 0 ? x != -1 : x != 0;
+				if (more)
+					c |= 0x20;
+				sb.append((char) (c + 48));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String escape(String str) {
+		return str.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static class Counts {
+
+		private long[] values = new long[16];
+
+		private int size = 0;
+		/**
+		 * Position after the last foreground pixel added
+		 */
+		private long cursor = 0;
+
+		private void addForeground(long start, long length) {
+			if (size > 0 && start == cursor) {
+				values[size - 1] += length;
+			} else {
+				add(start - cursor);
+				add(length);
+			}
+			cursor = start + length;
+		}
+
+		private void finish(long total) {
+			if (total > cursor || size == 0)
+				add(total - cursor);
+		}
+
+		private void add(long value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size ++] = value;
+		}
+	}
+}
@@ -0,0 +1,586 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable and compact binary mask of an object. The mask is stored inside its bounding box, either
+ * as a row-indexed run-length encoding (int start and length of every run relative to the bounding box,
+ * plus the index of the first run of every row) or as a packed bitmap (one bit per pixel of the bounding box).
+ * The representation that needs less memory is chosen for each object when the mask is created.
+ *
+ * Union, intersection, difference, area and IoU are computed directly on the encoding, row by row,
+ * so the masks never have to be rasterized into a full image.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public final class CompactMask {
+
+	private static final CompactMask EMPTY = new CompactMask(0, 0, 0, 0, 0, 0, 0, new int[] {0}, new int[0], null);
+
+	private final int minX;
+
+	private final int minY;
+
+	private final int width;
+
+	private final int height;
+
+	private final long area;
+
+	private final int nRuns;
+
+	private final int maxRunsPerRow;
+	/**
+	 * For the RLE representation, the runs of row r are the pairs between
+	 * rowIndex[r] and rowIndex[r + 1]. Null for the bitmap representation
+	 */
+	private final int[] rowIndex;
+	/**
+	 * For the RLE representation, pairs of [x start relative to minX, length]
+	 */
+	private final int[] runs;
+	/**
+	 * For the bitmap representation, the bits of each row of the bounding box,
+	 * row-major, {@link #wordsPerRow} words per row
+	 */
+	private final long[] bits;
+
+	private final int wordsPerRow;
+
+	private CompactMask(int minX, int minY, int width, int height, long area, int nRuns, int maxRunsPerRow,
+			int[] rowIndex, int[] runs, long[] bits) {
+		this.minX = minX;
+		this.minY = minY;
+		this.width = width;
+		this.height = height;
+		this.area = area;
+		this.nRuns = nRuns;
+		this.maxRunsPerRow = maxRunsPerRow;
+		this.rowIndex = rowIndex;
+		this.runs = runs;
+		this.bits = bits;
+		this.wordsPerRow = (width + 63) >>> 6;
+	}
+
+	/**
+	 *
+	 * @return a mask without any pixel
+	 */
+	public static CompactMask empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Create a compact mask from the RLE used by {@link Mask}, where the runs are pairs of
+	 * [absolute start position, length] in an image stored row-major. The runs do not need to be sorted
+	 * and can span several rows.
+	 * @param rle
+	 * 	the run-length encoding of the mask
+	 * @param imageWidth
+	 * 	width of the image the RLE refers to
+	 * @return the compact mask
+	 */
+	public static CompactMask fromRLE(long[] rle, long imageWidth) {
+		if (rle.length % 2 != 0)
+			throw new IllegalArgumentException("The RLE should contain pairs of start and length.");
+		if (imageWidth <= 0)
+			throw new IllegalArgumentException("The width of the image should be positive.");
+		int n = rle.length / 2;
+		// split the runs at the end of the rows, the pieces are out of order only if the runs overlap
+		long[] starts = new long[Math.max(n, 4)];
+		long[] ends = new long[Math.max(n, 4)];
+		int nPieces = 0;
+		boolean sorted = true;
+		for (int i = 0; i < n; i ++) {
+			long start = rle[2 * i];
+			long end = start + rle[2 * i + 1];
+			while (start < end) {
+				long rowEnd = Math.min(end, (start / imageWidth + 1) * imageWidth);
+				if (nPieces == starts.length) {
+					starts = Arrays.copyOf(starts, 2 * nPieces);
+					ends = Arrays.copyOf(ends, 2 * nPieces);
+				}
+				sorted = sorted && (nPieces == 0 || starts[nPieces - 1] <= start);
+				starts[nPieces] = start;
+				ends[nPieces ++] = rowEnd;
+				start = rowEnd;
+			}
+		}
+		int[] order = null;
+		if (!sorted) {
+			long[] sortStarts = starts;
+			order = IntStream.range(0, nPieces).boxed()
+				.sorted((a, b) -> Long.compare(sortStarts[a], sortStarts[b])).mapToInt(Integer::intValue).toArray();
+		}
+		RunList list = new RunList(nPieces);
+		for (int i = 0; i < nPieces; i ++) {
+			int ii = order == null ? i : order[i];
+			long y = starts[ii] / imageWidth;
+			list.add((int) y, (int) (starts[ii] - y * imageWidth), (int) (ends[ii] - y * imageWidth));
+		}
+		return build(list);
+	}
+
+	/**
+	 * Create a compact mask from a {@link Mask}
+	 * @param mask
+	 * 	the mask
+	 * @param imageWidth
+	 * 	width of the image the mask refers to
+	 * @return the compact mask
+	 */
+	public static CompactMask fromMask(Mask mask, long imageWidth) {
+		return fromRLE(mask.getRLEMask(), imageWidth);
+	}
+
+	private static CompactMask build(RunList list) {
+		int n = list.size;
+		if (n == 0)
+			return EMPTY;
+		int minY = list.ys[0];
+		int maxY = list.ys[n - 1];
+		int minX = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		long area = 0;
+		int maxRunsPerRow = 0;
+		int runsInRow = 0;
+		for (int i = 0; i < n; i ++) {
+			minX = Math.min(minX, list.xs[i]);
+			maxX = Math.max(maxX, list.xe[i]);
+			area += list.xe[i] - list.xs[i];
+			runsInRow = (i > 0 && list.ys[i] == list.ys[i - 1]) ? runsInRow + 1 : 1;
+			maxRunsPerRow = Math.max(maxRunsPerRow, runsInRow);
+		}
+		int width = maxX - minX;
+		int height = maxY - minY + 1;
+		long wordsPerRow = (width + 63) >>> 6;
+		long rleBytes = 8L * n + 4L * (height + 1);
+		long bitmapBytes = 8L * wordsPerRow * height;
+		if (bitmapBytes < rleBytes) {
+			long[] bits = new long[(int) (wordsPerRow * height)];
+			for (int i = 0; i < n; i ++)
+				setBits(bits, (int) ((list.ys[i] - minY) * wordsPerRow), list.xs[i] - minX, list.xe[i] - minX);
+			return new CompactMask(minX, minY, width, height, area, n, maxRunsPerRow, null, null, bits);
+		}
+		int[] rowIndex = new int[height + 1];
+		int[] runs = new int[2 * n];
+		for (int i = 0; i < n; i ++) {
+			rowIndex[list.ys[i] - minY + 1] ++;
+			runs[2 * i] = list.xs[i] - minX;
+			runs[2 * i + 1] = list.xe[i] - list.xs[i];
+		}
+		for (int r = 0; r < height; r ++)
+			rowIndex[r + 1] += rowIndex[r];
+		return new CompactMask(minX, minY, width, height, area, n, maxRunsPerRow, rowIndex, runs, null);
+	}
+
+	private static void setBits(long[] bits, int base, int from, int to) {
+		int startWord = base + (from >>> 6);
+		int endWord = base + ((to - 1) >>> 6);
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (startWord == endWord) {
+			bits[startWord] |= firstMask & lastMask;
+			return;
+		}
+		bits[startWord] |= firstMask;
+		for (int w = startWord + 1; w < endWord; w ++)
+			bits[w] = -1L;
+		bits[endWord] |= lastMask;
+	}
+
+	/**
+	 * Write the runs of a row of the image in the buffer as pairs of [absolute x start, absolute x end (exclusive)]
+	 * @param y
+	 * 	the row of the image
+	 * @param buffer
+	 * 	buffer of size at least 2 * {@link #maxRunsPerRow}
+	 * @return the number of runs in the row
+	 */
+	private int rowRuns(int y, int[] buffer) {
+		int r = y - minY;
+		if (r < 0 || r >= height)
+			return 0;
+		if (bits == null) {
+			int k = 0;
+			for (int i = rowIndex[r]; i < rowIndex[r + 1]; i ++) {
+				buffer[k ++] = minX + runs[2 * i];
+				buffer[k ++] = minX + runs[2 * i] + runs[2 * i + 1];
+			}
+			return k / 2;
+		}
+		int base = r * wordsPerRow;
+		int k = 0;
+		int x = nextSetBit(base, 0);
+		while (x >= 0) {
+			int end = nextClearBit(base, x);
+			buffer[k ++] = minX + x;
+			buffer[k ++] = minX + end;
+			x = end < width ? nextSetBit(base, end) : -1;
+		}
+		return k / 2;
+	}
+
+	private int nextSetBit(int base, int from) {
+		int u = from >>> 6;
+		if (u >= wordsPerRow)
+			return -1;
+		long word = bits[base + u] & (-1L << from);
+		while (true) {
+			if (word != 0)
+				return u * 64 + Long.numberOfTrailingZeros(word);
+			if (++ u == wordsPerRow)
+				return -1;
+			word = bits[base + u];
+		}
+	}
+
+	private int nextClearBit(int base, int from) {
+		int u = from >>> 6;
+		if (u >= wordsPerRow)
+			return width;
+		long word = ~bits[base + u] & (-1L << from);
+		while (true) {
+			if (word != 0)
+				return Math.min(u * 64 + Long.numberOfTrailingZeros(word), width);
+			if (++ u == wordsPerRow)
+				return width;
+			word = ~bits[base + u];
+		}
+	}
+
+	/**
+	 * Union of this mask and another one
+	 * @param other
+	 * 	the other mask
+	 * @return a new mask with the pixels that are in any of the two masks
+	 */
+	public CompactMask union(CompactMask other) {
+		if (other.isEmpty())
+			return this;
+		else if (isEmpty())
+			return other;
+		int[] a = new int[2 * maxRunsPerRow];
+		int[] b = new int[2 * other.maxRunsPerRow];
+		RunList out = new RunList(nRuns + other.nRuns);
+		int y1 = Math.max(minY + height, other.minY + other.height);
+		for (int y = Math.min(minY, other.minY); y < y1; y ++) {
+			int na = rowRuns(y, a);
+			int nb = other.rowRuns(y, b);
+			int i = 0;
+			int j = 0;
+			while (i < na || j < nb) {
+				if (j >= nb || (i < na && a[2 * i] <= b[2 * j])) {
+					out.add(y, a[2 * i], a[2 * i + 1]);
+					i ++;
+				} else {
+					out.add(y, b[2 * j], b[2 * j + 1]);
+					j ++;
+				}
+			}
+		}
+		return build(out);
+	}
+
+	/**
+	 * Intersection of this mask and another one
+	 * @param other
+	 * 	the other mask
+	 * @return a new mask with the pixels that are in both masks
+	 */
+	public CompactMask intersection(CompactMask other) {
+		if (!boundsIntersect(other))
+			return EMPTY;
+		int[] a = new int[2 * maxRunsPerRow];
+		int[] b = new int[2 * other.maxRunsPerRow];
+		RunList out = new RunList(Math.min(nRuns, other.nRuns));
+		int y1 = Math.min(minY + height, other.minY + other.height);
+		for (int y = Math.max(minY, other.minY); y < y1; y ++) {
+			int na = rowRuns(y, a);
+			int nb = other.rowRuns(y, b);
+			int i = 0;
+			int j = 0;
+			while (i < na && j < nb) {
+				int start = Math.max(a[2 * i], b[2 * j]);
+				int end = Math.min(a[2 * i + 1], b[2 * j + 1]);
+				if (start < end)
+					out.add(y, start, end);
+				if (a[2 * i + 1] < b[2 * j + 1])
+					i ++;
+				else
+					j ++;
+			}
+		}
+		return build(out);
+	}
+
+	/**
+	 * Difference between this mask and another one
+	 * @param other
+	 * 	the mask whose pixels are removed
+	 * @return a new mask with the pixels of this mask that are not in the other one
+	 */
+	public CompactMask difference(CompactMask other) {
+		if (!boundsIntersect(other))
+			return this;
+		int[] a = new int[2 * maxRunsPerRow];
+		int[] b = new int[2 * other.maxRunsPerRow];
+		RunList out = new RunList(nRuns + other.nRuns);
+		for (int y = minY; y < minY + height; y ++) {
+			int na = rowRuns(y, a);
+			int nb = other.rowRuns(y, b);
+			int j = 0;
+			for (int i = 0; i < na; i ++) {
+				int cur = a[2 * i];
+				int end = a[2 * i + 1];
+				while (j < nb && b[2 * j + 1] <= cur)
+					j ++;
+				for (int k = j; k < nb && b[2 * k] < end; k ++) {
+					if (b[2 * k] > cur)
+						out.add(y, cur, b[2 * k]);
+					cur = Math.max(cur, b[2 * k + 1]);
+				}
+				if (cur < end)
+					out.add(y, cur, end);
+			}
+		}
+		return build(out);
+	}
+
+	/**
+	 * Number of pixels that are in both masks, computed without creating the intersection
+	 * @param other
+	 * 	the other mask
+	 * @return the area of the intersection
+	 */
+	public long intersectionArea(CompactMask other) {
+		if (!boundsIntersect(other))
+			return 0;
+		int[] a = new int[2 * maxRunsPerRow];
+		int[] b = new int[2 * other.maxRunsPerRow];
+		long inter = 0;
+		int y1 = Math.min(minY + height, other.minY + other.height);
+		for (int y = Math.max(minY, other.minY); y < y1; y ++) {
+			int na = rowRuns(y, a);
+			int nb = other.rowRuns(y, b);
+			int i = 0;
+			int j = 0;
+			while (i < na && j < nb) {
+				inter += Math.max(0, Math.min(a[2 * i + 1], b[2 * j + 1]) - Math.max(a[2 * i], b[2 * j]));
+				if (a[2 * i + 1] < b[2 * j + 1])
+					i ++;
+				else
+					j ++;
+			}
+		}
+		return inter;
+	}
+
+	/**
+	 * Intersection over union of this mask and another one
+	 * @param other
+	 * 	the other mask
+	 * @return the IoU, 0 if both masks are empty
+	 */
+	public double iou(CompactMask other) {
+		long inter = intersectionArea(other);
+		long union = area + other.area - inter;
+		return union == 0 ? 0 : inter / (double) union;
+	}
+
+	/**
+	 *
+	 * @param x
+	 * 	x position in the image
+	 * @param y
+	 * 	y position in the image
+	 * @return whether the pixel belongs to the mask
+	 */
+	public boolean contains(int x, int y) {
+		int r = y - minY;
+		int c = x - minX;
+		if (r < 0 || r >= height || c < 0 || c >= width)
+			return false;
+		if (bits != null)
+			return (bits[r * wordsPerRow + (c >>> 6)] & (1L << c)) != 0;
+		for (int i = rowIndex[r]; i < rowIndex[r + 1] && runs[2 * i] <= c; i ++) {
+			if (c < runs[2 * i] + runs[2 * i + 1])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Convert the mask into the RLE used by {@link Mask}, pairs of [absolute start position, length]
+	 * sorted in raster order. A row can have several runs, but no run continues into the next row
+	 * @param imageWidth
+	 * 	width of the image
+	 * @return the run-length encoding of the mask
+	 */
+	public long[] toRLE(long imageWidth) {
+		long[] rle = new long[2 * nRuns];
+		int[] buffer = new int[2 * maxRunsPerRow];
+		int k = 0;
+		for (int y = minY; y < minY + height; y ++) {
+			int nr = rowRuns(y, buffer);
+			for (int i = 0; i < nr; i ++) {
+				rle[k ++] = buffer[2 * i] + y * imageWidth;
+				rle[k ++] = buffer[2 * i + 1] - buffer[2 * i];
+			}
+		}
+		return rle;
+	}
+
+	private boolean boundsIntersect(CompactMask other) {
+		return !isEmpty() && !other.isEmpty()
+				&& minX < other.minX + other.width && other.minX < minX + width
+				&& minY < other.minY + other.height && other.minY < minY + height;
+	}
+
+	/**
+	 *
+	 * @return whether the mask does not contain any pixel
+	 */
+	public boolean isEmpty() {
+		return area == 0;
+	}
+
+	/**
+	 *
+	 * @return number of pixels of the mask
+	 */
+	public long area() {
+		return area;
+	}
+
+	/**
+	 *
+	 * @return smallest x of the bounding box of the mask
+	 */
+	public int getMinX() {
+		return minX;
+	}
+
+	/**
+	 *
+	 * @return smallest y of the bounding box of the mask
+	 */
+	public int getMinY() {
+		return minY;
+	}
+
+	/**
+	 *
+	 * @return width of the bounding box of the mask
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 *
+	 * @return height of the bounding box of the mask
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 *
+	 * @return number of runs of the mask, a row can have several of them
+	 */
+	public int getNumberOfRuns() {
+		return nRuns;
+	}
+
+	/**
+	 *
+	 * @return whether the mask is stored as a packed bitmap or as a run-length encoding
+	 */
+	public boolean isBitmap() {
+		return bits != null;
+	}
+
+	/**
+	 *
+	 * @return approximate number of bytes used by the encoding of the mask
+	 */
+	public long sizeInBytes() {
+		if (bits != null)
+			return 8L * bits.length;
+		return 4L * (rowIndex.length + runs.length);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CompactMask))
+			return false;
+		CompactMask other = (CompactMask) obj;
+		if (area != other.area || nRuns != other.nRuns || minX != other.minX || minY != other.minY
+				|| width != other.width || height != other.height)
+			return false;
+		return Arrays.equals(toRLE(width + (long) minX), other.toRLE(width + (long) minX));
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(new long[] {minX, minY, width, height, area, nRuns});
+	}
+
+	/**
+	 * Growable list of runs, added in raster order. Runs that overlap or touch the previous run
+	 * of the same row are merged with it
+	 */
+	private static class RunList {
+
+		private int[] ys;
+		private int[] xs;
+		private int[] xe;
+		private int size = 0;
+
+		private RunList(int capacity) {
+			capacity = Math.max(capacity, 4);
+			ys = new int[capacity];
+			xs = new int[capacity];
+			xe = new int[capacity];
+		}
+
+		private void add(int y, int start, int end) {
+			if (size > 0 && ys[size - 1] == y && start <= xe[size - 1]) {
+				xe[size - 1] = Math.max(xe[size - 1], end);
+				return;
+			}
+			if (size == ys.length) {
+				int capacity = size + (size >> 1) + 1;
+				ys = Arrays.copyOf(ys, capacity);
+				xs = Arrays.copyOf(xs, capacity);
+				xe = Arrays.copyOf(xe, capacity);
+			}
+			ys[size] = y;
+			xs[size] = start;
+			xe[size ++] = end;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+
+/**
+ * Class that renders the masks of the objects annotated in an image into a label image stored in cells (tiles).
+ * Contrary to {@link Mask#getMask(long, long, List)}, the label image can have more than 2^31 pixels and the
+ * data type of the labels can be chosen, so more than 32767 objects can be rendered.
+ *
+ * The runs of the RLE of every mask are first distributed among the cells they cover, and then every cell
+ * is filled in parallel, so only the tiles touched by the masks are written.
+ * Pixels covered by several masks get the label of the last one.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class LabelRenderer {
+
+	/**
+	 * Default size of the side of each of the cells of the label image
+	 */
+	public static final int DEFAULT_CELL_SIZE = 512;
+
+	/**
+	 * Render the masks into a label image with cells of {@link #DEFAULT_CELL_SIZE}.
+	 * The pixels of the i-th mask get the label i + 1.
+	 * @param <T>
+	 * 	the integer type of the labels
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	all the masks of the objects of the image
+	 * @param type
+	 * 	instance of the type of the labels
+	 * @return the label image with axes "xy"
+	 */
+	public static <T extends IntegerType<T> & NativeType<T>>
+	CellImg<T, ?> render(long width, long height, List<Mask> masks, T type) {
+		return render(width, height, masks, type, new int[] {DEFAULT_CELL_SIZE, DEFAULT_CELL_SIZE});
+	}
+
+	/**
+	 * Render the masks into a label image. The pixels of the i-th mask get the label i + 1.
+	 * @param <T>
+	 * 	the integer type of the labels
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	all the masks of the objects of the image
+	 * @param type
+	 * 	instance of the type of the labels
+	 * @param cellSize
+	 * 	size of the cells of the label image, [width, height]
+	 * @return the label image with axes "xy"
+	 */
+	public static <T extends IntegerType<T> & NativeType<T>>
+	CellImg<T, ?> render(long width, long height, List<Mask> masks, T type, int[] cellSize) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("The dimensions of the image should be positive.");
+		if (cellSize.length != 2 || cellSize[0] <= 0 || cellSize[1] <= 0)
+			throw new IllegalArgumentException("The size of the cells should be two positive integers: [width, height].");
+		if (masks.size() > type.getMaxValue())
+			throw new IllegalArgumentException("The label type cannot represent " + masks.size()
+				+ " objects, its maximum value is " + (long) type.getMaxValue() + ".");
+		CellImg<T, ?> labels = new CellImgFactory<T>(type, cellSize).create(width, height);
+		Buckets buckets = distributeRuns(width, height, masks, cellSize);
+		IntStream.range(0, buckets.nCells).parallel().filter(cc -> buckets.sizes[cc] > 0).forEach(cc -> {
+			RandomAccess<T> ra = labels.randomAccess();
+			long x0 = (cc % buckets.cellsX) * (long) cellSize[0];
+			long y0 = (cc / buckets.cellsX) * (long) cellSize[1];
+			int[] entries = buckets.entries[cc];
+			for (int i = 0; i < buckets.sizes[cc]; i += 4) {
+				ra.setPosition(x0 + entries[i], 0);
+				ra.setPosition(y0 + entries[i + 1], 1);
+				long label = entries[i + 3] + 1L;
+				for (int k = 0; k < entries[i + 2]; k ++) {
+					ra.get().setInteger(label);
+					ra.fwd(0);
+				}
+			}
+		});
+		return labels;
+	}
+
+	/**
+	 * Split the runs of every mask by row and by cell and group them per cell, keeping the order of the masks.
+	 * Each run is stored as 4 ints: x and y relative to the cell, length and index of the mask
+	 */
+	static Buckets distributeRuns(long width, long height, List<Mask> masks, int[] cellSize) {
+		long cellsX = (width + cellSize[0] - 1) / cellSize[0];
+		long cellsY = (height + cellSize[1] - 1) / cellSize[1];
+		if (cellsX * cellsY > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many cells, use bigger cells for an image of " + width + "x" + height + ".");
+		Buckets buckets = new Buckets((int) cellsX, (int) (cellsX * cellsY));
+		int n = 0;
+		for (Mask mask : masks) {
+			long[] rle = mask.getRLEMask();
+			for (int i = 0; i < rle.length; i += 2) {
+				long start = rle[i];
+				long len = rle[i + 1];
+				if (start < 0 || start + len > width * height)
+					throw new IllegalArgumentException("The mask number " + n + " does not fit in an image of " + width + "x" + height + ".");
+				while (len > 0) {
+					long y = start / width;
+					long x = start - y * width;
+					long rowLen = Math.min(len, width - x);
+					long cy = y / cellSize[1];
+					int yInCell = (int) (y - cy * cellSize[1]);
+					long end = x + rowLen;
+					while (x < end) {
+						long cx = x / cellSize[0];
+						long pieceEnd = Math.min(end, (cx + 1) * cellSize[0]);
+						buckets.add((int) (cy * cellsX + cx), (int) (x - cx * cellSize[0]), yInCell, (int) (pieceEnd - x), n);
+						x = pieceEnd;
+					}
+					start += rowLen;
+					len -= rowLen;
+				}
+			}
+			n ++;
+		}
+		return buckets;
+	}
+
+	static class Buckets {
+
+		final int cellsX;
+		final int nCells;
+		final int[][] entries;
+		final int[] sizes;
+
+		private Buckets(int cellsX, int nCells) {
+			this.cellsX = cellsX;
+			this.nCells = nCells;
+			this.entries = new int[nCells][];
+			this.sizes = new int[nCells];
+		}
+
+		private void add(int cell, int x, int y, int len, int label) {
+			int[] arr = entries[cell];
+			if (arr == null) {
+				arr = new int[64];
+				entries[cell] = arr;
+			} else if (sizes[cell] + 4 > arr.length) {
+				arr = Arrays.copyOf(arr, arr.length * 2);
+				entries[cell] = arr;
+			}
+			int s = sizes[cell];
+			arr[s] = x;
+			arr[s + 1] = y;
+			arr[s + 2] = len;
+			arr[s + 3] = label;
+			sizes[cell] = s + 4;
+		}
+	}
+}
@@ -57,6 +57,25 @@ public class Mask {
 		return this.rleEncoding;
 	}
 	
+	/**
+	 * Convert the mask into an immutable {@link CompactMask} that supports set operations directly on the encoding
+	 * @param imageWidth
+	 * 	width of the image the mask refers to
+	 * @return the compact mask
+	 */
+	public CompactMask toCompactMask(long imageWidth) {
+		return CompactMask.fromRLE(rleEncoding, imageWidth);
+	}
+	
+	/**
+	 * 
+	 * @return a deep copy of the mask, that does not share the contour nor the RLE array with this one
+	 */
+	public Mask copy() {
+		Polygon copy = new Polygon(contour.xpoints.clone(), contour.ypoints.clone(), contour.npoints);
+		return new Mask(copy, rleEncoding.clone());
+	}
+	
 	/**
 	 * Mehtod that creates an annotation mask from several object masks in an efficient manner using RLE algorithm
 	 * @param width
@@ -66,6 +85,7 @@ public class Mask {
 	 * @param masks
 	 * 	all the masks of the objects image
 	 * @return the whole mask with all the objects
+	 * @see LabelRenderer for images bigger than 2^31 pixels or with more than 32767 objects
 	 */
 	public static RandomAccessibleInterval<UnsignedShortType> getMask(long width, long height, List<Mask> masks) {
 		short[] arr = new short[(int) (width * height)];
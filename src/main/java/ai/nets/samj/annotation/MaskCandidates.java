@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class that contains all the candidate masks produced by the model for an ambiguous prompt,
+ * together with the IoU predicted by the model for each of them.
+ * The candidates are sorted from the highest predicted IoU to the lowest, so switching between them
+ * does not require calling the model again.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class MaskCandidates {
+
+	private final List<List<Mask>> candidates;
+
+	private final double[] ious;
+
+	private MaskCandidates(List<List<Mask>> candidates, double[] ious) {
+		this.candidates = candidates;
+		this.ious = ious;
+	}
+
+	/**
+	 * Create the group of candidates
+	 * @param candidates
+	 * 	list of candidates, each of them is the list of masks that form the candidate, sorted by decreasing IoU
+	 * @param ious
+	 * 	the IoU predicted by the model for each candidate
+	 * @return the group of candidates
+	 */
+	public static MaskCandidates build(List<List<Mask>> candidates, double[] ious) {
+		if (candidates.size() != ious.length)
+			throw new IllegalArgumentException("There should be one IoU score per candidate: "
+					+ candidates.size() + " candidates and " + ious.length + " scores.");
+		List<List<Mask>> copy = new ArrayList<List<Mask>>(candidates.size());
+		for (List<Mask> cc : candidates)
+			copy.add(Collections.unmodifiableList(new ArrayList<Mask>(cc)));
+		return new MaskCandidates(Collections.unmodifiableList(copy), ious.clone());
+	}
+
+	/**
+	 *
+	 * @return the number of candidates
+	 */
+	public int size() {
+		return candidates.size();
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 	position of the candidate, 0 is the one with the highest predicted IoU
+	 * @return the masks that form the candidate
+	 */
+	public List<Mask> getCandidate(int i) {
+		return candidates.get(i);
+	}
+
+	/**
+	 *
+	 * @param i
+	 * 	position of the candidate, 0 is the one with the highest predicted IoU
+	 * @return the IoU predicted by the model for the candidate
+	 */
+	public double getIoU(int i) {
+		return ious[i];
+	}
+
+	/**
+	 *
+	 * @return the masks of the candidate with the highest predicted IoU, an empty list if there are no candidates
+	 */
+	public List<Mask> getBest() {
+		if (candidates.size() == 0)
+			return Collections.emptyList();
+		return candidates.get(0);
+	}
+
+	/**
+	 *
+	 * @return all the candidates, sorted by decreasing predicted IoU
+	 */
+	public List<List<Mask>> getCandidates() {
+		return candidates;
+	}
+}
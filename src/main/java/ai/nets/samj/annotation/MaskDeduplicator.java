@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import ai.nets.samj.annotation.MaskIndex.Box;
+import ai.nets.samj.annotation.MaskIndex.Entry;
+
+/**
+ * Class that removes the duplicated masks produced when several prompts of a batch segment the same object.
+ * A mask is a duplicate if its IoU with a mask already accepted is bigger than the threshold. The first mask
+ * of an object is kept, so the masks already drawn never have to be modified.
+ *
+ * The masks are given group by group, as they are produced. The accepted masks are kept in a {@link MaskIndex},
+ * so only the pairs whose bounding boxes overlap are compared, and the IoU of every new mask against the accepted
+ * ones is computed in parallel on the {@link CompactMask} encoding.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class MaskDeduplicator {
+
+	private final long imageWidth;
+
+	private final double iouThreshold;
+
+	private final MaskIndex accepted;
+
+	/**
+	 * Create a deduplicator without any accepted mask
+	 * @param imageWidth
+	 * 	width of the image the masks refer to
+	 * @param iouThreshold
+	 * 	masks whose IoU with an accepted mask is bigger than this value are suppressed. Between 0 and 1
+	 */
+	public MaskDeduplicator(long imageWidth, double iouThreshold) {
+		if (iouThreshold < 0 || iouThreshold > 1)
+			throw new IllegalArgumentException("The IoU threshold should be between 0 and 1.");
+		this.imageWidth = imageWidth;
+		this.iouThreshold = iouThreshold;
+		this.accepted = new MaskIndex(imageWidth);
+	}
+
+	/**
+	 * Filter a group of new masks. The masks that are not duplicates are accepted and will be used to filter
+	 * the next groups
+	 * @param masks
+	 * 	the new masks, in the order they were produced
+	 * @return the masks of the group that are not duplicates, in the same order
+	 */
+	public synchronized List<Mask> filter(List<Mask> masks) {
+		List<CompactMask> compacts = masks.parallelStream().map(mm -> mm.toCompactMask(imageWidth)).collect(Collectors.toList());
+		boolean[] duplicated = new boolean[masks.size()];
+		IntStream.range(0, masks.size()).parallel()
+			.forEach(i -> duplicated[i] = overlapsAccepted(accepted, compacts.get(i)));
+		MaskIndex group = new MaskIndex(imageWidth);
+		List<Mask> kept = new ArrayList<Mask>();
+		for (int i = 0; i < masks.size(); i ++) {
+			if (duplicated[i] || compacts.get(i).isEmpty() || overlapsAccepted(group, compacts.get(i)))
+				continue;
+			group.add(masks.get(i), compacts.get(i));
+			accepted.add(masks.get(i), compacts.get(i));
+			kept.add(masks.get(i));
+		}
+		return kept;
+	}
+
+	/**
+	 *
+	 * @return the number of masks accepted so far
+	 */
+	public int getNumberOfAccepted() {
+		return accepted.size();
+	}
+
+	private boolean overlapsAccepted(MaskIndex index, CompactMask compact) {
+		if (compact.isEmpty())
+			return false;
+		Box box = new Box(compact.getMinX(), compact.getMinY(),
+				compact.getMinX() + compact.getWidth() - 1, compact.getMinY() + compact.getHeight() - 1);
+		for (Entry ee : index.getEntriesIntersecting(box)) {
+			if (ee.compact.iou(compact) > iouThreshold)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,516 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Spatial index over the masks annotated in an image, to find the objects under a point or overlapping
+ * a rectangle without scanning all of them.
+ *
+ * The bounding boxes of the masks are kept in an R-tree (quadratic split) that grows incrementally as the masks
+ * are added, so the candidates of a query are found in logarithmic time. The candidates are then checked against
+ * the exact mask, stored as a {@link CompactMask}, so only the objects that really contain the point or have
+ * pixels inside the rectangle are returned. The results keep the order in which the masks were added.
+ *
+ * The index is thread safe: masks can be added from the thread that receives the results of the model
+ * while the GUI queries it. The index only knows the masks given to it, so whoever owns the annotations has
+ * to add the new ones and remove the deleted ones to keep it up to date.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class MaskIndex {
+
+	private static final int MAX_ENTRIES = 16;
+
+	private static final int MIN_ENTRIES = 6;
+
+	private final long imageWidth;
+
+	private Node root = new Node(true);
+
+	private int size;
+
+	private long nextOrder;
+
+	/**
+	 * Create an empty index
+	 * @param imageWidth
+	 * 	width of the image the masks refer to, needed to decode their RLE
+	 */
+	public MaskIndex(long imageWidth) {
+		if (imageWidth <= 0)
+			throw new IllegalArgumentException("The width of the image should be positive.");
+		this.imageWidth = imageWidth;
+	}
+
+	/**
+	 * Add a mask to the index. Empty masks are ignored
+	 * @param mask
+	 * 	the mask
+	 */
+	public void add(Mask mask) {
+		CompactMask compact = mask.toCompactMask(imageWidth);
+		synchronized (this) {
+			insert(mask, compact);
+		}
+	}
+
+	/**
+	 * Add a mask whose compact representation has already been computed
+	 */
+	synchronized void add(Mask mask, CompactMask compact) {
+		insert(mask, compact);
+	}
+
+	/**
+	 * Add several masks to the index, for example every group of masks delivered by
+	 * the batch callback. The masks are decoded in parallel before being inserted
+	 * @param masks
+	 * 	the masks
+	 */
+	public void addAll(List<Mask> masks) {
+		List<CompactMask> compacts = masks.parallelStream().map(mm -> mm.toCompactMask(imageWidth)).collect(Collectors.toList());
+		synchronized (this) {
+			for (int i = 0; i < masks.size(); i ++)
+				insert(masks.get(i), compacts.get(i));
+		}
+	}
+
+	/**
+	 * Remove a mask from the index
+	 * @param mask
+	 * 	the same instance that was added
+	 * @return whether the mask was in the index
+	 */
+	public boolean remove(Mask mask) {
+		CompactMask compact = mask.toCompactMask(imageWidth);
+		if (compact.isEmpty())
+			return false;
+		Box box = new Entry(mask, compact, 0);
+		synchronized (this) {
+			List<Entry> orphans = new ArrayList<Entry>();
+			if (!remove(root, mask, box, orphans))
+				return false;
+			if (!root.leaf && root.n == 0)
+				root = new Node(true);
+			else if (!root.leaf && root.n == 1)
+				root = (Node) root.children[0];
+			for (Entry ee : orphans)
+				insert(ee);
+			size --;
+			return true;
+		}
+	}
+
+	/**
+	 * Find the masks that contain a pixel
+	 * @param x
+	 * 	x position in the image
+	 * @param y
+	 * 	y position in the image
+	 * @return the masks that contain the pixel, in the order they were added
+	 */
+	public synchronized List<Mask> getMasksAt(int x, int y) {
+		List<Entry> hits = new ArrayList<Entry>();
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		while (stack.size() > 0) {
+			Node node = stack.remove(stack.size() - 1);
+			for (int i = 0; i < node.n; i ++) {
+				Box child = node.children[i];
+				if (!child.contains(x, y))
+					continue;
+				if (!node.leaf)
+					stack.add((Node) child);
+				else if (((Entry) child).compact.contains(x, y))
+					hits.add((Entry) child);
+			}
+		}
+		return toMasks(hits);
+	}
+
+	/**
+	 * Find the masks that have at least one pixel inside a rectangle
+	 * @param rect
+	 * 	the rectangle, in image coordinates
+	 * @return the masks that overlap the rectangle, in the order they were added
+	 */
+	public List<Mask> getMasksIntersecting(Rectangle rect) {
+		if (rect.isEmpty())
+			return new ArrayList<Mask>();
+		Box query = new Box(rect.x, rect.y, rect.x + rect.width - 1, rect.y + rect.height - 1);
+		List<Entry> candidates;
+		synchronized (this) {
+			candidates = getEntriesIntersecting(query);
+		}
+		CompactMask rectMask = null;
+		List<Entry> hits = new ArrayList<Entry>();
+		for (Entry ee : candidates) {
+			if (query.contains(ee)) {
+				hits.add(ee);
+				continue;
+			}
+			if (rectMask == null)
+				rectMask = rectangleMask(query);
+			if (ee.compact.intersectionArea(rectMask) > 0)
+				hits.add(ee);
+		}
+		return toMasks(hits);
+	}
+
+	/**
+	 *
+	 * @return the number of masks in the index
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all the masks from the index
+	 */
+	public synchronized void clear() {
+		root = new Node(true);
+		size = 0;
+	}
+
+	/**
+	 *
+	 * @return the width of the image the masks refer to
+	 */
+	public long getImageWidth() {
+		return imageWidth;
+	}
+
+	/**
+	 * Entries whose bounding box intersects the query box, in no particular order
+	 */
+	synchronized List<Entry> getEntriesIntersecting(Box query) {
+		List<Entry> found = new ArrayList<Entry>();
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		while (stack.size() > 0) {
+			Node node = stack.remove(stack.size() - 1);
+			for (int i = 0; i < node.n; i ++) {
+				Box child = node.children[i];
+				if (!child.intersects(query))
+					continue;
+				if (node.leaf)
+					found.add((Entry) child);
+				else
+					stack.add((Node) child);
+			}
+		}
+		return found;
+	}
+
+	private CompactMask rectangleMask(Box query) {
+		int x0 = Math.max(0, query.minX);
+		int y0 = Math.max(0, query.minY);
+		int x1 = (int) Math.min(imageWidth - 1, query.maxX);
+		if (x1 < x0 || query.maxY < y0)
+			return CompactMask.empty();
+		long[] rle = new long[2 * (query.maxY - y0 + 1)];
+		for (int y = y0; y <= query.maxY; y ++) {
+			rle[2 * (y - y0)] = x0 + y * imageWidth;
+			rle[2 * (y - y0) + 1] = x1 - x0 + 1;
+		}
+		return CompactMask.fromRLE(rle, imageWidth);
+	}
+
+	private static List<Mask> toMasks(List<Entry> entries) {
+		Collections.sort(entries, (a, b) -> Long.compare(a.order, b.order));
+		return entries.stream().map(ee -> ee.mask).collect(Collectors.toList());
+	}
+
+	private void insert(Mask mask, CompactMask compact) {
+		if (compact.isEmpty())
+			return;
+		insert(new Entry(mask, compact, nextOrder ++));
+		size ++;
+	}
+
+	private void insert(Entry entry) {
+		Node sibling = insert(root, entry);
+		if (sibling != null) {
+			Node newRoot = new Node(false);
+			newRoot.add(root);
+			newRoot.add(sibling);
+			root = newRoot;
+		}
+	}
+
+	/**
+	 * Remove the entry of the mask below the node. The nodes left with too few children are removed too and
+	 * their entries added to the orphans, to be inserted again
+	 */
+	private static boolean remove(Node node, Mask mask, Box box, List<Entry> orphans) {
+		for (int i = 0; i < node.n; i ++) {
+			Box child = node.children[i];
+			if (node.leaf) {
+				if (((Entry) child).mask != mask)
+					continue;
+				node.remove(i);
+				return true;
+			}
+			if (!child.contains(box) || !remove((Node) child, mask, box, orphans))
+				continue;
+			if (((Node) child).n < MIN_ENTRIES) {
+				node.remove(i);
+				collectEntries((Node) child, orphans);
+			} else {
+				node.recompute();
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static void collectEntries(Node node, List<Entry> entries) {
+		for (int i = 0; i < node.n; i ++) {
+			if (node.leaf)
+				entries.add((Entry) node.children[i]);
+			else
+				collectEntries((Node) node.children[i], entries);
+		}
+	}
+
+	/**
+	 * Insert the entry below the node. If the node has to be split, the new node is returned
+	 */
+	private static Node insert(Node node, Entry entry) {
+		if (node.leaf) {
+			node.add(entry);
+		} else {
+			Node best = null;
+			long bestEnlargement = Long.MAX_VALUE;
+			long bestArea = Long.MAX_VALUE;
+			for (int i = 0; i < node.n; i ++) {
+				Node child = (Node) node.children[i];
+				long area = child.area();
+				long enlargement = child.unionArea(entry) - area;
+				if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+					best = child;
+					bestEnlargement = enlargement;
+					bestArea = area;
+				}
+			}
+			Node split = insert(best, entry);
+			node.include(entry);
+			if (split != null)
+				node.add(split);
+		}
+		if (node.n > MAX_ENTRIES)
+			return split(node);
+		return null;
+	}
+
+	/**
+	 * Quadratic split of an overflowing node. The node keeps one of the groups and the other one is returned
+	 */
+	private static Node split(Node node) {
+		Box[] all = new Box[node.n];
+		System.arraycopy(node.children, 0, all, 0, node.n);
+		int seedA = 0;
+		int seedB = 1;
+		long worstWaste = Long.MIN_VALUE;
+		for (int i = 0; i < all.length; i ++) {
+			for (int j = i + 1; j < all.length; j ++) {
+				long waste = all[i].unionArea(all[j]) - all[i].area() - all[j].area();
+				if (waste > worstWaste) {
+					worstWaste = waste;
+					seedA = i;
+					seedB = j;
+				}
+			}
+		}
+		node.reset();
+		Node other = new Node(node.leaf);
+		node.add(all[seedA]);
+		other.add(all[seedB]);
+		boolean[] assigned = new boolean[all.length];
+		assigned[seedA] = true;
+		assigned[seedB] = true;
+		int remaining = all.length - 2;
+		while (remaining > 0) {
+			if (node.n + remaining == MIN_ENTRIES || other.n + remaining == MIN_ENTRIES) {
+				Node target = node.n + remaining == MIN_ENTRIES ? node : other;
+				for (int i = 0; i < all.length; i ++) {
+					if (!assigned[i])
+						target.add(all[i]);
+				}
+				break;
+			}
+			int next = -1;
+			long maxDiff = -1;
+			long nextDA = 0;
+			long nextDB = 0;
+			for (int i = 0; i < all.length; i ++) {
+				if (assigned[i])
+					continue;
+				long dA = node.unionArea(all[i]) - node.area();
+				long dB = other.unionArea(all[i]) - other.area();
+				long diff = Math.abs(dA - dB);
+				if (diff > maxDiff) {
+					maxDiff = diff;
+					next = i;
+					nextDA = dA;
+					nextDB = dB;
+				}
+			}
+			Node target;
+			if (nextDA != nextDB)
+				target = nextDA < nextDB ? node : other;
+			else if (node.area() != other.area())
+				target = node.area() < other.area() ? node : other;
+			else
+				target = node.n <= other.n ? node : other;
+			target.add(all[next]);
+			assigned[next] = true;
+			remaining --;
+		}
+		return other;
+	}
+
+	/**
+	 * Bounding box with inclusive limits
+	 */
+	static class Box {
+
+		int minX = Integer.MAX_VALUE;
+
+		int minY = Integer.MAX_VALUE;
+
+		int maxX = Integer.MIN_VALUE;
+
+		int maxY = Integer.MIN_VALUE;
+
+		Box() {
+		}
+
+		Box(int minX, int minY, int maxX, int maxY) {
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+		boolean contains(int x, int y) {
+			return x >= minX && x <= maxX && y >= minY && y <= maxY;
+		}
+
+		boolean contains(Box other) {
+			return other.minX >= minX && other.maxX <= maxX && other.minY >= minY && other.maxY <= maxY;
+		}
+
+		boolean intersects(Box other) {
+			return other.minX <= maxX && other.maxX >= minX && other.minY <= maxY && other.maxY >= minY;
+		}
+
+		long area() {
+			if (maxX < minX)
+				return 0;
+			return (maxX - (long) minX + 1) * (maxY - (long) minY + 1);
+		}
+
+		long unionArea(Box other) {
+			if (maxX < minX)
+				return other.area();
+			long w = Math.max(maxX, other.maxX) - (long) Math.min(minX, other.minX) + 1;
+			long h = Math.max(maxY, other.maxY) - (long) Math.min(minY, other.minY) + 1;
+			return w * h;
+		}
+
+		void include(Box other) {
+			minX = Math.min(minX, other.minX);
+			minY = Math.min(minY, other.minY);
+			maxX = Math.max(maxX, other.maxX);
+			maxY = Math.max(maxY, other.maxY);
+		}
+	}
+
+	/**
+	 * Mask stored in the index together with its exact compact representation
+	 */
+	static class Entry extends Box {
+
+		final Mask mask;
+
+		final CompactMask compact;
+
+		final long order;
+
+		private Entry(Mask mask, CompactMask compact, long order) {
+			super(compact.getMinX(), compact.getMinY(),
+					compact.getMinX() + compact.getWidth() - 1, compact.getMinY() + compact.getHeight() - 1);
+			this.mask = mask;
+			this.compact = compact;
+			this.order = order;
+		}
+	}
+
+	private static class Node extends Box {
+
+		private final boolean leaf;
+
+		private final Box[] children = new Box[MAX_ENTRIES + 1];
+
+		private int n;
+
+		private Node(boolean leaf) {
+			this.leaf = leaf;
+		}
+
+		private void add(Box child) {
+			children[n ++] = child;
+			include(child);
+		}
+
+		private void remove(int index) {
+			System.arraycopy(children, index + 1, children, index, n - index - 1);
+			children[-- n] = null;
+			recompute();
+		}
+
+		private void recompute() {
+			minX = Integer.MAX_VALUE;
+			minY = Integer.MAX_VALUE;
+			maxX = Integer.MIN_VALUE;
+			maxY = Integer.MIN_VALUE;
+			for (int i = 0; i < n; i ++)
+				include(children[i]);
+		}
+
+		private void reset() {
+			for (int i = 0; i < n; i ++)
+				children[i] = null;
+			n = 0;
+			minX = Integer.MAX_VALUE;
+			minY = Integer.MAX_VALUE;
+			maxX = Integer.MIN_VALUE;
+			maxY = Integer.MIN_VALUE;
+		}
+	}
+}
@@ -0,0 +1,433 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Polygon;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Append-only store of masks kept in memory-mapped files instead of in the Java heap, for result sets
+ * that are too big to keep as {@link Mask} objects.
+ *
+ * The store is made of two files: the data file, with the contour and the RLE of every mask one after the other,
+ * and the index file, with the position of every mask in the data file. The data file is mapped in segments of
+ * {@link #SEGMENT_SIZE} bytes that are created as it grows, and only the index (8 bytes per mask) is kept in the heap.
+ * A mask is decoded only when it is requested, so {@link #asList()} can be used as a list of masks of any size.
+ *
+ * The index entry of a mask is written after the mask itself, so if the process stops, reopening the store
+ * gives back every mask that was completely appended. The masks cannot be modified nor removed.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class MaskStore implements Closeable {
+
+	/**
+	 * Size of each of the mapped regions of the data file
+	 */
+	public static final long SEGMENT_SIZE = 1L << 26;
+	/**
+	 * Extension of the file with the positions of the masks, added to the name of the data file
+	 */
+	public static final String INDEX_EXTENSION = ".index";
+
+	private static final int MAGIC = 0x53414d4a;
+
+	private static final int VERSION = 1;
+	/**
+	 * Magic number, version and a reserved long
+	 */
+	private static final int HEADER_BYTES = 16;
+	/**
+	 * Number of points of the contour and number of longs of the RLE
+	 */
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	private final File file;
+
+	private final FileChannel dataChannel;
+
+	private final FileChannel indexChannel;
+
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	private long[] offsets;
+
+	private int size;
+
+	private long end;
+
+	private boolean closed = false;
+
+	private MaskStore(File file, FileChannel dataChannel, FileChannel indexChannel) {
+		this.file = file;
+		this.dataChannel = dataChannel;
+		this.indexChannel = indexChannel;
+	}
+
+	/**
+	 * Create a new empty store. If the files already exist, their content is discarded
+	 * @param file
+	 * 	data file of the store, the index file is created next to it
+	 * @return the store, open to read and append masks
+	 * @throws IOException if there is any error creating the files
+	 */
+	public static MaskStore create(File file) throws IOException {
+		FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		FileChannel index = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		MaskStore store = new MaskStore(file, data, index);
+		store.offsets = new long[1024];
+		store.end = HEADER_BYTES;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putLong(0);
+		header.flip();
+		store.write(0, header);
+		return store;
+	}
+
+	/**
+	 * Open an existing store. Only the index is read, the masks are read when they are requested
+	 * @param file
+	 * 	data file of the store
+	 * @return the store, open to read and append masks
+	 * @throws IOException if the files do not exist or are not a mask store
+	 */
+	public static MaskStore open(File file) throws IOException {
+		if (!file.isFile() || !indexFile(file).isFile())
+			throw new IOException("There is no mask store at: " + file.getAbsolutePath());
+		FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel index = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MaskStore store = new MaskStore(file, data, index);
+		try {
+			store.readIndex();
+		} catch (IOException | RuntimeException e) {
+			store.close();
+			throw e;
+		}
+		return store;
+	}
+
+	private static File indexFile(File file) {
+		return new File(file.getAbsolutePath() + INDEX_EXTENSION);
+	}
+
+	private void readIndex() throws IOException {
+		// read without mapping, mapping a segment grows the file
+		long fileSize = dataChannel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		if (fileSize < HEADER_BYTES)
+			throw new IOException("The file is not a mask store: " + file.getAbsolutePath());
+		readUnmapped(0, header);
+		header.flip();
+		if (header.getInt() != MAGIC)
+			throw new IOException("The file is not a mask store: " + file.getAbsolutePath());
+		int version = header.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of the mask store: " + version);
+		int n = (int) (indexChannel.size() / 8);
+		ByteBuffer buffer = ByteBuffer.allocate(n * 8).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining() && indexChannel.read(buffer, buffer.position()) >= 0) {}
+		buffer.flip();
+		offsets = new long[Math.max(1024, n)];
+		buffer.asLongBuffer().get(offsets, 0, n);
+		size = n;
+		end = HEADER_BYTES;
+		if (n > 0 && (offsets[n - 1] < HEADER_BYTES || offsets[n - 1] + RECORD_HEADER_BYTES > fileSize))
+			throw new IOException("The mask store is corrupted, the data file is shorter than the index: " + file.getAbsolutePath());
+		if (n > 0)
+			end = offsets[n - 1] + recordLength(offsets[n - 1]);
+		if (end > fileSize)
+			throw new IOException("The mask store is corrupted, the data file is shorter than the index: " + file.getAbsolutePath());
+		// drop an index entry that was only partially written
+		indexChannel.truncate(n * 8L);
+	}
+
+	/**
+	 * Append a mask at the end of the store
+	 * @param mask
+	 * 	the mask
+	 * @return the position of the mask in the store
+	 * @throws IOException if there is any error writing the mask
+	 */
+	public synchronized int append(Mask mask) throws IOException {
+		checkOpen();
+		Polygon contour = mask.getContour();
+		long[] rle = mask.getRLEMask();
+		int n = contour.npoints;
+		long length = RECORD_HEADER_BYTES + 8L * n + 8L * rle.length;
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The mask is too big to be stored.");
+		ByteBuffer record = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(n).putInt(rle.length);
+		record.asIntBuffer().put(contour.xpoints, 0, n).put(contour.ypoints, 0, n);
+		record.position(RECORD_HEADER_BYTES + 8 * n);
+		record.asLongBuffer().put(rle);
+		record.position(0);
+		long offset = end;
+		write(offset, record);
+		ByteBuffer entry = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		entry.putLong(offset).flip();
+		while (entry.hasRemaining())
+			indexChannel.write(entry, size * 8L + entry.position());
+		if (size == offsets.length)
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		offsets[size] = offset;
+		end = offset + length;
+		return size ++;
+	}
+
+	/**
+	 * Append several masks at the end of the store
+	 * @param masks
+	 * 	the masks
+	 * @throws IOException if there is any error writing the masks
+	 */
+	public synchronized void appendAll(List<Mask> masks) throws IOException {
+		for (Mask mm : masks)
+			append(mm);
+	}
+
+	/**
+	 *
+	 * @return the number of masks in the store
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Read a mask from the store. Every call creates a new {@link Mask} with its own arrays
+	 * @param i
+	 * 	position of the mask
+	 * @return the mask
+	 */
+	public Mask get(int i) {
+		long offset = offset(i);
+		try {
+			ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			read(offset, head);
+			head.flip();
+			int n = head.getInt();
+			int rleLength = head.getInt();
+			ByteBuffer body = ByteBuffer.allocate(8 * n + 8 * rleLength).order(ByteOrder.LITTLE_ENDIAN);
+			read(offset + RECORD_HEADER_BYTES, body);
+			body.flip();
+			int[] xs = new int[n];
+			int[] ys = new int[n];
+			long[] rle = new long[rleLength];
+			body.asIntBuffer().get(xs).get(ys);
+			body.position(8 * n);
+			body.asLongBuffer().get(rle);
+			return Mask.build(new Polygon(xs, ys, n), rle);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Read only the RLE of a mask from the store
+	 * @param i
+	 * 	position of the mask
+	 * @return the RLE of the mask
+	 */
+	public long[] getRLE(int i) {
+		long offset = offset(i);
+		try {
+			ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			read(offset, head);
+			head.flip();
+			int n = head.getInt();
+			int rleLength = head.getInt();
+			ByteBuffer body = ByteBuffer.allocate(8 * rleLength).order(ByteOrder.LITTLE_ENDIAN);
+			read(offset + RECORD_HEADER_BYTES + 8L * n, body);
+			body.flip();
+			long[] rle = new long[rleLength];
+			body.asLongBuffer().get(rle);
+			return rle;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * View of the store as a list. The masks are read from the store when they are requested and the list
+	 * grows as masks are appended to the store. The list cannot be modified
+	 * @return a list view of the masks of the store
+	 */
+	public List<Mask> asList() {
+		return new MaskList(0, -1);
+	}
+
+	/**
+	 * View of a part of the store as a list. The masks are read from the store when they are requested
+	 * @param from
+	 * 	position of the first mask of the view, inclusive
+	 * @param to
+	 * 	position of the last mask of the view, exclusive
+	 * @return a list view of the masks of the store between the positions
+	 */
+	public List<Mask> asList(int from, int to) {
+		if (from < 0 || to < from || to > size())
+			throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for a store of " + size() + " masks.");
+		return new MaskList(from, to);
+	}
+
+	/**
+	 *
+	 * @return the data file of the store
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Write the pending changes of the store to the disk
+	 * @throws IOException if there is any error writing to the disk
+	 */
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+		indexChannel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+			segments.clear();
+			indexChannel.force(false);
+		} finally {
+			closed = true;
+			dataChannel.close();
+			indexChannel.close();
+		}
+	}
+
+	private synchronized long offset(int i) {
+		checkOpen();
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index " + i + " out of bounds for a store of " + size + " masks.");
+		return offsets[i];
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("The mask store has been closed.");
+	}
+
+	private long recordLength(long offset) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readUnmapped(offset, head);
+		head.flip();
+		return RECORD_HEADER_BYTES + 8L * head.getInt() + 8L * head.getInt();
+	}
+
+	/**
+	 * Mapped region of the data file. The regions are mapped read-write with the full segment size,
+	 * which grows the file as needed
+	 */
+	private synchronized ByteBuffer segment(int k) throws IOException {
+		checkOpen();
+		while (segments.size() <= k) {
+			long position = segments.size() * SEGMENT_SIZE;
+			segments.add(dataChannel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE));
+		}
+		return segments.get(k).duplicate();
+	}
+
+	private void write(long position, ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			ByteBuffer segment = segment((int) (position / SEGMENT_SIZE));
+			int start = (int) (position % SEGMENT_SIZE);
+			int length = (int) Math.min(src.remaining(), SEGMENT_SIZE - start);
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + length);
+			segment.position(start);
+			segment.put(chunk);
+			src.position(src.position() + length);
+			position += length;
+		}
+	}
+
+	private void readUnmapped(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = dataChannel.read(dst, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of the mask store: " + file.getAbsolutePath());
+			position += n;
+		}
+	}
+
+	private void read(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			ByteBuffer segment = segment((int) (position / SEGMENT_SIZE));
+			int start = (int) (position % SEGMENT_SIZE);
+			int length = (int) Math.min(dst.remaining(), SEGMENT_SIZE - start);
+			segment.position(start);
+			segment.limit(start + length);
+			dst.put(segment);
+			position += length;
+		}
+	}
+
+	private class MaskList extends AbstractList<Mask> implements RandomAccess {
+
+		private final int from;
+		/**
+		 * End of the view, or -1 to follow the size of the store
+		 */
+		private final int to;
+
+		private MaskList(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Mask get(int index) {
+			if (index < 0 || index >= size())
+				throw new IndexOutOfBoundsException("Index " + index + " out of bounds for a list of " + size() + " masks.");
+			return MaskStore.this.get(from + index);
+		}
+
+		@Override
+		public int size() {
+			return to < 0 ? MaskStore.this.size() - from : to - from;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Class that converts polygons into the run-length encoding used by {@link Mask}, pairs of
+ * [absolute start position, length] sorted in raster order, with at most one run per row and interval.
+ *
+ * The polygon is scanned row by row with an active edge table, so the time depends on the number of rows
+ * and edges of the polygon and not on the size of the image, and no image is ever allocated.
+ * A pixel belongs to the mask if its center is inside the polygon following the even-odd rule, as in
+ * {@link Polygon#contains(double, double)}. The crossings are computed with integer arithmetic, so the centers
+ * that lie exactly on an edge are decided consistently: on a left edge they are inside and on a right edge outside.
+ * The pixels outside of the image are discarded.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class PolygonRasterizer {
+
+	/**
+	 * Rasterize a polygon into a mask
+	 * @param polygon
+	 * 	the polygon, in image coordinates
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @return a mask with the polygon as contour and the RLE of the pixels inside it
+	 */
+	public static Mask toMask(Polygon polygon, long width, long height) {
+		return Mask.build(polygon, toRLE(polygon, width, height));
+	}
+
+	/**
+	 * Rasterize a polygon into the run-length encoding used by {@link Mask}
+	 * @param polygon
+	 * 	the polygon, in image coordinates
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @return the RLE of the pixels whose center is inside the polygon
+	 */
+	public static long[] toRLE(Polygon polygon, long width, long height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("The dimensions of the image should be positive.");
+		int n = polygon.npoints;
+		int[] px = polygon.xpoints;
+		int[] py = polygon.ypoints;
+		// edges as first row, last row (exclusive), lower vertex x and increment of x and y along the edge
+		int[] firstRow = new int[n];
+		int[] lastRow = new int[n];
+		int[] edgeX = new int[n];
+		int[] edgeDx = new int[n];
+		int[] edgeDy = new int[n];
+		int nEdges = 0;
+		for (int i = 0; i < n; i ++) {
+			int j = i + 1 == n ? 0 : i + 1;
+			if (py[i] == py[j])
+				continue;
+			int x0 = py[i] < py[j] ? px[i] : px[j];
+			int y0 = Math.min(py[i], py[j]);
+			int x1 = py[i] < py[j] ? px[j] : px[i];
+			int y1 = Math.max(py[i], py[j]);
+			// rows r whose center r + 0.5 is in [y0, y1)
+			int r0 = y0;
+			int r1 = y1;
+			if (r1 <= 0 || r0 >= height)
+				continue;
+			firstRow[nEdges] = r0;
+			lastRow[nEdges] = r1;
+			edgeX[nEdges] = x0;
+			edgeDx[nEdges] = x1 - x0;
+			edgeDy[nEdges ++] = y1 - y0;
+		}
+		if (nEdges == 0)
+			return new long[0];
+		Integer[] order = new Integer[nEdges];
+		for (int i = 0; i < nEdges; i ++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(firstRow[a], firstRow[b]));
+		int maxRow = 0;
+		for (int i = 0; i < nEdges; i ++)
+			maxRow = Math.max(maxRow, lastRow[i]);
+		maxRow = (int) Math.min(maxRow, height);
+
+		int[] active = new int[nEdges];
+		int nActive = 0;
+		long[] crossings = new long[nEdges];
+		long[] rle = new long[64];
+		int size = 0;
+		int next = 0;
+		int row = Math.max(0, firstRow[order[0]]);
+		for (; row < maxRow; row ++) {
+			while (next < nEdges && firstRow[order[next]] <= row)
+				active[nActive ++] = order[next ++];
+			int nCross = 0;
+			for (int a = 0; a < nActive; a ++) {
+				int e = active[a];
+				if (lastRow[e] <= row) {
+					active[a --] = active[-- nActive];
+					continue;
+				}
+				// first pixel whose center is at or to the right of the crossing with y = row + 0.5,
+				// computed exactly as ceil(x - 0.5) to decide the pixels whose center lies on the edge
+				long den = 2L * edgeDy[e];
+				long num = 2L * edgeX[e] * edgeDy[e] + (long) edgeDx[e] * (2L * (row - firstRow[e]) + 1) - edgeDy[e];
+				long x = -Math.floorDiv(-num, den);
+				int k = nCross ++;
+				while (k > 0 && crossings[k - 1] > x) {
+					crossings[k] = crossings[k - 1];
+					k --;
+				}
+				crossings[k] = x;
+			}
+			if (nActive == 0 && next == nEdges)
+				break;
+			long offset = row * width;
+			for (int c = 0; c + 1 < nCross; c += 2) {
+				long start = Math.max(0, crossings[c]);
+				long end = Math.min(width, crossings[c + 1]);
+				if (end <= start)
+					continue;
+				if (size > 0 && rle[size - 2] >= offset && rle[size - 2] + rle[size - 1] == offset + start) {
+					rle[size - 1] += end - start;
+					continue;
+				}
+				if (size + 2 > rle.length)
+					rle = Arrays.copyOf(rle, rle.length * 2);
+				rle[size ++] = offset + start;
+				rle[size ++] = end - start;
+			}
+		}
+		return size == rle.length ? rle : Arrays.copyOf(rle, size);
+	}
+
+	private static Polygon randomPolygon(Random rand, int cx, int cy, int radius, int nPoints) {
+		Polygon polygon = new Polygon();
+		for (int i = 0; i < nPoints; i ++) {
+			double angle = 2 * Math.PI * i / nPoints;
+			double r = radius * (0.5 + 0.5 * rand.nextDouble());
+			polygon.addPoint((int) Math.round(cx + r * Math.cos(angle)), (int) Math.round(cy + r * Math.sin(angle)));
+		}
+		return polygon;
+	}
+
+	/**
+	 * Whether the center of the pixel lies exactly on one of the edges of the polygon
+	 */
+	private static boolean centerOnEdge(Polygon polygon, int x, int y) {
+		for (int i = 0; i < polygon.npoints; i ++) {
+			int j = (i + 1) % polygon.npoints;
+			long x0 = polygon.xpoints[i], y0 = polygon.ypoints[i];
+			long dx = polygon.xpoints[j] - x0, dy = polygon.ypoints[j] - y0;
+			if (2 * y + 1 < 2 * Math.min(y0, y0 + dy) || 2 * y + 1 > 2 * Math.max(y0, y0 + dy))
+				continue;
+			if ((2 * x + 1 - 2 * x0) * dy == (2 * y + 1 - 2 * y0) * dx)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Rasterize testing every pixel with {@link Polygon#contains(double, double)}. The pixels whose center
+	 * lies exactly on an edge, where the result of the floating point test is arbitrary, take the value of the reference
+	 */
+	private static long[] rasterizeWithContains(Polygon polygon, int width, int height, long[] reference) {
+		boolean[] inReference = new boolean[width * height];
+		for (int i = 0; i < reference.length; i += 2)
+			Arrays.fill(inReference, (int) reference[i], (int) (reference[i] + reference[i + 1]), true);
+		long[] rle = new long[2 * width * height];
+		int size = 0;
+		for (int y = 0; y < height; y ++) {
+			for (int x = 0; x < width; x ++) {
+				boolean inside = centerOnEdge(polygon, x, y) ? inReference[x + y * width] : polygon.contains(x + 0.5, y + 0.5);
+				if (!inside)
+					continue;
+				long pos = x + y * (long) width;
+				if (size > 0 && rle[size - 2] + rle[size - 1] == pos && x > 0) {
+					rle[size - 1] ++;
+				} else {
+					rle[size ++] = pos;
+					rle[size ++] = 1;
+				}
+			}
+		}
+		return Arrays.copyOf(rle, size);
+	}
+
+	private static long rasterizeWithImage(Polygon polygon, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillPolygon(polygon);
+		g.dispose();
+		byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		long count = 0;
+		for (byte b : data)
+			count += b != 0 ? 1 : 0;
+		return count;
+	}
+
+	/**
+	 * Tests during development. Check the rasterizer against {@link Polygon#contains(double, double)}
+	 * and benchmark it against drawing every polygon into a full-size image
+	 * @param args
+	 * 	nothing
+	 */
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+		for (int t = 0; t < 200; t ++) {
+			Polygon polygon = randomPolygon(rand, rand.nextInt(120) - 10, rand.nextInt(120) - 10, 5 + rand.nextInt(60), 3 + rand.nextInt(40));
+			long[] rle = toRLE(polygon, 100, 100);
+			if (!Arrays.equals(rle, rasterizeWithContains(polygon, 100, 100, rle)))
+				throw new RuntimeException("Different result for polygon " + t);
+		}
+		int width = 4096;
+		int height = 4096;
+		int nPolygons = 2000;
+		Polygon[] polygons = new Polygon[nPolygons];
+		for (int i = 0; i < nPolygons; i ++)
+			polygons[i] = randomPolygon(rand, rand.nextInt(width), rand.nextInt(height), 10 + rand.nextInt(100), 100 + rand.nextInt(400));
+		for (int rep = 0; rep < 3; rep ++) {
+			long t0 = System.nanoTime();
+			long area = 0;
+			for (Polygon polygon : polygons) {
+				long[] rle = toRLE(polygon, width, height);
+				for (int i = 1; i < rle.length; i += 2)
+					area += rle[i];
+			}
+			long t1 = System.nanoTime();
+			long imageArea = 0;
+			for (int i = 0; i < 50; i ++)
+				imageArea += rasterizeWithImage(polygons[i], width, height);
+			long t2 = System.nanoTime();
+			System.out.println(nPolygons + " polygons, scanline: " + (t1 - t0) / 1000000 + " ms (area " + area + "), "
+					+ "full-size image: " + (t2 - t1) / 1000000 / 50.0 * nPolygons + " ms estimated from 50 polygons (area " + imageArea + ")");
+		}
+	}
+}
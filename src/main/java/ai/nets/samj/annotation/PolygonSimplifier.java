@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Polygon;
+import java.util.List;
+
+/**
+ * Class that reduces the number of vertices of the contours of the masks. The contours traced from the
+ * masks have one vertex per boundary pixel, which makes big objects slow to transfer, transform and draw.
+ *
+ * The simplification uses the Douglas-Peucker algorithm on the closed contour. Every removed vertex is at most
+ * at the given tolerance from the segment that replaces it, and every point of that segment is at most at the
+ * tolerance from the original contour, so the simplified polygon never moves further than the tolerance from the
+ * boundary of the mask. The RLE of the masks is not modified, it keeps being the exact mask.
+ * With a tolerance of 0 only the collinear vertices are removed.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class PolygonSimplifier {
+
+	/**
+	 * Minimum number of masks to process them in parallel
+	 */
+	private static final int MIN_PARALLEL_MASKS = 64;
+
+	/**
+	 * Simplify the contours of the masks
+	 * @param masks
+	 * 	the masks whose contours are simplified, they are modified
+	 * @param tolerance
+	 * 	maximum distance in pixels between the simplified contour and the original one
+	 */
+	public static void simplify(List<Mask> masks, double tolerance) {
+		if (tolerance < 0)
+			throw new IllegalArgumentException("The tolerance of the simplification cannot be negative.");
+		if (masks.size() >= MIN_PARALLEL_MASKS)
+			masks.parallelStream().forEach(mm -> simplify(mm.getContour(), tolerance));
+		else
+			masks.forEach(mm -> simplify(mm.getContour(), tolerance));
+	}
+
+	/**
+	 * Simplify a closed polygon in place. The kept vertices are moved to the beginning of the
+	 * coordinate arrays and the number of points of the polygon is updated.
+	 * @param polygon
+	 * 	the polygon to simplify, it is modified
+	 * @param tolerance
+	 * 	maximum distance in pixels between the simplified polygon and the original one
+	 */
+	public static void simplify(Polygon polygon, double tolerance) {
+		if (tolerance < 0)
+			throw new IllegalArgumentException("The tolerance of the simplification cannot be negative.");
+		int n = polygon.npoints;
+		if (n <= 3)
+			return;
+		int[] xs = polygon.xpoints;
+		int[] ys = polygon.ypoints;
+		int far = 0;
+		long maxDist = -1;
+		for (int i = 1; i < n; i ++) {
+			long dx = xs[i] - xs[0];
+			long dy = ys[i] - ys[0];
+			long dist = dx * dx + dy * dy;
+			if (dist > maxDist) {
+				maxDist = dist;
+				far = i;
+			}
+		}
+		if (maxDist == 0)
+			return;
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[far] = true;
+		double tol2 = tolerance * tolerance;
+		int[] stack = new int[2 * n];
+		int top = 0;
+		stack[top ++] = 0;
+		stack[top ++] = far;
+		stack[top ++] = far;
+		stack[top ++] = n;
+		while (top > 0) {
+			int last = stack[-- top];
+			int first = stack[-- top];
+			if (last - first < 2)
+				continue;
+			int fx = xs[first], fy = ys[first];
+			int lx = xs[last % n], ly = ys[last % n];
+			int worst = -1;
+			double worstDist = -1;
+			for (int i = first + 1; i < last; i ++) {
+				double dist = segmentDistance2(xs[i], ys[i], fx, fy, lx, ly);
+				if (dist > worstDist) {
+					worstDist = dist;
+					worst = i;
+				}
+			}
+			if (worstDist > tol2 || (tolerance == 0 && worstDist > 0)) {
+				keep[worst] = true;
+				stack[top ++] = first;
+				stack[top ++] = worst;
+				stack[top ++] = worst;
+				stack[top ++] = last;
+			}
+		}
+		int kept = 0;
+		for (int i = 0; i < n; i ++) {
+			if (keep[i])
+				kept ++;
+		}
+		if (kept < 3)
+			return;
+		int pos = 0;
+		for (int i = 0; i < n; i ++) {
+			if (!keep[i])
+				continue;
+			xs[pos] = xs[i];
+			ys[pos ++] = ys[i];
+		}
+		polygon.npoints = kept;
+		polygon.invalidate();
+	}
+
+	/**
+	 * Squared distance from the point (px, py) to the segment that goes from (ax, ay) to (bx, by)
+	 */
+	private static double segmentDistance2(int px, int py, int ax, int ay, int bx, int by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double len2 = dx * dx + dy * dy;
+		double t = len2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+		t = Math.max(0, Math.min(1, t));
+		double ex = ax + t * dx - px;
+		double ey = ay + t * dy - py;
+		return ex * ex + ey * ey;
+	}
+}
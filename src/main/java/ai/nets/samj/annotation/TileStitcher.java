@@ -0,0 +1,487 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.awt.Polygon;
+import java.awt.geom.Area;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Class that merges the masks obtained tile by tile on an image too big to be processed at once.
+ *
+ * The image is divided into a grid of cores that do not overlap. Each tile is segmented with some context around
+ * its core, and the masks of the tile are clipped to the core. The pieces of an object cut by the border between
+ * two cores (a seam) are joined with union-find: the runs of the RLE that touch the seam on both sides are compared,
+ * and two pieces are considered the same object when they share at least {@link #SEAM_CONTACT_RATIO} of the
+ * extent along the seam of the smaller one, so touching but different objects are kept apart.
+ *
+ * Tiles have to be added in raster order. An object is delivered as soon as none of its pieces touches a seam
+ * whose other side has not been processed yet, so only the pieces along the last row of tiles are kept in memory.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class TileStitcher {
+
+	/**
+	 * Minimum fraction of the extent along the seam of the smaller piece that has to be in contact with the
+	 * other piece for both of them to be considered the same object
+	 */
+	public static final double SEAM_CONTACT_RATIO = 0.5;
+
+	private final long width;
+
+	private final long height;
+
+	private final long coreWidth;
+
+	private final long coreHeight;
+
+	private final int tilesX;
+
+	private final int tilesY;
+
+	private final Consumer<Mask> consumer;
+
+	private int nextTile = 0;
+
+	private List<Piece> rightSeam = Collections.emptyList();
+
+	private final List<List<Piece>> bottomSeams;
+
+	private int nPending = 0;
+
+	private long nDelivered = 0;
+
+	/**
+	 * Create the stitcher
+	 * @param width
+	 * 	width of the whole image
+	 * @param height
+	 * 	height of the whole image
+	 * @param coreWidth
+	 * 	width of the core of the tiles, the last column of tiles might be narrower
+	 * @param coreHeight
+	 * 	height of the core of the tiles, the last row of tiles might be shorter
+	 * @param consumer
+	 * 	receives the stitched masks, in image coordinates, as soon as they are complete
+	 */
+	public TileStitcher(long width, long height, long coreWidth, long coreHeight, Consumer<Mask> consumer) {
+		if (width <= 0 || height <= 0 || coreWidth <= 0 || coreHeight <= 0)
+			throw new IllegalArgumentException("The dimensions of the image and of the cores should be positive.");
+		this.width = width;
+		this.height = height;
+		this.coreWidth = coreWidth;
+		this.coreHeight = coreHeight;
+		this.tilesX = (int) ((width + coreWidth - 1) / coreWidth);
+		this.tilesY = (int) ((height + coreHeight - 1) / coreHeight);
+		this.consumer = consumer;
+		this.bottomSeams = new ArrayList<List<Piece>>(Collections.nCopies(tilesX, Collections.<Piece>emptyList()));
+	}
+
+	/**
+	 *
+	 * @return number of columns of tiles
+	 */
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	/**
+	 *
+	 * @return number of rows of tiles
+	 */
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	/**
+	 * 
+	 * @param tx
+	 * 	column of the tile
+	 * @param ty
+	 * 	row of the tile
+	 * @return the core of the tile, in image coordinates
+	 */
+	public long[] getCore(int tx, int ty) {
+		long x0 = tx * coreWidth;
+		long y0 = ty * coreHeight;
+		return new long[] {x0, y0, Math.min(width, x0 + coreWidth), Math.min(height, y0 + coreHeight)};
+	}
+
+	/**
+	 * Add the masks of the next tile. The masks that are complete, including those of previous tiles that
+	 * were waiting for this one, are delivered to the consumer
+	 * @param tx
+	 * 	column of the tile
+	 * @param ty
+	 * 	row of the tile
+	 * @param masks
+	 * 	masks found on the tile, in image coordinates. They can extend out of the core of the tile
+	 */
+	public synchronized void addTile(int tx, int ty, List<Mask> masks) {
+		if (tx < 0 || ty < 0 || tx >= tilesX || ty >= tilesY || tx + ty * tilesX != nextTile)
+			throw new IllegalArgumentException("The tiles should be added in raster order, expected tile " 
+					+ (nextTile % tilesX) + ", " + (nextTile / tilesX) + " and got " + tx + ", " + ty + ".");
+		nextTile ++;
+		long[] core = getCore(tx, ty);
+		List<Piece> pieces = new ArrayList<Piece>(masks.size());
+		for (Mask mm : masks) {
+			Piece piece = clip(mm, core, tx > 0, tx < tilesX - 1, ty > 0, ty < tilesY - 1);
+			if (piece != null)
+				pieces.add(piece);
+		}
+		nPending += pieces.size();
+		List<Piece> affected = new ArrayList<Piece>(pieces);
+		if (tx > 0) {
+			stitch(rightSeam, pieces, true);
+			for (Piece pp : rightSeam) {
+				pp.right = null;
+				find(pp).open --;
+				affected.add(pp);
+			}
+		}
+		if (ty > 0) {
+			List<Piece> top = bottomSeams.get(tx);
+			stitch(top, pieces, false);
+			for (Piece pp : top) {
+				pp.bottom = null;
+				find(pp).open --;
+				affected.add(pp);
+			}
+		}
+		List<Piece> newRight = new ArrayList<Piece>();
+		List<Piece> newBottom = new ArrayList<Piece>();
+		for (Piece pp : pieces) {
+			pp.left = null;
+			pp.top = null;
+			if (pp.right != null)
+				newRight.add(pp);
+			if (pp.bottom != null)
+				newBottom.add(pp);
+		}
+		rightSeam = newRight;
+		bottomSeams.set(tx, newBottom);
+		for (Piece pp : affected) {
+			Piece root = find(pp);
+			if (root.open == 0 && root.members != null)
+				deliver(root);
+		}
+	}
+
+	/**
+	 * Deliver all the objects that are still waiting for a neighbouring tile. Call it after the last tile
+	 */
+	public synchronized void finish() {
+		List<Piece> waiting = new ArrayList<Piece>(rightSeam);
+		bottomSeams.forEach(waiting::addAll);
+		for (Piece pp : waiting) {
+			Piece root = find(pp);
+			if (root.members != null)
+				deliver(root);
+		}
+		rightSeam = Collections.emptyList();
+		Collections.fill(bottomSeams, Collections.<Piece>emptyList());
+	}
+
+	/**
+	 *
+	 * @return the number of pieces of objects kept in memory because they touch a seam not processed yet
+	 */
+	public synchronized int getNumberOfPendingPieces() {
+		return nPending;
+	}
+
+	/**
+	 *
+	 * @return the number of objects delivered to the consumer
+	 */
+	public synchronized long getNumberOfDelivered() {
+		return nDelivered;
+	}
+
+	/**
+	 * Clip the mask to the core, splitting the runs by row, and keep the coordinates of the pixels that
+	 * touch each of the seams that are inside of the image
+	 */
+	private Piece clip(Mask mask, long[] core, boolean hasLeft, boolean hasRight, boolean hasTop, boolean hasBottom) {
+		long[] rle = mask.getRLEMask();
+		long[] clipped = new long[Math.max(16, rle.length)];
+		int size = 0;
+		long total = 0;
+		IntList left = new IntList(), right = new IntList(), top = new IntList(), bottom = new IntList();
+		for (int i = 0; i < rle.length; i += 2) {
+			long start = rle[i];
+			long len = rle[i + 1];
+			total += len;
+			while (len > 0) {
+				long y = start / width;
+				long x = start - y * width;
+				long rowLen = Math.min(len, width - x);
+				long cx0 = Math.max(x, core[0]);
+				long cx1 = Math.min(x + rowLen, core[2]);
+				if (y >= core[1] && y < core[3] && cx0 < cx1) {
+					if (size + 2 > clipped.length)
+						clipped = Arrays.copyOf(clipped, clipped.length * 2);
+					clipped[size ++] = y * width + cx0;
+					clipped[size ++] = cx1 - cx0;
+					if (hasLeft && cx0 == core[0])
+						left.add((int) y);
+					if (hasRight && cx1 == core[2])
+						right.add((int) y);
+					if (hasTop && y == core[1])
+						for (long c = cx0; c < cx1; c ++)
+							top.add((int) c);
+					if (hasBottom && y == core[3] - 1)
+						for (long c = cx0; c < cx1; c ++)
+							bottom.add((int) c);
+				}
+				start += rowLen;
+				len -= rowLen;
+			}
+		}
+		if (size == 0)
+			return null;
+		Piece piece = new Piece();
+		piece.rle = Arrays.copyOf(clipped, size);
+		long kept = 0;
+		for (int i = 1; i < size; i += 2)
+			kept += clipped[i];
+		piece.contour = mask.getContour();
+		piece.clipped = kept != total;
+		piece.core = core;
+		piece.left = left.toSortedSet();
+		piece.right = hasRight ? right.toSortedSet() : null;
+		piece.top = top.toSortedSet();
+		piece.bottom = hasBottom ? bottom.toSortedSet() : null;
+		if (piece.right != null && piece.right.length == 0)
+			piece.right = null;
+		if (piece.bottom != null && piece.bottom.length == 0)
+			piece.bottom = null;
+		piece.open = (piece.right == null ? 0 : 1) + (piece.bottom == null ? 0 : 1);
+		piece.members = new ArrayList<Piece>(1);
+		piece.members.add(piece);
+		return piece;
+	}
+
+	/**
+	 * Join the pieces on both sides of a seam that are in contact along enough of the extent of the smaller one
+	 */
+	private void stitch(List<Piece> before, List<Piece> after, boolean vertical) {
+		if (before.size() == 0 || after.size() == 0)
+			return;
+		Map<Integer, List<Piece>> byCoord = new HashMap<Integer, List<Piece>>();
+		for (Piece pp : before) {
+			for (int c : vertical ? pp.right : pp.bottom)
+				byCoord.computeIfAbsent(c, k -> new ArrayList<Piece>(1)).add(pp);
+		}
+		for (Piece qq : after) {
+			int[] seam = vertical ? qq.left : qq.top;
+			if (seam.length == 0)
+				continue;
+			Map<Piece, Integer> contacts = new IdentityHashMap<Piece, Integer>();
+			for (int c : seam) {
+				List<Piece> touching = byCoord.get(c);
+				if (touching != null)
+					touching.forEach(pp -> contacts.merge(pp, 1, Integer::sum));
+			}
+			for (Map.Entry<Piece, Integer> ee : contacts.entrySet()) {
+				Piece pp = ee.getKey();
+				int extent = Math.min(seam.length, (vertical ? pp.right : pp.bottom).length);
+				if (ee.getValue() >= SEAM_CONTACT_RATIO * extent)
+					union(pp, qq);
+			}
+		}
+	}
+
+	private static Piece find(Piece piece) {
+		Piece root = piece;
+		while (root.parent != root)
+			root = root.parent;
+		while (piece.parent != root) {
+			Piece next = piece.parent;
+			piece.parent = root;
+			piece = next;
+		}
+		return root;
+	}
+
+	private static void union(Piece a, Piece b) {
+		Piece ra = find(a);
+		Piece rb = find(b);
+		if (ra == rb)
+			return;
+		if (ra.members.size() < rb.members.size()) {
+			Piece tmp = ra;
+			ra = rb;
+			rb = tmp;
+		}
+		rb.parent = ra;
+		ra.members.addAll(rb.members);
+		ra.open += rb.open;
+		rb.members = null;
+	}
+
+	private void deliver(Piece root) {
+		List<Piece> members = root.members;
+		root.members = null;
+		nPending -= members.size();
+		nDelivered ++;
+		if (members.size() == 1 && !root.clipped) {
+			consumer.accept(Mask.build(root.contour, root.rle));
+			return;
+		}
+		consumer.accept(Mask.build(mergeContours(members), mergeRLE(members)));
+	}
+
+	/**
+	 * Concatenate the runs of the pieces in raster order, joining the runs that overlap in the same row
+	 */
+	private long[] mergeRLE(List<Piece> members) {
+		int total = 0;
+		for (Piece pp : members)
+			total += pp.rle.length / 2;
+		long[][] runs = new long[total][];
+		int n = 0;
+		for (Piece pp : members)
+			for (int i = 0; i < pp.rle.length; i += 2)
+				runs[n ++] = new long[] {pp.rle[i], pp.rle[i + 1]};
+		Arrays.sort(runs, (a, b) -> Long.compare(a[0], b[0]));
+		long[] rle = new long[2 * total];
+		int size = 0;
+		for (long[] run : runs) {
+			if (size > 0) {
+				long prevEnd = rle[size - 2] + rle[size - 1];
+				if (run[0] < prevEnd || (run[0] == prevEnd && run[0] % width != 0)) {
+					rle[size - 1] = Math.max(prevEnd, run[0] + run[1]) - rle[size - 2];
+					continue;
+				}
+			}
+			rle[size ++] = run[0];
+			rle[size ++] = run[1];
+		}
+		return Arrays.copyOf(rle, size);
+	}
+
+	/**
+	 * Union of the contours of the pieces clipped to their cores. The cores are shifted half a pixel so
+	 * the contours of the pieces at both sides of a seam share an edge. The outer boundary of the biggest
+	 * part is kept
+	 */
+	private static Polygon mergeContours(List<Piece> members) {
+		Area area = new Area();
+		for (Piece pp : members) {
+			Area part = new Area(pp.contour);
+			if (pp.clipped)
+				part.intersect(new Area(new Rectangle2D.Double(pp.core[0] - 0.5, pp.core[1] - 0.5, 
+						pp.core[2] - pp.core[0], pp.core[3] - pp.core[1])));
+			area.add(part);
+		}
+		Polygon best = null;
+		double bestArea = 0;
+		double[] coords = new double[6];
+		List<int[]> current = new ArrayList<int[]>();
+		for (PathIterator it = area.getPathIterator(null); !it.isDone(); it.next()) {
+			int type = it.currentSegment(coords);
+			if (type == PathIterator.SEG_MOVETO)
+				current.clear();
+			if (type == PathIterator.SEG_MOVETO || type == PathIterator.SEG_LINETO)
+				current.add(new int[] {(int) Math.round(coords[0]), (int) Math.round(coords[1])});
+			if (type == PathIterator.SEG_CLOSE && current.size() > 2) {
+				int[] xs = current.stream().mapToInt(pp -> pp[0]).toArray();
+				int[] ys = current.stream().mapToInt(pp -> pp[1]).toArray();
+				double a = 0;
+				for (int i = 0, j = xs.length - 1; i < xs.length; j = i ++)
+					a += (double) xs[j] * ys[i] - (double) xs[i] * ys[j];
+				if (Math.abs(a) > bestArea) {
+					bestArea = Math.abs(a);
+					best = new Polygon(xs, ys, xs.length);
+				}
+			}
+		}
+		if (best != null)
+			return best;
+		Piece biggest = members.get(0);
+		for (Piece pp : members)
+			if (pp.rle.length > biggest.rle.length)
+				biggest = pp;
+		return biggest.contour;
+	}
+
+	/**
+	 * Part of an object that lies in the core of one tile, and node of the union-find. The root of each
+	 * set keeps the members of the set and the number of seams not processed yet that they touch
+	 */
+	private static class Piece {
+
+		private Piece parent = this;
+
+		private long[] rle;
+
+		private Polygon contour;
+
+		private boolean clipped;
+
+		private long[] core;
+
+		private int[] left;
+
+		private int[] right;
+
+		private int[] top;
+
+		private int[] bottom;
+
+		private int open;
+
+		private List<Piece> members;
+	}
+
+	private static class IntList {
+
+		private int[] arr = new int[8];
+
+		private int size = 0;
+
+		private void add(int v) {
+			if (size == arr.length)
+				arr = Arrays.copyOf(arr, size * 2);
+			arr[size ++] = v;
+		}
+
+		private int[] toSortedSet() {
+			int[] sorted = Arrays.copyOf(arr, size);
+			Arrays.sort(sorted);
+			int n = 0;
+			for (int i = 0; i < sorted.length; i ++)
+				if (n == 0 || sorted[n - 1] != sorted[i])
+					sorted[n ++] = sorted[i];
+			return Arrays.copyOf(sorted, n);
+		}
+	}
+}
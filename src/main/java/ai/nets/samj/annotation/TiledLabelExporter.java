@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.annotation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import ai.nets.samj.annotation.LabelRenderer.Buckets;
+
+/**
+ * Class that writes the label image of the masks annotated in an image directly to disk, chunk by chunk,
+ * using the Zarr (v2) array layout: a directory with the '.zarray' metadata and one file per chunk.
+ * The result can be opened with any Zarr reader (zarr-python, N5/Zarr readers of ImgLib2, napari...).
+ *
+ * The whole label image is never created. The runs of the masks are first distributed among the chunks they
+ * cover, as in {@link LabelRenderer}, and then the chunks are rendered and written in parallel, each thread reusing
+ * a single chunk buffer. The memory used depends on the number of runs of the masks and on the number of threads,
+ * but not on the size of the image. Chunks without any object are not written, Zarr readers fill them with 0.
+ * The pixels of the i-th mask get the label i + 1, and pixels covered by several masks get the label of the last one.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class TiledLabelExporter {
+
+	/**
+	 * Default size of the side of each of the chunks
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 512;
+
+	/**
+	 * Write the label image of the masks as a Zarr array with chunks of {@link #DEFAULT_CHUNK_SIZE}
+	 * and zlib compression
+	 * @param dir
+	 * 	directory of the Zarr array, it is created if it does not exist. The chunks of a previous export in it are deleted
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	all the masks of the objects of the image
+	 * @throws IOException if there is any error writing the files
+	 */
+	public static void exportZarr(File dir, long width, long height, List<Mask> masks) throws IOException {
+		exportZarr(dir, width, height, masks, new int[] {DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_SIZE}, true);
+	}
+
+	/**
+	 * Write the label image of the masks as a Zarr array with shape [height, width]. The labels are
+	 * stored as unsigned 16 bit integers if there are fewer than 65536 masks and as unsigned 32 bit integers otherwise
+	 * @param dir
+	 * 	directory of the Zarr array, it is created if it does not exist. The chunks of a previous export in it are deleted
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param masks
+	 * 	all the masks of the objects of the image
+	 * @param chunkSize
+	 * 	size of the chunks, [width, height]
+	 * @param compress
+	 * 	whether to compress the chunks with zlib
+	 * @throws IOException if there is any error writing the files
+	 */
+	public static void exportZarr(File dir, long width, long height, List<Mask> masks, int[] chunkSize, boolean compress)
+			throws IOException {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("The dimensions of the image should be positive.");
+		if (chunkSize.length != 2 || chunkSize[0] <= 0 || chunkSize[1] <= 0)
+			throw new IllegalArgumentException("The size of the chunks should be two positive integers: [width, height].");
+		if ((long) chunkSize[0] * chunkSize[1] * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The chunks are too big, use smaller chunks.");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create the directory: " + dir.getAbsolutePath());
+		deleteChunks(dir);
+		int bytesPerPixel = masks.size() <= 0xFFFF ? 2 : 4;
+		writeMetadata(dir, width, height, chunkSize, bytesPerPixel, compress);
+		Buckets buckets = LabelRenderer.distributeRuns(width, height, masks, chunkSize);
+		int chunkBytes = chunkSize[0] * chunkSize[1] * bytesPerPixel;
+		ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[chunkBytes]);
+		try {
+			IntStream.range(0, buckets.nCells).parallel().filter(cc -> buckets.sizes[cc] > 0).forEach(cc -> {
+				byte[] chunk = buffers.get();
+				renderChunk(chunk, buckets.entries[cc], buckets.sizes[cc], chunkSize[0], bytesPerPixel);
+				File file = new File(dir, (cc / buckets.cellsX) + "." + (cc % buckets.cellsX));
+				try {
+					writeChunk(file, chunk, chunkBytes, compress);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Delete the chunk files left by a previous export. The empty chunks are not written, so the old ones
+	 * would be read instead of the fill value
+	 */
+	private static void deleteChunks(File dir) throws IOException {
+		File[] chunks = dir.listFiles((d, name) -> name.matches("\\d+\\.\\d+"));
+		if (chunks == null)
+			throw new IOException("Unable to list the files of the directory: " + dir.getAbsolutePath());
+		for (File chunk : chunks) {
+			if (!chunk.delete())
+				throw new IOException("Unable to delete the chunk of a previous export: " + chunk.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Fill the chunk with the runs that fall in it, stored as 4 ints: x and y relative to the chunk,
+	 * length and index of the mask. The values are little endian, the chunk is row-major
+	 */
+	private static void renderChunk(byte[] chunk, int[] entries, int size, int chunkWidth, int bytesPerPixel) {
+		Arrays.fill(chunk, (byte) 0);
+		for (int i = 0; i < size; i += 4) {
+			long label = entries[i + 3] + 1L;
+			int pos = (entries[i] + entries[i + 1] * chunkWidth) * bytesPerPixel;
+			for (int k = 0; k < entries[i + 2]; k ++) {
+				chunk[pos ++] = (byte) label;
+				chunk[pos ++] = (byte) (label >>> 8);
+				if (bytesPerPixel == 4) {
+					chunk[pos ++] = (byte) (label >>> 16);
+					chunk[pos ++] = (byte) (label >>> 24);
+				}
+			}
+		}
+	}
+
+	private static void writeChunk(File file, byte[] chunk, int length, boolean compress) throws IOException {
+		try (OutputStream os = new FileOutputStream(file)) {
+			if (!compress) {
+				os.write(chunk, 0, length);
+				return;
+			}
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try (DeflaterOutputStream dos = new DeflaterOutputStream(os, deflater, 1 << 16)) {
+				dos.write(chunk, 0, length);
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	private static void writeMetadata(File dir, long width, long height, int[] chunkSize, int bytesPerPixel, boolean compress)
+			throws IOException {
+		String json = "{" + System.lineSeparator()
+				+ "    \"zarr_format\": 2," + System.lineSeparator()
+				+ "    \"shape\": [" + height + ", " + width + "]," + System.lineSeparator()
+				+ "    \"chunks\": [" + chunkSize[1] + ", " + chunkSize[0] + "]," + System.lineSeparator()
+				+ "    \"dtype\": \"<u" + bytesPerPixel + "\"," + System.lineSeparator()
+				+ "    \"compressor\": " + (compress ? "{\"id\": \"zlib\", \"level\": 1}" : "null") + "," + System.lineSeparator()
+				+ "    \"fill_value\": 0," + System.lineSeparator()
+				+ "    \"order\": \"C\"," + System.lineSeparator()
+				+ "    \"filters\": null," + System.lineSeparator()
+				+ "    \"dimension_separator\": \".\"" + System.lineSeparator()
+				+ "}" + System.lineSeparator();
+		try (OutputStream os = new FileOutputStream(new File(dir, ".zarray"))) {
+			os.write(json.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,528 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.batch;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.batch.BatchRunner.Stage;
+import ai.nets.samj.batch.BatchRunner.Statistics;
+import ai.nets.samj.communication.model.SAMModel;
+import ai.nets.samj.models.AbstractSamJ;
+import ai.nets.samj.models.BatchPromptPlanner.Cluster;
+import ai.nets.samj.models.ConnectedComponents;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Class that estimates how long a batch of prompts or a directory job will take and how much memory it will need,
+ * without running the model.
+ *
+ * The crops that would be encoded are obtained with the same plan used by the models, so big images count one
+ * encoding per cluster of prompts. The time is computed from a {@link Calibration}, measured once on a sample image
+ * or taken from a previous {@link BatchRunner} run. The memory estimates are:
+ * <ul>
+ * <li>shared memory: the biggest image copied to /dev/shm to be encoded, per worker</li>
+ * <li>peak RSS: the images in flight and the masks of one job on the Java side, plus the model and the
+ * shared image on the Python side of every worker</li>
+ * </ul>
+ * An {@link Estimate} contains warnings when the shared memory does not fit in /dev/shm or the peak RSS exceeds
+ * the memory budget, which by default is the physical memory of the machine.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class BatchEstimator {
+
+	/**
+	 * Default size of a mask in the heap, contour and RLE, used when it has not been measured
+	 */
+	public static final long DEFAULT_BYTES_PER_MASK = 16 * 1024;
+
+	/**
+	 * Fraction of the memory budget above which a warning is given
+	 */
+	public static double WARNING_FRACTION = 0.8;
+
+	private static final File SHM_DIR = new File("/dev/shm");
+
+	private final Calibration calibration;
+
+	private long memoryBudget = getPhysicalMemory();
+
+	private long shmCapacity = SHM_DIR.isDirectory() ? SHM_DIR.getTotalSpace() : -1;
+
+	private int nWorkers = 1;
+
+	private int imagesInFlight = 1;
+
+	/**
+	 * Measured cost of the model, used to convert a plan into time and memory
+	 */
+	public static class Calibration {
+
+		private final double encodeFixedMs;
+
+		private final double encodeMsPerMegapixel;
+
+		private final double decodeMsPerPrompt;
+
+		private long bytesPerMask = DEFAULT_BYTES_PER_MASK;
+
+		private int shmBytesPerPixel = 3;
+
+		private long modelBytes = 0;
+
+		/**
+		 * Create a calibration from known costs
+		 * @param encodeFixedMs
+		 * 	time of every encoding that does not depend on the size of the image, in milliseconds
+		 * @param encodeMsPerMegapixel
+		 * 	time of every encoding per megapixel sent to the encoder, in milliseconds
+		 * @param decodeMsPerPrompt
+		 * 	time of the decoding of a prompt, in milliseconds
+		 */
+		public Calibration(double encodeFixedMs, double encodeMsPerMegapixel, double decodeMsPerPrompt) {
+			if (encodeFixedMs < 0 || encodeMsPerMegapixel < 0 || decodeMsPerPrompt < 0)
+				throw new IllegalArgumentException("The times of the calibration cannot be negative.");
+			this.encodeFixedMs = encodeFixedMs;
+			this.encodeMsPerMegapixel = encodeMsPerMegapixel;
+			this.decodeMsPerPrompt = decodeMsPerPrompt;
+		}
+
+		/**
+		 * Measure the costs of a model on a sample image. The sample is encoded at two sizes up to 512x512, to
+		 * separate the fixed time of the encoder from the time that depends on the size, and a grid of point prompts
+		 * is decoded. The image of the model is the sample afterwards
+		 * @param <T>
+		 * 	ImgLib2 data type of the sample
+		 * @param model
+		 * 	the model, it is loaded if it was not
+		 * @param sample
+		 * 	an image similar to the ones of the job, with the axes of the model
+		 * @param nPrompts
+		 * 	number of point prompts decoded
+		 * @return the calibration of the model
+		 * @throws IOException if any of the files needed to run the Python script is missing 
+		 * @throws RuntimeException if there is any error running the Python process
+		 * @throws InterruptedException if the process in interrupted
+		 */
+		public static <T extends RealType<T> & NativeType<T>>
+		Calibration measure(SAMModel model, RandomAccessibleInterval<T> sample, int nPrompts) 
+				throws IOException, RuntimeException, InterruptedException {
+			if (nPrompts < 1)
+				throw new IllegalArgumentException("At least one prompt is needed to measure the decoder.");
+			RandomAccessibleInterval<T> big = cropSample(sample, 512);
+			RandomAccessibleInterval<T> small = cropSample(sample, 256);
+			model.setImage(small, null);
+			long t0 = System.nanoTime();
+			model.setImage(small, null);
+			long t1 = System.nanoTime();
+			model.setImage(big, null);
+			long t2 = System.nanoTime();
+			long w = big.dimension(0);
+			long h = big.dimension(1);
+			int side = (int) Math.ceil(Math.sqrt(nPrompts));
+			List<int[]> points = new ArrayList<int[]>();
+			for (int i = 0; i < nPrompts; i ++)
+				points.add(new int[] {(int) ((i % side + 0.5) * w / side), (int) ((i / side + 0.5) * h / side)});
+			long t3 = System.nanoTime();
+			List<Mask> masks = model.processBatchOfPrompts(points, null, null);
+			long t4 = System.nanoTime();
+			double mpSmall = small.dimension(0) * small.dimension(1) / 1e6;
+			double mpBig = w * h / 1e6;
+			double msSmall = (t1 - t0) / 1e6;
+			double msBig = (t2 - t1) / 1e6;
+			double perMp = mpBig > mpSmall ? Math.max(0, (msBig - msSmall) / (mpBig - mpSmall)) : 0;
+			Calibration calibration = new Calibration(Math.max(0, msBig - perMp * mpBig), perMp, (t4 - t3) / 1e6 / nPrompts);
+			if (masks.size() > 0)
+				calibration.bytesPerMask = masks.stream().mapToLong(BatchEstimator::getMaskBytes).sum() / masks.size();
+			calibration.shmBytesPerPixel = model.getBytesPerEncodedPixel();
+			calibration.modelBytes = (long) (model.getWeightsSize() * 1024 * 1024);
+			return calibration;
+		}
+
+		/**
+		 * Take the costs from a previous run of the {@link BatchRunner}. The encoding time is the mean of each image,
+		 * so the estimates are good for images of a similar size to the ones of that run
+		 * @param stats
+		 * 	the statistics of the run
+		 * @param model
+		 * 	the model used in the run
+		 * @return the calibration of the model
+		 */
+		public static Calibration fromStatistics(Statistics stats, SAMModel model) {
+			if (stats.getProcessed() == 0 || stats.getNumberOfPrompts() == 0)
+				throw new IllegalArgumentException("The run did not process any prompt, it cannot be used as calibration.");
+			Calibration calibration = new Calibration(stats.getBusySeconds(Stage.ENCODE) * 1000 / stats.getProcessed(), 0, 
+					stats.getBusySeconds(Stage.DECODE) * 1000 / stats.getNumberOfPrompts());
+			calibration.shmBytesPerPixel = model.getBytesPerEncodedPixel();
+			calibration.modelBytes = (long) (model.getWeightsSize() * 1024 * 1024);
+			return calibration;
+		}
+
+		/**
+		 * 
+		 * @param bytesPerMask
+		 * 	mean size of a mask in the heap
+		 */
+		public void setBytesPerMask(long bytesPerMask) {
+			this.bytesPerMask = bytesPerMask;
+		}
+
+		/**
+		 * 
+		 * @param shmBytesPerPixel
+		 * 	number of bytes of each pixel of the image copied to shared memory to be encoded
+		 */
+		public void setShmBytesPerPixel(int shmBytesPerPixel) {
+			this.shmBytesPerPixel = shmBytesPerPixel;
+		}
+
+		/**
+		 * 
+		 * @param modelBytes
+		 * 	memory used by the Python process of the model before receiving any image
+		 */
+		public void setModelBytes(long modelBytes) {
+			this.modelBytes = modelBytes;
+		}
+
+		private double encodeMs(long encodedPixels) {
+			return encodeFixedMs + encodeMsPerMegapixel * encodedPixels / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("encoder %.1f ms + %.1f ms/megapixel, decoder %.2f ms/prompt, %d bytes/mask", 
+					encodeFixedMs, encodeMsPerMegapixel, decodeMsPerPrompt, bytesPerMask);
+		}
+	}
+
+	/**
+	 * Result of an estimation
+	 */
+	public static class Estimate {
+
+		private int nImages;
+
+		private long nEncodings;
+
+		private long nPrompts;
+
+		private double seconds;
+
+		private long peakRssBytes;
+
+		private long shmBytes;
+
+		private final List<String> warnings = new ArrayList<String>();
+
+		/**
+		 *
+		 * @return the number of images of the job
+		 */
+		public int getNumberOfImages() {
+			return nImages;
+		}
+
+		/**
+		 *
+		 * @return the number of times the encoder would be run
+		 */
+		public long getNumberOfEncodings() {
+			return nEncodings;
+		}
+
+		/**
+		 *
+		 * @return the number of prompts of the job
+		 */
+		public long getNumberOfPrompts() {
+			return nPrompts;
+		}
+
+		/**
+		 *
+		 * @return the estimated duration of the job, in seconds
+		 */
+		public double getSeconds() {
+			return seconds;
+		}
+
+		/**
+		 *
+		 * @return the estimated peak of resident memory of the Java and Python processes together, in bytes
+		 */
+		public long getPeakRssBytes() {
+			return peakRssBytes;
+		}
+
+		/**
+		 *
+		 * @return the estimated peak of shared memory, in bytes
+		 */
+		public long getShmBytes() {
+			return shmBytes;
+		}
+
+		/**
+		 *
+		 * @return the problems that the job is likely to have, empty if none is expected
+		 */
+		public List<String> getWarnings() {
+			return Collections.unmodifiableList(warnings);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append(String.format("%d images, %d prompts, %d encodings: %.1f s, peak RSS %.1f MB, shared memory %.1f MB", 
+					nImages, nPrompts, nEncodings, seconds, peakRssBytes / 1048576.0, shmBytes / 1048576.0));
+			for (String ww : warnings)
+				str.append(System.lineSeparator()).append("  WARNING: ").append(ww);
+			return str.toString();
+		}
+	}
+
+	/**
+	 * Create an estimator
+	 * @param calibration
+	 * 	the measured costs of the model
+	 */
+	public BatchEstimator(Calibration calibration) {
+		this.calibration = calibration;
+	}
+
+	/**
+	 * 
+	 * @param bytes
+	 * 	memory available for the job, by default the physical memory of the machine
+	 */
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = bytes;
+	}
+
+	/**
+	 * 
+	 * @param bytes
+	 * 	size of the shared memory, by default the size of /dev/shm, or -1 if it is not limited
+	 */
+	public void setShmCapacity(long bytes) {
+		this.shmCapacity = bytes;
+	}
+
+	/**
+	 * Set the number of model processes that run the job at the same time, as in the {@link WorkerPool}
+	 * @param nWorkers
+	 * 	number of workers
+	 */
+	public void setNumberOfWorkers(int nWorkers) {
+		if (nWorkers < 1)
+			throw new IllegalArgumentException("There should be at least one worker.");
+		this.nWorkers = nWorkers;
+	}
+
+	/**
+	 * Set the number of images kept in memory at the same time in a directory job. For the {@link BatchRunner}
+	 * it is {@link #getImagesInFlight(int)}
+	 * @param imagesInFlight
+	 * 	number of images in memory at the same time
+	 */
+	public void setImagesInFlight(int imagesInFlight) {
+		if (imagesInFlight < 1)
+			throw new IllegalArgumentException("There should be at least one image in memory.");
+		this.imagesInFlight = imagesInFlight;
+	}
+
+	/**
+	 * 
+	 * @param queueCapacity
+	 * 	capacity of the queues of the {@link BatchRunner}
+	 * @return the maximum number of images that the runner keeps in memory: one per stage and the ones in the queues
+	 */
+	public static int getImagesInFlight(int queueCapacity) {
+		return BatchRunner.N_THREADS + 3 * queueCapacity;
+	}
+
+	/**
+	 * Estimate a batch of prompts on an image
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param image
+	 * 	the image, it is not read
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @return the estimate
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	Estimate estimate(RandomAccessibleInterval<T> image, List<int[]> points, List<Rectangle> rects) {
+		return estimate(image.dimensionsAsLongArray(), Util.getTypeFromInterval(image).getBitsPerPixel(), points, rects);
+	}
+
+	/**
+	 * Estimate a batch of prompts on an image of the given size
+	 * @param dims
+	 * 	dimensions of the image, [width, height, channels]
+	 * @param bitsPerPixel
+	 * 	bits of each sample of the image
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @return the estimate
+	 */
+	public Estimate estimate(long[] dims, int bitsPerPixel, List<int[]> points, List<Rectangle> rects) {
+		Estimate estimate = new Estimate();
+		long[] job = planImage(dims, points, rects, null, estimate);
+		long imageBytes = getImageBytes(dims, bitsPerPixel);
+		estimate.nImages = 1;
+		estimate.shmBytes = job[1] * nWorkers;
+		estimate.peakRssBytes = imageBytes + estimate.nPrompts * calibration.bytesPerMask 
+				+ nWorkers * (calibration.modelBytes + job[1]);
+		estimate.seconds = job[0] / 1000.0 / nWorkers;
+		checkLimits(estimate, imageBytes + estimate.nPrompts * calibration.bytesPerMask);
+		return estimate;
+	}
+
+	/**
+	 * Estimate a directory job. The images of the items are not read, the mask prompts are labelled to count their objects
+	 * @param items
+	 * 	the images and their prompts
+	 * @return the estimate
+	 */
+	public Estimate estimate(List<? extends BatchItem<?>> items) {
+		Estimate estimate = new Estimate();
+		double ms = 0;
+		long maxShm = 0;
+		long maxImage = 0;
+		long maxMasks = 0;
+		for (BatchItem<?> item : items) {
+			long promptsBefore = estimate.nPrompts;
+			long[] dims = item.getImage().dimensionsAsLongArray();
+			long[] job = planImage(dims, item.getPoints(), item.getRects(), getMaskSeeds(item.getMask()), estimate);
+			ms += job[0];
+			maxShm = Math.max(maxShm, job[1]);
+			maxImage = Math.max(maxImage, getImageBytes(dims, Util.getTypeFromInterval(item.getImage()).getBitsPerPixel()));
+			maxMasks = Math.max(maxMasks, (estimate.nPrompts - promptsBefore) * calibration.bytesPerMask);
+		}
+		long javaBytes = Math.min(imagesInFlight, items.size()) * (maxImage + maxMasks);
+		estimate.nImages = items.size();
+		estimate.shmBytes = maxShm * nWorkers;
+		estimate.peakRssBytes = javaBytes + nWorkers * (calibration.modelBytes + maxShm);
+		estimate.seconds = ms / 1000.0 / nWorkers;
+		checkLimits(estimate, javaBytes);
+		return estimate;
+	}
+
+	/**
+	 * Add the encodings and prompts of an image to the estimate
+	 * @return the time in milliseconds and the biggest shared memory of the image
+	 */
+	private long[] planImage(long[] dims, List<int[]> points, List<Rectangle> rects, List<List<int[]>> maskSeeds, 
+			Estimate estimate) {
+		long nPrompts = (points == null ? 0 : points.size()) + (rects == null ? 0 : rects.size()) 
+				+ (maskSeeds == null ? 0 : maskSeeds.size());
+		double ms = nPrompts * calibration.decodeMsPerPrompt;
+		long maxShm = 0;
+		if (AbstractSamJ.isSmallImage(dims)) {
+			ms += calibration.encodeMs(dims[0] * dims[1]);
+			maxShm = dims[0] * dims[1] * calibration.shmBytesPerPixel;
+			estimate.nEncodings ++;
+		} else if (nPrompts > 0) {
+			for (Cluster cc : AbstractSamJ.planBatchOfPrompts(points, rects, maskSeeds, dims)) {
+				long pixels = (cc.getCrop().width / cc.getScale()) * (long) (cc.getCrop().height / cc.getScale());
+				ms += calibration.encodeMs(pixels);
+				maxShm = Math.max(maxShm, pixels * calibration.shmBytesPerPixel);
+				estimate.nEncodings ++;
+			}
+		}
+		estimate.nPrompts += nPrompts;
+		return new long[] {(long) Math.ceil(ms), maxShm};
+	}
+
+	/**
+	 * Seed points of each of the objects of a mask prompt, as the models decode one prompt per object
+	 */
+	private static <T extends RealType<T>> List<List<int[]>> getMaskSeeds(RandomAccessibleInterval<?> mask) {
+		if (mask == null)
+			return null;
+		@SuppressWarnings("unchecked")
+		RandomAccessibleInterval<T> rai = (RandomAccessibleInterval<T>) mask;
+		return ConnectedComponents.label(rai).getSeeds(ConnectedComponents.DEFAULT_SEEDS_PER_COMPONENT);
+	}
+
+	private void checkLimits(Estimate estimate, long javaBytes) {
+		if (shmCapacity >= 0 && estimate.shmBytes > shmCapacity)
+			estimate.warnings.add(String.format("the images to encode need %.1f MB of shared memory but %s has %.1f MB", 
+					estimate.shmBytes / 1048576.0, SHM_DIR, shmCapacity / 1048576.0));
+		else if (shmCapacity >= 0 && estimate.shmBytes > WARNING_FRACTION * shmCapacity)
+			estimate.warnings.add(String.format("the images to encode need %.0f%% of the shared memory of %s", 
+					100.0 * estimate.shmBytes / shmCapacity, SHM_DIR));
+		if (memoryBudget > 0 && estimate.peakRssBytes > memoryBudget)
+			estimate.warnings.add(String.format("the job needs about %.1f MB of memory but the budget is %.1f MB", 
+					estimate.peakRssBytes / 1048576.0, memoryBudget / 1048576.0));
+		else if (memoryBudget > 0 && estimate.peakRssBytes > WARNING_FRACTION * memoryBudget)
+			estimate.warnings.add(String.format("the job needs %.0f%% of the memory budget", 
+					100.0 * estimate.peakRssBytes / memoryBudget));
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		if (javaBytes > WARNING_FRACTION * maxHeap)
+			estimate.warnings.add(String.format("the images and masks need about %.1f MB of the Java heap, which is limited to %.1f MB, "
+					+ "consider setting a MaskStore", javaBytes / 1048576.0, maxHeap / 1048576.0));
+	}
+
+	private static long getImageBytes(long[] dims, int bitsPerPixel) {
+		long samples = 1;
+		for (long dd : dims)
+			samples *= dd;
+		return samples * bitsPerPixel / 8;
+	}
+
+	private static long getMaskBytes(Mask mask) {
+		return 64 + 8L * mask.getRLEMask().length + 8L * mask.getContour().npoints;
+	}
+
+	private static <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<T> cropSample(RandomAccessibleInterval<T> sample, long side) {
+		long[] min = sample.minAsLongArray();
+		long[] max = sample.maxAsLongArray();
+		max[0] = Math.min(max[0], min[0] + side - 1);
+		max[1] = Math.min(max[1], min[1] + side - 1);
+		return Views.interval(sample, min, max);
+	}
+
+	private static long getPhysicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+		return Runtime.getRuntime().maxMemory();
+	}
+}
@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.batch;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Class that contains one of the images processed by the {@link BatchRunner} together with its prompts.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ * @param <T>
+ * 	ImgLib2 data type of the image
+ */
+public class BatchItem<T extends RealType<T> & NativeType<T>> {
+
+	private final String name;
+
+	private final RandomAccessibleInterval<T> image;
+
+	private final List<int[]> points;
+
+	private final List<Rectangle> rects;
+
+	private final RandomAccessibleInterval<?> mask;
+
+	private BatchItem(String name, RandomAccessibleInterval<T> image, List<int[]> points, 
+			List<Rectangle> rects, RandomAccessibleInterval<?> mask) {
+		this.name = name;
+		this.image = image;
+		this.points = points;
+		this.rects = rects;
+		this.mask = mask;
+	}
+
+	/**
+	 * Create an item to be processed in batch
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param name
+	 * 	name that identifies the image, for example its file name
+	 * @param image
+	 * 	the image, with axes "xyc"
+	 * @param points
+	 * 	point prompts, [x, y] in image coordinates. Can be null
+	 * @param rects
+	 * 	rectangle prompts in image coordinates. Can be null
+	 * @return the item
+	 */
+	public static <T extends RealType<T> & NativeType<T>> 
+	BatchItem<T> build(String name, RandomAccessibleInterval<T> image, List<int[]> points, List<Rectangle> rects) {
+		return build(name, image, points, rects, null);
+	}
+
+	/**
+	 * Create an item to be processed in batch
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param name
+	 * 	name that identifies the image, for example its file name
+	 * @param image
+	 * 	the image, with axes "xyc"
+	 * @param points
+	 * 	point prompts, [x, y] in image coordinates. Can be null
+	 * @param rects
+	 * 	rectangle prompts in image coordinates. Can be null
+	 * @param mask
+	 * 	mask prompt of integer type, with the same width and height as the image. Can be null
+	 * @return the item
+	 */
+	public static <T extends RealType<T> & NativeType<T>> 
+	BatchItem<T> build(String name, RandomAccessibleInterval<T> image, List<int[]> points, List<Rectangle> rects, 
+			RandomAccessibleInterval<?> mask) {
+		if (image == null)
+			throw new IllegalArgumentException("The image of the batch item '" + name + "' cannot be null.");
+		return new BatchItem<T>(name, image, 
+				points == null ? Collections.<int[]>emptyList() : Collections.unmodifiableList(new ArrayList<int[]>(points)), 
+				rects == null ? Collections.<Rectangle>emptyList() : Collections.unmodifiableList(new ArrayList<Rectangle>(rects)), 
+				mask);
+	}
+
+	/**
+	 * Copy of the item that refers to another image, used to replace the image by a preprocessed version of it
+	 * @param <R>
+	 * 	ImgLib2 data type of the new image
+	 * @param newImage
+	 * 	the new image, with the same dimensions
+	 * @return the new item, with the same name and prompts
+	 */
+	public <R extends RealType<R> & NativeType<R>> BatchItem<R> withImage(RandomAccessibleInterval<R> newImage) {
+		return new BatchItem<R>(name, newImage, points, rects, mask);
+	}
+
+	/**
+	 *
+	 * @return the name that identifies the image
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @return the image
+	 */
+	public RandomAccessibleInterval<T> getImage() {
+		return image;
+	}
+
+	/**
+	 *
+	 * @return the point prompts, [x, y] in image coordinates
+	 */
+	public List<int[]> getPoints() {
+		return points;
+	}
+
+	/**
+	 *
+	 * @return the rectangle prompts in image coordinates
+	 */
+	public List<Rectangle> getRects() {
+		return rects;
+	}
+
+	/**
+	 *
+	 * @return the mask prompt, null if there is none
+	 */
+	public RandomAccessibleInterval<?> getMask() {
+		return mask;
+	}
+
+	/**
+	 *
+	 * @return the number of prompts of the item, counting the mask prompt as one
+	 */
+	public int getNumberOfPrompts() {
+		return points.size() + rects.size() + (mask == null ? 0 : 1);
+	}
+}
@@ -0,0 +1,518 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.batch;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.communication.model.SAMModel;
+import ai.nets.samj.ui.SAMJLogger;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Class that runs a model without GUI on many images, for example all the images of a directory with the
+ * prompts produced by a detector.
+ *
+ * The work is organized as a pipeline of {@link Stage}s, each of them with its own thread, connected by bounded queues.
+ * While the model encodes or decodes one image, the next images are already being read and loaded in memory, and the
+ * results of the previous one are being written. As the model has a single Python process, encoding and decoding
+ * share the same thread. The capacity of the queues limits the number of images in memory at the same time.
+ *
+ * The time each stage is busy is measured, so the {@link Statistics} tell which stage limits the throughput.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class BatchRunner {
+
+	/**
+	 * Stages of the pipeline
+	 */
+	public enum Stage {
+		/**
+		 * Reading the image and its prompts with the {@link ImageReader}
+		 */
+		READ,
+		/**
+		 * Loading the pixels of the image in memory, so the model does not wait for lazy or disk based images
+		 */
+		PREPROCESS,
+		/**
+		 * Staging the image in shared memory and computing its embeddings
+		 */
+		ENCODE,
+		/**
+		 * Decoding the prompts against the embeddings
+		 */
+		DECODE,
+		/**
+		 * Writing the masks with the {@link ResultWriter}
+		 */
+		WRITE
+	}
+
+	/**
+	 * Reads an image and its prompts
+	 */
+	public interface ImageReader {
+		/**
+		 * 
+		 * @param file
+		 * 	the image file
+		 * @return the image and its prompts
+		 * @throws IOException if the image or its prompts cannot be read
+		 */
+		BatchItem<?> read(File file) throws IOException;
+	}
+
+	/**
+	 * Consumes the masks obtained for an image
+	 */
+	public interface ResultWriter {
+		/**
+		 * 
+		 * @param item
+		 * 	the image and its prompts
+		 * @param masks
+		 * 	the masks obtained for the image
+		 * @throws IOException if the masks cannot be written
+		 */
+		void write(BatchItem<?> item, List<Mask> masks) throws IOException;
+	}
+
+	/**
+	 * Default number of images that can wait between two stages
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+	/**
+	 * Size of the side of the cells of the images loaded in memory
+	 */
+	private static final int CELL_SIZE = 512;
+
+	/**
+	 * Number of threads of the pipeline, one per stage except encoding and decoding that share one
+	 */
+	static final int N_THREADS = 4;
+
+	private final SAMModel model;
+
+	private final ImageReader reader;
+
+	private final ResultWriter writer;
+
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	private boolean loadInMemory = true;
+
+	private boolean continueOnError = true;
+
+	private SAMJLogger log = new SAMJLogger() {
+
+		@Override
+		public void info(String text) {
+			System.out.println(text);
+		}
+
+		@Override
+		public void warn(String text) {
+			System.err.println("[WARNING] -- " + text);
+		}
+
+		@Override
+		public void error(String text) {
+			System.err.println(text);
+		}
+	};
+
+	/**
+	 * Create a runner
+	 * @param model
+	 * 	the model used to segment, it should be installed. It will be loaded with the first image if it is not loaded yet
+	 * @param reader
+	 * 	reads each of the images and its prompts
+	 * @param writer
+	 * 	consumes the masks of each of the images
+	 */
+	public BatchRunner(SAMModel model, ImageReader reader, ResultWriter writer) {
+		if (model == null || reader == null || writer == null)
+			throw new IllegalArgumentException("The model, the reader and the writer cannot be null.");
+		this.model = model;
+		this.reader = reader;
+		this.writer = writer;
+	}
+
+	/**
+	 * Set the number of images that can wait between two stages. Bigger values absorb differences in the time
+	 * each image takes, at the cost of memory
+	 * @param capacity
+	 * 	number of images, at least 1
+	 */
+	public void setQueueCapacity(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("The capacity of the queues should be at least 1.");
+		this.queueCapacity = capacity;
+	}
+
+	/**
+	 * Set whether the images are copied in memory in the {@link Stage#PREPROCESS} stage. Disable it if the
+	 * {@link ImageReader} already returns images in memory
+	 * @param loadInMemory
+	 * 	whether the images are copied in memory. True by default
+	 */
+	public void setLoadInMemory(boolean loadInMemory) {
+		this.loadInMemory = loadInMemory;
+	}
+
+	/**
+	 * Set whether the images that fail are skipped, or the whole run stops at the first error
+	 * @param continueOnError
+	 * 	whether to skip the images that fail. True by default
+	 */
+	public void setContinueOnError(boolean continueOnError) {
+		this.continueOnError = continueOnError;
+	}
+
+	/**
+	 * Set the logger that receives the progress of the run
+	 * @param log
+	 * 	the logger
+	 */
+	public void setLogger(SAMJLogger log) {
+		if (log == null)
+			throw new IllegalArgumentException("The logger cannot be null.");
+		this.log = log;
+	}
+
+	/**
+	 * Process all the files of a directory accepted by the filter, in alphabetical order
+	 * @param dir
+	 * 	the directory
+	 * @param filter
+	 * 	selects the image files of the directory, null to process all the files
+	 * @return the statistics of the run
+	 * @throws IOException if the directory cannot be listed, or if an image fails and the run does not continue on errors
+	 * @throws InterruptedException if the run is interrupted
+	 */
+	public Statistics run(File dir, FileFilter filter) throws IOException, InterruptedException {
+		File[] files = filter == null ? dir.listFiles(File::isFile) : dir.listFiles(ff -> ff.isFile() && filter.accept(ff));
+		if (files == null)
+			throw new IOException("Cannot list the files of " + dir);
+		Arrays.sort(files);
+		return run(Arrays.asList(files));
+	}
+
+	/**
+	 * Process the files in order
+	 * @param files
+	 * 	the image files
+	 * @return the statistics of the run
+	 * @throws IOException if an image fails and the run does not continue on errors
+	 * @throws InterruptedException if the run is interrupted
+	 */
+	public Statistics run(List<File> files) throws IOException, InterruptedException {
+		Statistics stats = new Statistics(files.size());
+		BlockingQueue<Job> toRead = new ArrayBlockingQueue<Job>(files.size() + 1);
+		BlockingQueue<Job> toPreprocess = new ArrayBlockingQueue<Job>(queueCapacity);
+		BlockingQueue<Job> toEncode = new ArrayBlockingQueue<Job>(queueCapacity);
+		BlockingQueue<Job> toWrite = new ArrayBlockingQueue<Job>(queueCapacity);
+		for (File ff : files)
+			toRead.add(new Job(ff));
+		toRead.add(Job.END);
+		ExecutorService executor = Executors.newFixedThreadPool(N_THREADS, r -> {
+			Thread thread = new Thread(r, "samj-batch-runner");
+			thread.setDaemon(true);
+			return thread;
+		});
+		CompletionService<Void> stages = new ExecutorCompletionService<Void>(executor);
+		stats.start = System.nanoTime();
+		stages.submit(() -> runStage(toRead, toPreprocess, stats, job -> {
+			long t0 = System.nanoTime();
+			job.item = reader.read(job.file);
+			stats.addBusyTime(Stage.READ, System.nanoTime() - t0);
+		}));
+		stages.submit(() -> runStage(toPreprocess, toEncode, stats, job -> {
+			long t0 = System.nanoTime();
+			if (loadInMemory)
+				job.item = loadInMemory(job.item);
+			stats.addBusyTime(Stage.PREPROCESS, System.nanoTime() - t0);
+		}));
+		stages.submit(() -> runStage(toEncode, toWrite, stats, job -> {
+			long t0 = System.nanoTime();
+			encode(job.item);
+			long t1 = System.nanoTime();
+			stats.addBusyTime(Stage.ENCODE, t1 - t0);
+			job.masks = decode(job.item);
+			stats.addBusyTime(Stage.DECODE, System.nanoTime() - t1);
+		}));
+		stages.submit(() -> runStage(toWrite, null, stats, job -> {
+			long t0 = System.nanoTime();
+			writer.write(job.item, job.masks);
+			stats.addBusyTime(Stage.WRITE, System.nanoTime() - t0);
+			stats.addProcessed(job.item.getNumberOfPrompts(), job.masks.size());
+			log.info("Processed " + job.file.getName() + " (" + stats.getProcessed() + "/" + files.size() + "): "
+					+ job.masks.size() + " masks, " + String.format("%.2f", stats.getThroughput()) + " images/s");
+		}));
+		executor.shutdown();
+		try {
+			for (int i = 0; i < N_THREADS; i ++)
+				stages.take().get();
+		} catch (ExecutionException ex) {
+			executor.shutdownNow();
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} catch (InterruptedException ex) {
+			executor.shutdownNow();
+			throw ex;
+		}
+		stats.end = System.nanoTime();
+		log.info(stats.toString());
+		return stats;
+	}
+
+	private interface StageTask {
+		void process(Job job) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Loop of a stage: take the jobs from the input queue, process them and pass them to the next stage.
+	 * The jobs that fail are dropped if the run continues on errors
+	 */
+	private Void runStage(BlockingQueue<Job> in, BlockingQueue<Job> out, Statistics stats, StageTask task) 
+			throws IOException, InterruptedException {
+		while (true) {
+			Job job = in.take();
+			if (job == Job.END) {
+				if (out != null)
+					out.put(Job.END);
+				return null;
+			}
+			try {
+				task.process(job);
+			} catch (IOException | RuntimeException ex) {
+				if (!continueOnError)
+					throw ex;
+				stats.addFailed();
+				log.error("Error processing " + job.file + ": " + ex.getMessage());
+				continue;
+			}
+			if (out != null)
+				out.put(job);
+		}
+	}
+
+	private <T extends RealType<T> & NativeType<T>> void encode(BatchItem<T> item) 
+			throws IOException, RuntimeException, InterruptedException {
+		model.setImage(item.getImage(), log);
+	}
+
+	private <T extends RealType<T> & NativeType<T>> List<Mask> decode(BatchItem<T> item) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (item.getNumberOfPrompts() == 0)
+			return new ArrayList<Mask>();
+		RandomAccessibleInterval<T> mask = castMask(item.getMask());
+		return model.processBatchOfPrompts(item.getPoints(), item.getRects(), mask);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> castMask(RandomAccessibleInterval<?> mask) {
+		return (RandomAccessibleInterval<T>) mask;
+	}
+
+	/**
+	 * Copy the image in memory, in cells so images of more than 2^31 pixels are supported
+	 */
+	private static <T extends RealType<T> & NativeType<T>> BatchItem<T> loadInMemory(BatchItem<T> item) {
+		RandomAccessibleInterval<T> image = Views.zeroMin(item.getImage());
+		T type = Util.getTypeFromInterval(image).createVariable();
+		RandomAccessibleInterval<T> copy = new CellImgFactory<T>(type, CELL_SIZE).create(image.dimensionsAsLongArray());
+		RealTypeConverters.copyFromTo(image, copy);
+		return item.withImage(copy);
+	}
+
+	/**
+	 * One image going through the pipeline
+	 */
+	private static class Job {
+
+		private static final Job END = new Job(null);
+
+		private final File file;
+
+		private BatchItem<?> item;
+
+		private List<Mask> masks;
+
+		private Job(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Throughput and utilisation of each of the stages of a run. The utilisation of a stage is the fraction
+	 * of the time of the run that the stage was busy, the stage closest to 1 limits the throughput
+	 */
+	public static class Statistics {
+
+		private final int nImages;
+
+		private final long[] busy = new long[Stage.values().length];
+
+		private int processed;
+
+		private int failed;
+
+		private long prompts;
+
+		private long masks;
+
+		private long start;
+
+		private long end;
+
+		private Statistics(int nImages) {
+			this.nImages = nImages;
+		}
+
+		private synchronized void addBusyTime(Stage stage, long nanos) {
+			busy[stage.ordinal()] += nanos;
+		}
+
+		private synchronized void addProcessed(int nPrompts, int nMasks) {
+			processed ++;
+			prompts += nPrompts;
+			masks += nMasks;
+		}
+
+		private synchronized void addFailed() {
+			failed ++;
+		}
+
+		/**
+		 *
+		 * @return the number of images of the run
+		 */
+		public int getNumberOfImages() {
+			return nImages;
+		}
+
+		/**
+		 *
+		 * @return the number of images processed successfully
+		 */
+		public synchronized int getProcessed() {
+			return processed;
+		}
+
+		/**
+		 *
+		 * @return the number of images that failed and were skipped
+		 */
+		public synchronized int getFailed() {
+			return failed;
+		}
+
+		/**
+		 *
+		 * @return the number of prompts of the images processed
+		 */
+		public synchronized long getNumberOfPrompts() {
+			return prompts;
+		}
+
+		/**
+		 *
+		 * @return the number of masks obtained
+		 */
+		public synchronized long getNumberOfMasks() {
+			return masks;
+		}
+
+		/**
+		 *
+		 * @return the time since the beginning of the run until its end, or until now if it is still running, in seconds
+		 */
+		public synchronized double getElapsedSeconds() {
+			return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+		}
+
+		/**
+		 *
+		 * @return the number of images processed per second
+		 */
+		public synchronized double getThroughput() {
+			double elapsed = getElapsedSeconds();
+			return elapsed == 0 ? 0 : processed / elapsed;
+		}
+
+		/**
+		 *
+		 * @param stage
+		 * 	the stage
+		 * @return the time the stage was busy, in seconds
+		 */
+		public synchronized double getBusySeconds(Stage stage) {
+			return busy[stage.ordinal()] / 1e9;
+		}
+
+		/**
+		 *
+		 * @param stage
+		 * 	the stage
+		 * @return the fraction of the time of the run the stage was busy, between 0 and 1
+		 */
+		public synchronized double getUtilisation(Stage stage) {
+			double elapsed = getElapsedSeconds();
+			return elapsed == 0 ? 0 : getBusySeconds(stage) / elapsed;
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append(String.format("Processed %d/%d images (%d failed) in %.1f s: %.2f images/s, %d prompts, %d masks", 
+					processed, nImages, failed, getElapsedSeconds(), getThroughput(), prompts, masks));
+			for (Stage stage : Stage.values())
+				str.append(System.lineSeparator()).append(String.format("  %-10s busy %8.1f s, utilisation %5.1f%%", 
+						stage, getBusySeconds(stage), 100 * getUtilisation(stage)));
+			return str.toString();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.batch;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class that reads the prompts of an image from a plain text file, as produced by a detector.
+ *
+ * Each line of the file is a prompt: two numbers are a point "x, y" and four numbers are a box "x0, y0, x1, y1",
+ * both in pixel coordinates of the image. Numbers can be separated by commas, semicolons, tabs or spaces.
+ * Empty lines, lines starting with '#' and a header line that does not start with a number are ignored.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class PromptFile {
+
+	private final List<int[]> points;
+
+	private final List<Rectangle> rects;
+
+	private PromptFile(List<int[]> points, List<Rectangle> rects) {
+		this.points = points;
+		this.rects = rects;
+	}
+
+	/**
+	 * Read the prompts of a file
+	 * @param file
+	 * 	the file with the prompts
+	 * @return the prompts
+	 * @throws IOException if the file cannot be read or a line is not a valid prompt
+	 */
+	public static PromptFile read(File file) throws IOException {
+		List<int[]> points = new ArrayList<int[]>();
+		List<Rectangle> rects = new ArrayList<Rectangle>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int n = 0;
+			while ((line = reader.readLine()) != null) {
+				n ++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				if (n == 1 && !Character.isDigit(line.charAt(0)) && line.charAt(0) != '-' && line.charAt(0) != '.')
+					continue;
+				String[] fields = line.split("[,;\\s]+");
+				double[] values = new double[fields.length];
+				try {
+					for (int i = 0; i < fields.length; i ++)
+						values[i] = Double.parseDouble(fields[i]);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Line " + n + " of " + file + " is not a valid prompt: " + line);
+				}
+				if (values.length == 2) {
+					points.add(new int[] {(int) Math.round(values[0]), (int) Math.round(values[1])});
+				} else if (values.length == 4) {
+					int x0 = (int) Math.floor(Math.min(values[0], values[2]));
+					int y0 = (int) Math.floor(Math.min(values[1], values[3]));
+					int x1 = (int) Math.ceil(Math.max(values[0], values[2]));
+					int y1 = (int) Math.ceil(Math.max(values[1], values[3]));
+					rects.add(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+				} else {
+					throw new IOException("Line " + n + " of " + file + " should contain 2 (point) or 4 (box) numbers: " + line);
+				}
+			}
+		}
+		return new PromptFile(points, rects);
+	}
+
+	/**
+	 *
+	 * @return the point prompts, [x, y]
+	 */
+	public List<int[]> getPoints() {
+		return points;
+	}
+
+	/**
+	 *
+	 * @return the box prompts
+	 */
+	public List<Rectangle> getRects() {
+		return rects;
+	}
+}
@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.batch;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.communication.model.SAMModel;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Class that runs several instances of a model in parallel, each of them with its own Python process
+ * restricted to a subset of the CPU cores. A single process does not use many cores efficiently when most of
+ * the time is spent decoding, so splitting the cores among several processes scales better.
+ *
+ * The inputs of each call are split into contiguous blocks, one per worker, and a worker that finishes its block
+ * steals the inputs from the end of the block of another worker, so all of them are busy until the end.
+ * The results are returned in the order of the inputs.
+ * The models are loaded lazily, the first time each worker gets some work.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class WorkerPool implements Closeable {
+
+	/**
+	 * Work done by a worker on each of the inputs
+	 * @param <I>
+	 * 	type of the inputs
+	 * @param <R>
+	 * 	type of the results
+	 */
+	public interface WorkerTask<I, R> {
+		/**
+		 * 
+		 * @param worker
+		 * 	the worker that processes the input
+		 * @param input
+		 * 	the input
+		 * @return the result for the input
+		 * @throws IOException if any of the files to run a Python process is missing
+		 * @throws InterruptedException if the process is interrupted
+		 */
+		R run(Worker worker, I input) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * One of the model processes of the pool
+	 */
+	public static class Worker {
+
+		private final int index;
+
+		private final int[] cores;
+
+		private final Supplier<SAMModel> factory;
+
+		private SAMModel model;
+
+		private RandomAccessibleInterval<?> image;
+
+		private Worker(int index, int[] cores, Supplier<SAMModel> factory) {
+			this.index = index;
+			this.cores = cores;
+			this.factory = factory;
+		}
+
+		/**
+		 *
+		 * @return the position of the worker in the pool
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 *
+		 * @return the cores the process of the worker runs on
+		 */
+		public int[] getCores() {
+			return cores.clone();
+		}
+
+		/**
+		 *
+		 * @return the model of the worker, created the first time it is needed
+		 * @throws IOException if any of the files to run a Python process is missing
+		 * @throws InterruptedException if the process is interrupted
+		 */
+		public SAMModel getModel() throws IOException, InterruptedException {
+			if (model == null) {
+				SAMModel newModel = factory.get();
+				newModel.setCpuAffinity(cores);
+				model = newModel;
+			}
+			return model;
+		}
+
+		/**
+		 * Encode an image with the model of the worker, unless it is the last image the worker encoded
+		 * @param <T>
+		 * 	ImgLib2 data type of the image
+		 * @param rai
+		 * 	the image
+		 * @throws IOException if any of the files to run a Python process is missing
+		 * @throws InterruptedException if the process is interrupted
+		 */
+		public <T extends RealType<T> & NativeType<T>> void setImage(RandomAccessibleInterval<T> rai) 
+				throws IOException, InterruptedException {
+			if (image == rai)
+				return;
+			image = null;
+			getModel().setImage(rai, null);
+			image = rai;
+		}
+
+		private void close() {
+			if (model != null)
+				model.closeProcess();
+			model = null;
+			image = null;
+		}
+	}
+
+	private final Worker[] workers;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Create a pool where the cores of the machine are split evenly among the workers
+	 * @param factory
+	 * 	creates a new instance of the model, each worker has its own
+	 * @param nWorkers
+	 * 	number of workers
+	 */
+	public WorkerPool(Supplier<SAMModel> factory, int nWorkers) {
+		this(factory, nWorkers, Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, nWorkers)));
+	}
+
+	/**
+	 * Create a pool
+	 * @param factory
+	 * 	creates a new instance of the model, each worker has its own
+	 * @param nWorkers
+	 * 	number of workers
+	 * @param coresPerWorker
+	 * 	number of cores of each worker. If there are not enough cores, some of the workers share them
+	 */
+	public WorkerPool(Supplier<SAMModel> factory, int nWorkers, int coresPerWorker) {
+		if (factory == null)
+			throw new IllegalArgumentException("The factory of the models cannot be null.");
+		if (nWorkers < 1 || coresPerWorker < 1)
+			throw new IllegalArgumentException("There should be at least one worker with one core.");
+		int nCores = Runtime.getRuntime().availableProcessors();
+		this.workers = new Worker[nWorkers];
+		for (int i = 0; i < nWorkers; i ++) {
+			int[] cores = new int[Math.min(coresPerWorker, nCores)];
+			for (int j = 0; j < cores.length; j ++)
+				cores[j] = (i * coresPerWorker + j) % nCores;
+			workers[i] = new Worker(i, cores, factory);
+		}
+		this.executor = Executors.newFixedThreadPool(nWorkers, r -> {
+			Thread thread = new Thread(r, "samj-worker-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 *
+	 * @return the number of workers of the pool
+	 */
+	public int getNumberOfWorkers() {
+		return workers.length;
+	}
+
+	/**
+	 * Process the inputs in parallel with all the workers
+	 * @param <I>
+	 * 	type of the inputs
+	 * @param <R>
+	 * 	type of the results
+	 * @param inputs
+	 * 	the inputs
+	 * @param task
+	 * 	the work done on each input
+	 * @return the results, in the order of the inputs
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public synchronized <I, R> List<R> map(List<I> inputs, WorkerTask<I, R> task) 
+			throws IOException, RuntimeException, InterruptedException {
+		int n = inputs.size();
+		Object[] results = new Object[n];
+		List<ConcurrentLinkedDeque<Integer>> deques = new ArrayList<ConcurrentLinkedDeque<Integer>>(workers.length);
+		for (int w = 0; w < workers.length; w ++) {
+			ConcurrentLinkedDeque<Integer> deque = new ConcurrentLinkedDeque<Integer>();
+			for (int i = (int) ((long) n * w / workers.length); i < (int) ((long) n * (w + 1) / workers.length); i ++)
+				deque.add(i);
+			deques.add(deque);
+		}
+		AtomicBoolean failed = new AtomicBoolean(false);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(workers.length);
+		for (Worker worker : workers) {
+			futures.add(executor.submit(() -> {
+				Integer i;
+				while (!failed.get() && (i = nextInput(deques, worker.getIndex())) != null) {
+					try {
+						results[i] = task.run(worker, inputs.get(i));
+					} catch (IOException | InterruptedException | RuntimeException ex) {
+						failed.set(true);
+						throw ex;
+					}
+				}
+				return null;
+			}));
+		}
+		// every task is waited for, even after a failure, so no worker is still busy when the next call starts
+		Throwable error = null;
+		boolean interrupted = false;
+		for (Future<Void> ff : futures) {
+			while (true) {
+				try {
+					ff.get();
+					break;
+				} catch (ExecutionException ex) {
+					failed.set(true);
+					if (error == null)
+						error = ex.getCause();
+					break;
+				} catch (InterruptedException ex) {
+					failed.set(true);
+					interrupted = true;
+					if (error == null)
+						error = ex;
+				}
+			}
+		}
+		if (interrupted && !(error instanceof InterruptedException))
+			Thread.currentThread().interrupt();
+		if (error instanceof IOException)
+			throw (IOException) error;
+		else if (error instanceof InterruptedException)
+			throw (InterruptedException) error;
+		else if (error instanceof RuntimeException)
+			throw (RuntimeException) error;
+		else if (error != null)
+			throw new RuntimeException(error);
+		@SuppressWarnings("unchecked")
+		List<R> list = (List<R>) Arrays.asList(results);
+		return list;
+	}
+
+	/**
+	 * Take the next input of the own block of the worker or, if it is finished, steal the last one of another block
+	 */
+	private Integer nextInput(List<ConcurrentLinkedDeque<Integer>> deques, int worker) {
+		Integer i = deques.get(worker).pollFirst();
+		for (int k = 1; i == null && k < deques.size(); k ++)
+			i = deques.get((worker + k) % deques.size()).pollLast();
+		return i;
+	}
+
+	/**
+	 * Segment several images in parallel, each of them with its prompts
+	 * @param items
+	 * 	the images and their prompts
+	 * @return the masks of each of the images, in the order of the items
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public List<List<Mask>> processImages(List<? extends BatchItem<?>> items) 
+			throws IOException, RuntimeException, InterruptedException {
+		return map(items, (worker, item) -> processItem(worker, item));
+	}
+
+	private static <T extends RealType<T> & NativeType<T>> List<Mask> processItem(Worker worker, BatchItem<T> item) 
+			throws IOException, InterruptedException {
+		worker.setImage(item.getImage());
+		if (item.getNumberOfPrompts() == 0)
+			return new ArrayList<Mask>();
+		RandomAccessibleInterval<T> mask = castMask(item.getMask());
+		return worker.getModel().processBatchOfPrompts(item.getPoints(), item.getRects(), mask);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> castMask(RandomAccessibleInterval<?> mask) {
+		return (RandomAccessibleInterval<T>) mask;
+	}
+
+	/**
+	 * Segment many prompts on the same image. The prompts are split into shards of consecutive prompts that
+	 * are decoded in parallel, every worker encodes the image once
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param image
+	 * 	the image
+	 * @param points
+	 * 	point prompts, [x, y]. Can be null
+	 * @param rects
+	 * 	rectangle prompts. Can be null
+	 * @param shardSize
+	 * 	number of prompts decoded in each call to a worker
+	 * @return the masks of all the prompts, in the order of the prompts, points first
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>> List<Mask> processPromptShards(RandomAccessibleInterval<T> image, 
+			List<int[]> points, List<Rectangle> rects, int shardSize) throws IOException, RuntimeException, InterruptedException {
+		if (shardSize < 1)
+			throw new IllegalArgumentException("The shards should contain at least one prompt.");
+		List<BatchItem<T>> shards = new ArrayList<BatchItem<T>>();
+		int nPoints = points == null ? 0 : points.size();
+		int nRects = rects == null ? 0 : rects.size();
+		for (int i = 0; i < nPoints + nRects; i += shardSize) {
+			int end = Math.min(nPoints + nRects, i + shardSize);
+			List<int[]> shardPoints = i < nPoints ? points.subList(i, Math.min(end, nPoints)) : null;
+			List<Rectangle> shardRects = end > nPoints ? rects.subList(Math.max(i, nPoints) - nPoints, end - nPoints) : null;
+			shards.add(BatchItem.build("shard-" + shards.size(), image, shardPoints, shardRects));
+		}
+		List<Mask> masks = new ArrayList<Mask>();
+		for (List<Mask> mm : processImages(shards))
+			masks.addAll(mm);
+		return masks;
+	}
+
+	/**
+	 * Close the Python processes of all the workers
+	 */
+	@Override
+	public synchronized void close() {
+		executor.shutdownNow();
+		for (Worker worker : workers)
+			worker.close();
+	}
+}
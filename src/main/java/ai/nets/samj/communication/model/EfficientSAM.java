@@ -22,7 +22,6 @@ package ai.nets.samj.communication.model;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Cast;
 
 import java.io.IOException;
 import java.util.Objects;
@@ -112,10 +111,12 @@ public class EfficientSAM extends SAMModel {
 			}
 			this.log.info( text );
 		};
-		if (this.samj == null)
+		if (this.samj == null) {
 			samj = EfficientSamJ.initializeSam(manager, filteringLogger, false);
+			configureSamJ();
+		}
 		try {
-			this.samj.setImage(Cast.unchecked(image));;
+			setSamJImage(image);
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(FULL_NAME + " experienced an error: " + e.getMessage());
 			throw e;
@@ -129,4 +130,13 @@ public class EfficientSAM extends SAMModel {
 	public String getInputImageAxes() {
 		return INPUT_IMAGE_AXES;
 	}
+
+	/**
+	 * {@inheritDoc}
+	 * The image is shared as 3 channels of float32
+	 */
+	@Override
+	public int getBytesPerEncodedPixel() {
+		return 12;
+	}
 }
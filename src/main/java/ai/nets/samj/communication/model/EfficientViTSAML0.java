@@ -22,7 +22,6 @@ package ai.nets.samj.communication.model;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Cast;
 
 import java.io.IOException;
 import java.util.Objects;
@@ -117,10 +116,12 @@ public class EfficientViTSAML0 extends SAMModel {
 			}
 			this.log.info( text );
 		};
-		if (this.samj == null)
+		if (this.samj == null) {
 			this.samj = EfficientViTSamJ.initializeSam(ID, manager, filteringLogger, false);
+			configureSamJ();
+		}
 		try {
-			this.samj.setImage(Cast.unchecked(image));;
+			setSamJImage(image);
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(FULL_NAME + " experienced an error: " + e.getMessage());
 			throw e;
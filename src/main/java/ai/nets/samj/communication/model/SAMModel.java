@@ -22,12 +22,21 @@ package ai.nets.samj.communication.model;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.annotation.MaskCandidates;
+import ai.nets.samj.annotation.MaskStore;
 import ai.nets.samj.install.SamEnvManagerAbstract;
 import ai.nets.samj.models.AbstractSamJ;
 import ai.nets.samj.models.AbstractSamJ.BatchCallback;
+import ai.nets.samj.models.CancellationToken;
+import ai.nets.samj.models.LatestRequestCoalescer;
+import ai.nets.samj.models.MaskPublisher;
+import ai.nets.samj.models.PriorityScheduler;
+import ai.nets.samj.models.PriorityScheduler.Priority;
 import ai.nets.samj.ui.SAMJLogger;
 import net.imglib2.Interval;
 import net.imglib2.Localizable;
@@ -58,7 +67,19 @@ public abstract class SAMModel {
 	protected String paperLink;
 	protected boolean isHeavy;
 	protected boolean onlyBiggest = false;
+	protected double contourTolerance = -1;
+	protected double batchIouThreshold = -1;
+	protected MaskStore resultStore;
+	protected int[] cpuAffinity;
 	protected SamEnvManagerAbstract manager;
+	/**
+	 * Orders the calls to the model so interactive prompts are run between the shards of the batches
+	 */
+	protected final PriorityScheduler scheduler = new PriorityScheduler();
+	/**
+	 * Keeps only the newest prompt of each object in instant mode
+	 */
+	protected final LatestRequestCoalescer latestRequests = new LatestRequestCoalescer(scheduler);
 	
 
 	protected SAMJLogger log = new SAMJLogger() {
@@ -144,6 +165,22 @@ public abstract class SAMModel {
 	void setImage(final RandomAccessibleInterval<T> image, final SAMJLogger useThisLoggerForIt) 
 			throws IOException, RuntimeException, InterruptedException;
 
+	/**
+	 * 
+	 * @return the size of the weights of the model, in MB
+	 */
+	public double getWeightsSize() {
+		return size;
+	}
+
+	/**
+	 * 
+	 * @return the number of bytes of each pixel of the image copied to shared memory to be encoded
+	 */
+	public int getBytesPerEncodedPixel() {
+		return 3;
+	}
+
 	/**
 	 * 
 	 * @return a text describing the model.
@@ -176,20 +213,182 @@ public abstract class SAMModel {
 		this.onlyBiggest = onlyBiggest;
 	}
 
+	/**
+	 * Set the tolerance used to simplify the contours of the ROIs returned by SAMJ. Big objects produce contours
+	 * with one vertex per boundary pixel, simplifying them makes them faster to transfer and draw.
+	 * The simplified contours are at most at this distance from the boundary of the exact mask
+	 * @param tolerance
+	 * 	maximum distance in pixels between the simplified contour and the exact one. 0 only removes the
+	 * 	collinear vertices and a negative value disables the simplification
+	 */
+	public void setContourTolerance(double tolerance) {
+		this.contourTolerance = tolerance;
+		if (samj != null)
+			samj.setContourTolerance(tolerance);
+	}
+
+	/**
+	 * Set whether the masks produced by a batch of prompts that segment an object already segmented
+	 * in the same batch are suppressed. Useful when the prompts are seeded densely
+	 * @param iouThreshold
+	 * 	masks whose IoU with a mask already produced in the batch is bigger than this value are suppressed.
+	 * 	Between 0 and 1, a negative value disables the deduplication
+	 */
+	public void setBatchDeduplication(double iouThreshold) {
+		if (iouThreshold > 1)
+			throw new IllegalArgumentException("The IoU threshold should be between 0 and 1, or negative to disable the deduplication.");
+		this.batchIouThreshold = iouThreshold;
+		if (samj != null)
+			samj.setBatchDeduplication(iouThreshold);
+	}
+
+	/**
+	 * Set a store where the masks produced by batches of prompts are appended as they arrive, so the results
+	 * can be bigger than the memory available. The batches then return a lazy view of the store
+	 * @param store
+	 * 	the store, or null to keep the results in memory
+	 */
+	public void setResultStore(MaskStore store) {
+		this.resultStore = store;
+		if (samj != null)
+			samj.setResultStore(store);
+	}
+
+	/**
+	 * Restrict the Python process of the model to a subset of the CPU cores, with one PyTorch thread per core.
+	 * If the model is not loaded yet, it is applied when it is loaded
+	 * @param cores
+	 * 	indexes of the cores the process can run on, or null to not restrict them
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void setCpuAffinity(int[] cores) throws IOException, RuntimeException, InterruptedException {
+		this.cpuAffinity = cores == null ? null : cores.clone();
+		if (samj != null && cores != null)
+			scheduler.run(Priority.BATCH, () -> {
+				samj.setCpuAffinity(cores);
+				return null;
+			});
+	}
+
+	/**
+	 * Apply the options set on this model to a newly created SAMJ instance
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	protected void configureSamJ() throws IOException, RuntimeException, InterruptedException {
+		samj.setContourTolerance(contourTolerance);
+		samj.setBatchDeduplication(batchIouThreshold);
+		samj.setResultStore(resultStore);
+		samj.setScheduler(scheduler);
+		if (cpuAffinity != null)
+			samj.setCpuAffinity(cpuAffinity);
+	}
+
+	/**
+	 * Send the image to the SAMJ instance once the batches queued before have finished
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param image
+	 * 	the image
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	protected <T extends RealType<T> & NativeType<T>> void setSamJImage(RandomAccessibleInterval<T> image) 
+			throws IOException, RuntimeException, InterruptedException {
+		scheduler.run(Priority.BATCH, () -> {
+			samj.setImage(image);
+			return null;
+		});
+	}
+
 	public List<Mask> processBatchOfPoints(List<int[]> points) throws IOException, RuntimeException, InterruptedException {
-		return samj.processBatchOfPoints(points, !onlyBiggest);
+		return scheduler.run(Priority.BATCH, () -> samj.processBatchOfPoints(points, !onlyBiggest));
 	}
 
 	public <T extends RealType<T> & NativeType<T>>
 	List<Mask> processBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai) 
 			throws IOException, RuntimeException, InterruptedException {
-		return samj.processBatchOfPrompts(points, rects, rai, !onlyBiggest);
+		return scheduler.run(Priority.BATCH, () -> samj.processBatchOfPrompts(points, rects, rai, !onlyBiggest));
 	}
 
 	public <T extends RealType<T> & NativeType<T>>
 	List<Mask> processBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai, BatchCallback callback) 
 			throws IOException, RuntimeException, InterruptedException {
-		return samj.processBatchOfPrompts(points, rects, rai, !onlyBiggest, callback);
+		return processBatchOfPrompts(points, rects, rai, callback, null);
+	}
+
+	/**
+	 * Process a batch of prompts that can be stopped with the token. When it is cancelled, the decoder stops
+	 * before the next prompt and the masks already found are returned
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask prompt
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param rai
+	 * 	mask prompt, can be null
+	 * @param callback
+	 * 	callback that receives the masks as they are found
+	 * @param token
+	 * 	token to cancel the batch
+	 * @return the masks found until the end of the batch or until it was cancelled
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	List<Mask> processBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai, 
+			BatchCallback callback, CancellationToken token) throws IOException, RuntimeException, InterruptedException {
+		return scheduler.run(Priority.BATCH, () -> samj.processBatchOfPrompts(points, rects, rai, !onlyBiggest, callback, token));
+	}
+
+	/**
+	 * Create a publisher for a batch of prompts, which starts when it gets a subscriber. The subscriber receives
+	 * the masks one by one only as it requests them, and the model waits while {@link MaskPublisher#DEFAULT_BUFFER_SIZE}
+	 * masks are pending
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask prompt
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param rai
+	 * 	mask prompt, can be null
+	 * @return the publisher of the masks of the batch
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	MaskPublisher publishBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai) {
+		return publishBatchOfPrompts(points, rects, rai, MaskPublisher.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Create a publisher for a batch of prompts, which starts when it gets a subscriber. The subscriber receives
+	 * the masks one by one only as it requests them. The batch stops and waits while the buffer is full, running
+	 * the interactive requests meanwhile, and the masks are not kept once delivered
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask prompt
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param rai
+	 * 	mask prompt, can be null
+	 * @param bufferSize
+	 * 	number of masks produced that the subscriber has not requested yet that makes the batch wait
+	 * @return the publisher of the masks of the batch
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	MaskPublisher publishBatchOfPrompts(List<int[]> points, List<Rectangle> rects, RandomAccessibleInterval<T> rai, 
+			int bufferSize) {
+		return new MaskPublisher((callback, token) -> scheduler.run(Priority.BATCH, () -> {
+			samj.streamBatchOfPrompts(points, rects, rai, !onlyBiggest, callback, token);
+			return null;
+		}), bufferSize);
 	}
 
 	/**
@@ -211,8 +410,8 @@ public abstract class SAMModel {
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
 			List<int[]> negList = listOfNegPoints2D.stream()
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
-			if (negList.size() == 0) return samj.processPoints(list, !onlyBiggest);
-			else return samj.processPoints(list, negList, !onlyBiggest);
+			return scheduler.run(Priority.INTERACTIVE, () -> negList.size() == 0 ? samj.processPoints(list, !onlyBiggest)
+					: samj.processPoints(list, negList, !onlyBiggest));
 		} catch (IOException | RuntimeException | InterruptedException e) {
 			log.error(this.getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
@@ -241,14 +440,105 @@ public abstract class SAMModel {
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
 			List<int[]> negList = listOfNegPoints2D.stream()
 					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
-			if (negList.size() == 0) return samj.processPoints(list, zoomedRectangle, !onlyBiggest);
-			else return samj.processPoints(list, negList, zoomedRectangle, !onlyBiggest);
+			return scheduler.run(Priority.INTERACTIVE, () -> negList.size() == 0 ? samj.processPoints(list, zoomedRectangle, !onlyBiggest)
+					: samj.processPoints(list, negList, zoomedRectangle, !onlyBiggest));
 		} catch (IOException | RuntimeException | InterruptedException e) {
 			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
 		}
 	}
 
+	/**
+	 * Get a 2D segmentation/annotation using two lists of points as the prompts, for instant mode. The call does
+	 * not wait for the model. If a newer prompt of the same object arrives before this one is run, this one is
+	 * dropped, and if it arrives while this one is running, this result is discarded. So the masks received always
+	 * correspond to the newest prompt of the object
+	 * @param objectId
+	 * 	unique identifier of the object being annotated
+	 * @param listOfPoints2D
+	 * 	List of points that make reference to the instance of interest
+	 * @param listOfNegPoints2D
+	 * 	list of points that makes reference to something that is not the instance of interest
+	 * @param onResult
+	 * 	receives the polygons of the masks of the newest prompt, it should be quick
+	 * @return the future result, cancelled if the prompt is replaced before it is run
+	 */
+	public Future<List<Mask>> fetch2dSegmentationLatest(String objectId, List<Localizable> listOfPoints2D, 
+			List<Localizable> listOfNegPoints2D, Consumer<List<Mask>> onResult) {
+		return latestRequests.submit(objectId, () -> fetch2dSegmentation(listOfPoints2D, listOfNegPoints2D), onResult);
+	}
+
+	/**
+	 * Get a 2D segmentation/annotation using a bounding box as the prompt, for instant mode. The call does
+	 * not wait for the model. If a newer prompt of the same object arrives before this one is run, this one is
+	 * dropped, and if it arrives while this one is running, this result is discarded
+	 * @param objectId
+	 * 	unique identifier of the object being annotated
+	 * @param boundingBox2D
+	 * 	a bounding box around the instance of interest
+	 * @param onResult
+	 * 	receives the polygons of the masks of the newest prompt, it should be quick
+	 * @return the future result, cancelled if the prompt is replaced before it is run
+	 */
+	public Future<List<Mask>> fetch2dSegmentationLatest(String objectId, Interval boundingBox2D, 
+			Consumer<List<Mask>> onResult) {
+		return latestRequests.submit(objectId, () -> fetch2dSegmentation(boundingBox2D), onResult);
+	}
+
+	/**
+	 * Drop the prompts of an object sent with the instant mode methods whose result has not been delivered yet,
+	 * for example when the object is deleted
+	 * @param objectId
+	 * 	unique identifier of the object
+	 */
+	public void discardLatest(String objectId) {
+		latestRequests.discard(objectId);
+	}
+
+	/**
+	 * Add one point to an object that is being annotated click by click. Only the new point is sent to the
+	 * model, which reuses the previous prompts and the last mask of the object, so the correction is faster
+	 * and the mask changes less between clicks.
+	 * @param objectId
+	 * 	unique identifier of the object being annotated. A new identifier starts a new object
+	 * @param point2D
+	 * 	the new point
+	 * @param isPositive
+	 * 	whether the point belongs to the object of interest or to the background
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> refine2dSegmentation(String objectId, Localizable point2D, boolean isPositive) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			int[] point = new int[] {(int) point2D.positionAsDoubleArray()[0], (int) point2D.positionAsDoubleArray()[1]};
+			return scheduler.run(Priority.INTERACTIVE, () -> samj.refinePoints(objectId, point, isPositive, !onlyBiggest));
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Forget the prompts of an object annotated with {@link #refine2dSegmentation(String, Localizable, boolean)}.
+	 * Does nothing if the model is not loaded
+	 * @param objectId
+	 * 	unique identifier of the object
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public void forgetRefinement(String objectId) throws IOException, RuntimeException, InterruptedException {
+		if (samj == null)
+			return;
+		scheduler.run(Priority.INTERACTIVE, () -> {
+			samj.forgetRefinement(objectId);
+			return null;
+		});
+	}
+
 	/**
 	 * Get a 2D segmentation/annotation using a bounding box as the prompt. 
 	 * @param boundingBox2D
@@ -268,7 +558,59 @@ public abstract class SAMModel {
 				(int)boundingBox2D.max(0),
 				(int)boundingBox2D.max(1)
 			};
-			return samj.processBox(bbox, !onlyBiggest);
+			return scheduler.run(Priority.INTERACTIVE, () -> samj.processBox(bbox, !onlyBiggest));
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Get all the candidate 2D segmentations that the model proposes for two lists of points, 
+	 * together with the IoU predicted for each of them, in a single call.
+	 * @param listOfPoints2D
+	 * 	List of points that make reference to the instance of interest
+	 * @param listOfNegPoints2D
+	 * 	list of points that makes reference to something that is not the instance of interest
+	 * @return the candidates sorted by decreasing predicted IoU
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public MaskCandidates fetch2dSegmentationCandidates(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			List<int[]> list = listOfPoints2D.stream()
+					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
+			List<int[]> negList = listOfNegPoints2D.stream()
+					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
+			return scheduler.run(Priority.INTERACTIVE, () -> samj.processPointsCandidates(list, negList, !onlyBiggest));
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Get all the candidate 2D segmentations that the model proposes for a bounding box, 
+	 * together with the IoU predicted for each of them, in a single call.
+	 * @param boundingBox2D
+	 * 	a bounding box around the instance of interest
+	 * @return the candidates sorted by decreasing predicted IoU
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public MaskCandidates fetch2dSegmentationCandidates(Interval boundingBox2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			final int bbox[] = {
+				(int)boundingBox2D.min(0),
+				(int)boundingBox2D.min(1),
+				(int)boundingBox2D.max(0),
+				(int)boundingBox2D.max(1)
+			};
+			return scheduler.run(Priority.INTERACTIVE, () -> samj.processBoxCandidates(bbox, !onlyBiggest));
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
@@ -289,7 +631,106 @@ public abstract class SAMModel {
 	public <T extends RealType<T> & NativeType<T>> List<Mask> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai) 
 			throws IOException, InterruptedException, RuntimeException {
 		try {
-			return samj.processMask(rai, !onlyBiggest);
+			return scheduler.run(Priority.INTERACTIVE, () -> samj.processMask(rai, !onlyBiggest));
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Segment every object of the image (or of the area currently encoded for big images) automatically,
+	 * without prompts, using the default grid and filtering parameters. 
+	 * @param callback
+	 * 	callback that receives the masks as they are found, can be null
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(BatchCallback callback) 
+			throws IOException, InterruptedException, RuntimeException {
+		return segmentEverything(AbstractSamJ.DEFAULT_POINTS_PER_SIDE, AbstractSamJ.DEFAULT_POINTS_PER_BATCH, 
+				AbstractSamJ.DEFAULT_PRED_IOU_THRESH, AbstractSamJ.DEFAULT_STABILITY_THRESH, callback);
+	}
+
+	/**
+	 * Segment every object of the image (or of the area currently encoded for big images) automatically,
+	 * using the default grid and filtering parameters. The process can be stopped with the token, the masks
+	 * found until then are returned
+	 * @param callback
+	 * 	callback that receives the masks as they are found
+	 * @param token
+	 * 	token to cancel the process
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(BatchCallback callback, CancellationToken token) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			return scheduler.run(Priority.BATCH, () -> samj.segmentEverything(AbstractSamJ.DEFAULT_POINTS_PER_SIDE, 
+					AbstractSamJ.DEFAULT_POINTS_PER_BATCH, AbstractSamJ.DEFAULT_PRED_IOU_THRESH, 
+					AbstractSamJ.DEFAULT_STABILITY_THRESH, !onlyBiggest, callback, token));
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Segment every object of the image (or of the area currently encoded for big images) automatically,
+	 * without prompts. A grid of points is decoded in batches, the masks are filtered by predicted IoU and
+	 * stability and the overlapping parts are removed.
+	 * @param pointsPerSide
+	 * 	number of points per side of the grid
+	 * @param pointsPerBatch
+	 * 	number of points of the grid decoded at the same time
+	 * @param predIouThresh
+	 * 	minimum IoU predicted by the model for a mask to be kept
+	 * @param stabilityThresh
+	 * 	minimum stability score for a mask to be kept
+	 * @param callback
+	 * 	callback that receives the masks as they are found, can be null
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, int pointsPerBatch, double predIouThresh, 
+			double stabilityThresh, BatchCallback callback) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			return scheduler.run(Priority.BATCH, () -> samj.segmentEverything(pointsPerSide, pointsPerBatch, 
+					predIouThresh, stabilityThresh, !onlyBiggest, callback));
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Segment every object of an image of any size, such as a whole slide, tile by tile with the default grid
+	 * and filtering parameters. The objects cut by the borders between tiles are merged, and each object is
+	 * delivered as soon as all the tiles that contain it are processed
+	 * @param tileSize
+	 * 	side of the tiles without the overlap
+	 * @param overlap
+	 * 	context added at each side of the tiles
+	 * @param consumer
+	 * 	receives the masks of the objects, in image coordinates, as they are completed
+	 * @return the number of objects found
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public long segmentEverythingTiled(int tileSize, int overlap, Consumer<Mask> consumer) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			return scheduler.run(Priority.BATCH, () -> samj.segmentEverythingTiled(tileSize, overlap, 
+					AbstractSamJ.DEFAULT_POINTS_PER_SIDE, AbstractSamJ.DEFAULT_POINTS_PER_BATCH, 
+					AbstractSamJ.DEFAULT_PRED_IOU_THRESH, AbstractSamJ.DEFAULT_STABILITY_THRESH, !onlyBiggest, consumer));
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
 			throw e;
@@ -309,6 +750,7 @@ public abstract class SAMModel {
 	 * Close the Python process where the model is being executed
 	 */
 	public void closeProcess() {
+		scheduler.close();
 	if (samj != null)
 			samj.close();
 		samj = null;
@@ -324,7 +766,7 @@ public abstract class SAMModel {
 
 	public String persistEncoding() throws IOException, InterruptedException {
 		try {
-			return samj.persistEncoding();
+			return scheduler.run(Priority.BATCH, () -> samj.persistEncoding());
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", unable to persist the encoding: "+e.getMessage());
 			throw e;
@@ -333,7 +775,10 @@ public abstract class SAMModel {
 
 	public void selectEncoding(String encodingName) throws IOException, InterruptedException {
 		try {
-			samj.selectEncoding(encodingName);
+			scheduler.run(Priority.BATCH, () -> {
+				samj.selectEncoding(encodingName);
+				return null;
+			});
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", unable to persist the encoding named '" + encodingName + "': "+e.getMessage());
 			throw e;
@@ -342,7 +787,10 @@ public abstract class SAMModel {
 
 	public void deleteEncoding(String encodingName) throws IOException, InterruptedException {
 		try {
-			samj.deleteEncoding(encodingName);
+			scheduler.run(Priority.BATCH, () -> {
+				samj.deleteEncoding(encodingName);
+				return null;
+			});
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			log.error(getName()+", unable to delete the encoding named '" + encodingName + "': "+e.getMessage());
 			throw e;
@@ -12,6 +12,8 @@ import ai.nets.samj.gui.ModelSelection.ModelSelectionListener;
 import ai.nets.samj.gui.components.ModelDrawerPanel;
 import ai.nets.samj.gui.components.ModelDrawerPanel.ModelDrawerPanelListener;
 import ai.nets.samj.models.AbstractSamJ.BatchCallback;
+import ai.nets.samj.models.CancellationToken;
+import ai.nets.samj.models.CoalescingCallback;
 import ai.nets.samj.ui.ConsumerInterface;
 import ai.nets.samj.ui.ConsumerInterface.ConsumerCallback;
 import ai.nets.samj.utils.Constants;
@@ -42,6 +44,7 @@ public class MainGUI extends JFrame {
     protected ModelSelectionListener modelListener;
     protected ModelDrawerPanelListener modelDrawerListener;
     protected BatchCallback batchDrawerCallback;
+    protected CancellationToken batchToken;
     protected ConsumerCallback consumerCallback;
     
     protected ConsumerInterface consumer;
@@ -121,9 +124,7 @@ public class MainGUI extends JFrame {
         chkRoiManager.addActionListener(e -> consumer.enableAddingToRoiManager(chkRoiManager.isSelected()));
         retunLargest.addActionListener(e -> cmbModels.getSelectedModel().setReturnOnlyBiggest(retunLargest.isSelected()));
         btnBatchSAMize.addActionListener(e -> batchSAMize());
-        stopProgressBtn.addActionListener(e -> {
-        	// TODO stopProgress();
-        });
+        stopProgressBtn.addActionListener(e -> stopProgress());
         close.addActionListener(e -> dispose());
         help.addActionListener(e -> consumer.exportImageLabeling());
 
@@ -538,9 +539,11 @@ public class MainGUI extends JFrame {
     	lyt.show(cardPanel2_2, INVISIBLE_STR);
     	this.stopProgressBtn.setEnabled(true);
     	consumer.setFocusedImage(this.cmbImages.getSelectedObject());
+    	CancellationToken token = new CancellationToken();
+    	this.batchToken = token;
     	new Thread(() -> {
     		try {
-				cmbModels.getSelectedModel().processBatchOfPrompts(pointPrompts, rectPrompts, rai, batchDrawerCallback);
+				cmbModels.getSelectedModel().processBatchOfPrompts(pointPrompts, rectPrompts, rai, batchDrawerCallback, token);
 			} catch (IOException | RuntimeException | InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -550,6 +553,15 @@ public class MainGUI extends JFrame {
     	rectPrompts.stream().forEach(pp -> consumer.deleteRectRoi(pp));
     }
 
+    /**
+     * Stop the batch that is running. The masks already found are kept
+     */
+    protected void stopProgress() {
+    	if (batchToken != null)
+    		batchToken.cancel();
+    	stopProgressBtn.setEnabled(false);
+    }
+
     protected void createListeners() {
         imageListener = new ImageSelectionListener() {
             @Override
@@ -609,41 +621,38 @@ public class MainGUI extends JFrame {
 			}
         };
         
-        batchDrawerCallback = new BatchCallback() {
+        batchDrawerCallback = new CoalescingCallback(new BatchCallback() {
         	private int nRois;
 
 			@Override
 			public void setTotalNumberOfRois(int nRois) {
 				this.nRois = nRois;
-				SwingUtilities.invokeLater(() -> {
-					batchProgress.setValue(0);
-				});
+				batchProgress.setValue(0);
 			}
 
 			@Override
 			public void updateProgress(int n) {
-				SwingUtilities.invokeLater(() -> batchProgress.setValue((int) Math.round(100 * n / (double) nRois) ));
+				batchProgress.setValue((int) Math.round(100 * n / (double) nRois));
 			}
 
 			@Override
 			public void drawRoi(List<Mask> masks) {
-				SwingUtilities.invokeLater(() -> consumer.addPolygonsFromGUI(masks));
-				
+				consumer.addPolygonsInBulkFromGUI(masks);
 			}
 
 			@Override
 			public void deletePointPrompt(List<int[]> promptList) {
-				SwingUtilities.invokeLater(() -> promptList.forEach(proi -> consumer.deletePointRoi(proi)));
+				promptList.forEach(proi -> consumer.deletePointRoi(proi));
 			}
 
 			@Override
 			public void deleteRectPrompt(List<int[]> promptList) {
-				SwingUtilities.invokeLater(() -> promptList.stream()
+				promptList.stream()
 						.map(rect -> new Rectangle(rect[0], rect[1], rect[2] - rect[0], rect[3] - rect[1]))
-						.forEach(roi -> consumer.deleteRectRoi(roi)));
+						.forEach(roi -> consumer.deleteRectRoi(roi));
 			}
         	
-        };
+        }, SwingUtilities::invokeLater);
         
         consumerCallback = new ConsumerCallback() {
 
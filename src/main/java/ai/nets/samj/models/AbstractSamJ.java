@@ -23,25 +23,44 @@ import java.lang.AutoCloseable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.annotation.MaskDeduplicator;
+import ai.nets.samj.annotation.MaskStore;
+import ai.nets.samj.annotation.MaskCandidates;
+import ai.nets.samj.annotation.PolygonSimplifier;
+import ai.nets.samj.annotation.TileStitcher;
+import ai.nets.samj.models.BatchPromptPlanner.Cluster;
+import ai.nets.samj.models.PriorityScheduler.Priority;
 
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 import io.bioimage.modelrunner.apposed.appose.Environment;
 import io.bioimage.modelrunner.apposed.appose.Service;
 import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
-import io.bioimage.modelrunner.system.PlatformDetection;
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
@@ -76,6 +95,24 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	
 	protected static int MAX_IMG_SIZE = 2024;
 	
+	/**
+	 * Default number of points per side of the grid used to segment everything
+	 */
+	public static int DEFAULT_POINTS_PER_SIDE = 32;
+	/**
+	 * Default number of grid points that are decoded at the same time when segmenting everything
+	 */
+	public static int DEFAULT_POINTS_PER_BATCH = 16;
+	/**
+	 * Default minimum IoU predicted by the model for a mask to be kept when segmenting everything
+	 */
+	public static double DEFAULT_PRED_IOU_THRESH = 0.88;
+	/**
+	 * Default minimum stability score (IoU between the mask thresholded slightly above and slightly below 0)
+	 * for a mask to be kept when segmenting everything
+	 */
+	public static double DEFAULT_STABILITY_THRESH = 0.92;
+	
 	protected static String UPDATE_ID_N_CONTOURS = "PROMPT_NUMBER_" + UUID.randomUUID().toString();
 	
 	protected static String UPDATE_ID_CONTOUR = "FOUND_CONTOUR_" + UUID.randomUUID().toString();
@@ -92,6 +129,23 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		
 		void deleteRectPrompt(List<int[]> promptList);
 		
+		/**
+		 * Called when the deduplication of batch outputs is enabled and some of the masks produced
+		 * were suppressed because they segment an object already delivered through {@link #drawRoi(List)}
+		 * @param duplicates
+		 * 	the masks that were suppressed, they are not part of the result
+		 */
+		default void deleteDuplicates(List<Mask> duplicates) {}
+		
+		/**
+		 * Checked before every decoder call of a batch, from the thread that receives the masks. While it returns
+		 * false the batch stops and waits, and the interactive requests are run in the meantime
+		 * @return whether the callback can receive more masks
+		 */
+		default boolean hasDemand() {
+			return true;
+		}
+		
 		}
 
 	/** Essentially, a syntactic-shortcut for a String consumer */
@@ -175,11 +229,82 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	protected boolean imageSmall = true;
 	
 	private int nRoisProcessed;
+	/**
+	 * Number of prompts decoded by the last batch task that was cut short, or -1 if it decoded all its prompts
+	 */
+	private int nPromptsDecoded;
 	
 	/**
 	 * List of encodings that are cached to avoid recalculating
 	 */
 	List<String> savedEncodings = new ArrayList<String>();
+	/**
+	 * Default maximum number of results kept in the result cache
+	 */
+	public static int DEFAULT_RESULT_CACHE_SIZE = 64;
+	/**
+	 * Identifier of the encoding that is currently active in the Python process. A new identifier is created
+	 * every time a new embedding is computed, and persisted encodings keep theirs when they are selected again
+	 */
+	private String activeEncodingId = UUID.randomUUID().toString();
+	/**
+	 * State of each of the persisted encodings, needed to restore them when they are selected again
+	 */
+	private final Map<String, EncodingState> persistedEncodings = new HashMap<String, EncodingState>();
+	/**
+	 * Maximum number of results kept in the result cache. If it is 0, the results are not cached
+	 */
+	private int resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+	/**
+	 * Bounded cache with the results obtained for the prompts already processed, in least recently used order.
+	 * The key contains the id of the encoding, the normalized prompts and the output options
+	 */
+	private final LinkedHashMap<String, Object> resultCache = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+		private static final long serialVersionUID = -2207651373453526154L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+			return size() > resultCacheSize;
+		}
+	};
+	/**
+	 * Maximum distance in pixels of the image between the simplified contours returned and the exact ones.
+	 * If it is negative, the contours are returned with one vertex per boundary pixel
+	 */
+	private double contourTolerance = -1;
+	/**
+	 * Masks of a batch whose IoU with a mask already produced in the same batch is bigger than this value are suppressed.
+	 * If it is negative, the outputs of the batches are not deduplicated
+	 */
+	private double batchIouThreshold = -1;
+	/**
+	 * If it is not null, the masks produced by the batches are appended to this store instead of being
+	 * accumulated in the heap, and the batches return a lazy view of the store
+	 */
+	private MaskStore resultStore;
+	/**
+	 * Scheduler that runs the calls to this instance. If it is not null, the batches are decoded in shards and the
+	 * requests with more priority are run between them
+	 */
+	private PriorityScheduler scheduler;
+	/**
+	 * Counter that changes every time the image encoded in the Python process changes.
+	 * Any state kept in Python that depends on the encoding is invalid once it changes
+	 */
+	private int encodingVersion = 0;
+	/**
+	 * Encoding version for which the refinement states kept in Python were created
+	 */
+	private int refineStatesVersion = 0;
+	/**
+	 * Prompts used for each of the objects that are being refined interactively, in image coordinates.
+	 * Each prompt is an int array of the form [x, y, label] where label is 1 for positive points and 0 for negative
+	 */
+	private final Map<String, List<int[]>> refinePrompts = new HashMap<String, List<int[]>>();
+	/**
+	 * Objects whose points and low resolution logits are currently stored in the Python process
+	 */
+	private final Set<String> refineStatesInPython = new HashSet<String>();
 
 	protected abstract String persistEncodingScript(String encodingName);
 
@@ -187,14 +312,32 @@ public abstract class AbstractSamJ implements AutoCloseable {
 
 	protected abstract String deleteEncodingScript(String encodingName);
 	
-	protected abstract void cellSAM(List<int[]> grid, boolean returnAll);
+	protected abstract void cellSAM(boolean returnAll);
 	
-	protected abstract void processPromptsBatchWithSAM(SharedMemoryArray shmArr, boolean returnAll);
+	protected abstract void processPromptsBatchWithSAM(boolean returnAll);
 	
 	protected abstract void processPointsWithSAM(int nPoints, int nNegPoints, boolean returnAll);
 	
+	/**
+	 * Create the script that adds new points to an object being refined interactively. The Python process keeps,
+	 * for every object, the points used so far and the low resolution logits of the last mask, which are
+	 * passed to the decoder as the mask prompt together with the new points
+	 * @param returnAll
+	 * 	whether to return all the polygons or only the biggest
+	 */
+	protected abstract void processRefineWithSAM(boolean returnAll);
+	
 	protected abstract void processBoxWithSAM(boolean returnAll);
 	
+	/**
+	 * Create the script that decodes the prompts with all the candidate masks of the model and returns
+	 * every candidate together with its predicted IoU. The inputs of the script are 'input_points', 
+	 * 'input_neg_points' and 'input_box', which can be None
+	 * @param returnAll
+	 * 	whether to return all the polygons of each candidate or only the biggest
+	 */
+	protected abstract void processCandidatesWithSAM(boolean returnAll);
+	
 	protected abstract <T extends RealType<T> & NativeType<T>> void setImageOfInterest(RandomAccessibleInterval<T> rai);
 	
 	protected abstract <T extends RealType<T> & NativeType<T>> void createEncodeImageScript();
@@ -290,9 +433,12 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 */
 	public <T extends RealType<T> & NativeType<T>>
 	void setImage(RandomAccessibleInterval<T> rai) throws IOException, RuntimeException, InterruptedException {
+		encodingVersion ++;
+		refinePrompts.clear();
+		activeEncodingId = UUID.randomUUID().toString();
+		clearResultCache();
 		setImageOfInterest(rai);
-		if (img.dimensionsAsLongArray()[0] * img.dimensionsAsLongArray()[1] > MAX_ENCODED_AREA_RS * MAX_ENCODED_AREA_RS
-				|| img.dimensionsAsLongArray()[0] > MAX_ENCODED_SIDE || img.dimensionsAsLongArray()[1] > MAX_ENCODED_SIDE) {
+		if (!isSmallImage(img.dimensionsAsLongArray())) {
 			this.targetDims = new long[] {0, 0, 0};
 			this.imageSmall = false;
 			return;
@@ -328,6 +474,9 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	}
 	
 	private void reencodeCrop(long[] cropSize) throws IOException, InterruptedException, RuntimeException {
+		encodingVersion ++;
+		activeEncodingId = UUID.randomUUID().toString();
+		purgeResultCache();
 		this.script = "";
 		sendCropAsNp(cropSize);
 		createEncodeImageScript();
@@ -371,8 +520,7 @@ public abstract class AbstractSamJ implements AutoCloseable {
 				Views.offsetInterval( Cast.unchecked(img), new long[] {encodeCoords[0], encodeCoords[1], 0}, cropSize );
 		targetDims = crop.dimensionsAsLongArray();
 		
-		scale = (int) (Math.min(targetDims[0], targetDims[1]) / MAX_IMG_SIZE);
-		scale = Math.max(scale, 1);
+		scale = getSubsamplingScale(targetDims[0], targetDims[1]);
 		if (scale == 1) {
 			createSHMArray(crop);
 		} else {
@@ -384,25 +532,57 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		
 	}
 	
+	private List<Mask> processAndRetrieveContours(HashMap<String, Object> inputs, BatchCallback callback, 
+			CancellationToken token) throws IOException, RuntimeException, InterruptedException {
+		return processAndRetrieveContours(inputs, callback, createDeduplicator(), token, true, null);
+	}
+	
+	private MaskDeduplicator createDeduplicator() {
+		return batchIouThreshold < 0 ? null : new MaskDeduplicator(img.dimensionsAsLongArray()[0], batchIouThreshold);
+	}
+	
+	/**
+	 * Run the script of a batch, delivering the masks to the callback as they arrive. If the token is cancelled,
+	 * or if the preemption condition becomes true, the Python loop is asked to stop before its next decoder call
+	 * and the masks completed until then are returned. The number of prompts decoded is left in {@link #nPromptsDecoded}.
+	 * If keep is false, the masks are only delivered to the callback and an empty list is returned
+	 */
 	@SuppressWarnings("unchecked")
-	private List<Mask> processAndRetrieveContours(HashMap<String, Object> inputs, BatchCallback callback) 
-			throws IOException, RuntimeException, InterruptedException {
+	private List<Mask> processAndRetrieveContours(HashMap<String, Object> inputs, BatchCallback callback, 
+			MaskDeduplicator dedup, CancellationToken token, boolean keep, BooleanSupplier preempt) 
+					throws IOException, RuntimeException, InterruptedException {
 		Map<String, Object> results = null;
 		List<Mask> totalPolys = new ArrayList<Mask>();
+		MaskStore store = keep ? resultStore : null;
+		int firstStored = store == null ? 0 : store.size();
+		nPromptsDecoded = -1;
+		if (token != null && token.isCancelled())
+			return totalPolys;
+		Runnable cancelTask = null;
 		try {
 			Task task = python.task(script, inputs);
+			AtomicBoolean cancelSent = new AtomicBoolean(false);
+			cancelTask = () -> {
+				if (task.status == TaskStatus.RUNNING && !cancelSent.getAndSet(true))
+					task.cancel();
+			};
+			final Runnable sendCancel = cancelTask;
 			nRoisProcessed = 1;
 			task.listen(event -> {
 	            switch (event.responseType) {
 	                case UPDATE:
+	                	if ((token != null && token.isCancelled()) || (preempt != null && preempt.getAsBoolean()))
+	                		sendCancel.run();
 	                	if (!task.message.equals(UPDATE_ID_CONTOUR) && !task.message.equals(UPDATE_ID_N_CONTOURS))
 	                		break;
 	                	else if (task.message.equals(UPDATE_ID_CONTOUR)) {
 	                		callback.updateProgress(nRoisProcessed ++);
 	                		List<Mask> polys = defineMask((List<List<Number>>)task.outputs.get("temp_x"), 
 	                				(List<List<Number>>)task.outputs.get("temp_y"), (List<List<Number>>)task.outputs.get("temp_mask"));
+	                		polys = deduplicate(dedup, polys, callback);
 	                		callback.drawRoi(polys);
-	                		totalPolys.addAll(polys);
+	                		if (keep)
+	                			collect(polys, totalPolys, store);
 	                	} else if (task.message.equals(UPDATE_ID_N_CONTOURS)) {
 	                		callback.setTotalNumberOfRois(Integer.parseInt((String) task.outputs.get("n")));
 	                		
@@ -412,8 +592,14 @@ public abstract class AbstractSamJ implements AutoCloseable {
 						break;
 		            }
 	        });
+			if (token != null)
+				token.addListener(cancelTask);
 			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
+			if (task.status == TaskStatus.CANCELED && cancelSent.get()) {
+				// the prompts decoded before stopping are the ones whose masks were delivered
+				nPromptsDecoded = nRoisProcessed - 1;
+				return store != null ? store.asList(firstStored, store.size()) : totalPolys;
+			} else if (task.status == TaskStatus.CANCELED)
 				throw new RuntimeException("Task canceled");
 			else if (task.status == TaskStatus.FAILED)
 				throw new RuntimeException(task.error);
@@ -427,16 +613,50 @@ public abstract class AbstractSamJ implements AutoCloseable {
 				throw new RuntimeException("No 'contours_y' output found");
 			else if (task.outputs.get("rle") == null)
 				throw new RuntimeException("No 'rle' outputs found");
-			callback.updateProgress(Integer.parseInt((String) task.outputs.get("n")));
+			if (cancelSent.get() && task.outputs.get("n_done") != null)
+				nPromptsDecoded = Integer.parseInt((String) task.outputs.get("n_done"));
+			callback.updateProgress(nPromptsDecoded >= 0 ? nPromptsDecoded : Integer.parseInt((String) task.outputs.get("n")));
 			results = task.outputs;
 		} catch (InterruptedException | RuntimeException e) {
 			throw e;
+		} finally {
+			if (token != null && cancelTask != null)
+				token.removeListener(cancelTask);
 		}
 		List<Mask> polys = defineMask((List<List<Number>>)results.get("contours_x"), 
 				(List<List<Number>>)results.get("contours_y"), (List<List<Number>>)results.get("rle"));
+		polys = deduplicate(dedup, polys, callback);
 		callback.drawRoi(polys);
-		totalPolys.addAll(polys);
-		return polys;
+		if (keep)
+			collect(polys, totalPolys, store);
+		if (store != null)
+			return store.asList(firstStored, store.size());
+		return totalPolys;
+	}
+	
+	private static void collect(List<Mask> masks, List<Mask> totalPolys, MaskStore store) {
+		if (store == null) {
+			totalPolys.addAll(masks);
+			return;
+		}
+		try {
+			store.appendAll(masks);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static List<Mask> deduplicate(MaskDeduplicator dedup, List<Mask> masks, BatchCallback callback) {
+		if (dedup == null)
+			return masks;
+		List<Mask> kept = dedup.filter(masks);
+		if (kept.size() == masks.size())
+			return masks;
+		Set<Mask> keptSet = Collections.newSetFromMap(new IdentityHashMap<Mask, Boolean>());
+		keptSet.addAll(kept);
+		if (callback != null)
+			callback.deleteDuplicates(masks.stream().filter(mm -> !keptSet.contains(mm)).collect(Collectors.toList()));
+		return kept;
 	}
 	
 	private List<Mask> defineMask(List<List<Number>> contoursX, List<List<Number>> contoursY, List<List<Number>> rles) {
@@ -504,36 +724,65 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	List<Mask> processBatchOfPrompts(List<int[]> pointsList, List<Rectangle> rects, 
 			RandomAccessibleInterval<T> rai, boolean returnAll, BatchCallback callback) 
 					throws IOException, RuntimeException, InterruptedException {
-		if ((pointsList == null || pointsList.size() == 0) && (rects == null || rects.size() == 0) && (rai == null))
-			return new ArrayList<Mask>();
-		checkPrompts(pointsList, rects, rai);
-
-		// TODO adapt to reencoding for big images, ideally it should process points close together together
-		pointsList = adaptPointPrompts(pointsList);
-		// TODO adapt rect prompts
-		this.script = "";
-		SharedMemoryArray maskShma = null;
-		if (rai != null)
-			maskShma = SharedMemoryArray.createSHMAFromRAI(rai, false, false);
-
-		try {
-			HashMap<String, Object> inputs = new HashMap<String, Object>();
-			inputs.put("point_prompts", pointsList == null ? new ArrayList<int[]>() : pointsList);
-			List<int[]> rectPrompts = new ArrayList<int[]>();
-			if (rects != null && rects.size() > 0)
-				rectPrompts = rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
-											.collect(Collectors.toList());
-			inputs.put("rect_prompts", rectPrompts);
-			processPromptsBatchWithSAM(maskShma, returnAll);
-			printScript(script, "Batch of prompts inference");
-			List<Mask> polys = processAndRetrieveContours(inputs, callback);
-			if (PlatformDetection.isWindows() && maskShma != null) maskShma.close();
-			return polys;
-		} catch (IOException | RuntimeException | InterruptedException ex) {
-			if (maskShma != null)
-				maskShma.close();
-			throw ex;
-		}
+		return processBatchOfPrompts(pointsList, rects, rai, returnAll, callback, null);
+	}
+	
+	/**
+	 * Process a batch of prompts delivering the masks to the callback as they are found. The batch can be
+	 * stopped with the token: the decoder stops before the next prompt and the masks found until then are returned
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask prompt
+	 * @param pointsList
+	 * 	point prompts, [x, y] in image coordinates. Can be null
+	 * @param rects
+	 * 	rectangle prompts in image coordinates. Can be null
+	 * @param rai
+	 * 	mask prompt of integer type. Can be null
+	 * @param returnAll
+	 * 	whether to return all the polygons of each mask or only the biggest
+	 * @param callback
+	 * 	callback that receives the masks as they are found
+	 * @param token
+	 * 	token to cancel the batch, can be null
+	 * @return the masks found, only the ones completed before the cancellation if the batch was cancelled
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	List<Mask> processBatchOfPrompts(List<int[]> pointsList, List<Rectangle> rects, 
+			RandomAccessibleInterval<T> rai, boolean returnAll, BatchCallback callback, CancellationToken token) 
+					throws IOException, RuntimeException, InterruptedException {
+		return processBatch(pointsList, rects, rai, returnAll, callback, token, true);
+	}
+	
+	/**
+	 * Process a batch of prompts delivering the masks only to the callback. The masks are neither kept nor
+	 * written to the result store, so the memory used does not grow with the size of the batch
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask prompt
+	 * @param pointsList
+	 * 	point prompts, [x, y] in image coordinates. Can be null
+	 * @param rects
+	 * 	rectangle prompts in image coordinates. Can be null
+	 * @param rai
+	 * 	mask prompt of integer type. Can be null
+	 * @param returnAll
+	 * 	whether to return all the polygons of each mask or only the biggest
+	 * @param callback
+	 * 	callback that receives the masks as they are found
+	 * @param token
+	 * 	token to cancel the batch, can be null
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	void streamBatchOfPrompts(List<int[]> pointsList, List<Rectangle> rects, 
+			RandomAccessibleInterval<T> rai, boolean returnAll, BatchCallback callback, CancellationToken token) 
+					throws IOException, RuntimeException, InterruptedException {
+		Objects.requireNonNull(callback, "The callback cannot be null.");
+		processBatch(pointsList, rects, rai, returnAll, callback, token, false);
 	}
 	
 	public <T extends RealType<T> & NativeType<T>>
@@ -545,41 +794,239 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	public <T extends RealType<T> & NativeType<T>>
 	List<Mask> processBatchOfPrompts(List<int[]> pointsList, List<Rectangle> rects, RandomAccessibleInterval<T> rai, boolean returnAll) 
 			throws IOException, RuntimeException, InterruptedException {
+		return processBatch(pointsList, rects, rai, returnAll, null, null, true);
+	}
+	
+	/**
+	 * Process a batch of prompts. Small images are encoded at once. On big images the prompts are grouped into
+	 * spatial clusters with {@link BatchPromptPlanner} and the crop of each cluster is encoded once.
+	 * The prompts are decoded in shards of at most {@link PriorityScheduler#getShardSize()} prompts, cut short
+	 * when a request with more priority arrives, and those requests are run between the shards.
+	 * The deduplication, if enabled, is applied to the whole batch.
+	 * If the token is cancelled, the shards not started are skipped
+	 */
+	private <T extends RealType<T> & NativeType<T>>
+	List<Mask> processBatch(List<int[]> pointsList, List<Rectangle> rects, RandomAccessibleInterval<T> rai, 
+			boolean returnAll, BatchCallback callback, CancellationToken token, boolean keep) 
+					throws IOException, RuntimeException, InterruptedException {
 		if ((pointsList == null || pointsList.size() == 0) && (rects == null || rects.size() == 0) && (rai == null))
 			return new ArrayList<Mask>();
-		checkPrompts(pointsList, rects, rai);
-
-		// TODO adapt to reencoding for big images, ideally it should process points close together together
-		pointsList = adaptPointPrompts(pointsList);
-		// TODO adapt rect prompts
-		this.script = "";
-		SharedMemoryArray maskShma = null;
-		if (rai != null)
-			maskShma = SharedMemoryArray.createSHMAFromRAI(rai, false, false);
-
-		try {
+		rai = checkPrompts(pointsList, rects, rai);
+		String key = null;
+		if (this.imageSmall) {
+			encodeWholeImage();
+			key = cacheKey("batch", returnAll, pointsList == null ? new ArrayList<int[]>() : adaptPointPrompts(pointsList), 
+					adaptRectPrompts(toRectPrompts(rects)), getMaskPrompts(rai));
+			List<Mask> cached = keep ? getCachedMasks(key) : null;
+			if (cached != null)
+				return callback == null ? cached : replayCachedMasks(cached, callback);
+		}
+		MaskStore store = keep ? resultStore : null;
+		int firstStored = store == null ? 0 : store.size();
+		MaskDeduplicator dedup = createDeduplicator();
+		List<Mask> totalPolys = new ArrayList<Mask>();
+		if (this.imageSmall) {
+			List<int[]> points = pointsList == null ? new ArrayList<int[]>() : pointsList;
+			List<List<int[]>> maskSeeds = getMaskSeeds(rai);
+			if (callback != null)
+				callback.setTotalNumberOfRois(points.size() + (rects == null ? 0 : rects.size()) + maskSeeds.size());
+			decodeInShards(points, toRectPrompts(rects), maskSeeds, null, 0, returnAll, callback, dedup, token, keep, totalPolys);
+		} else {
+			List<Cluster> clusters = BatchPromptPlanner.plan(pointsList, toRectPrompts(rects), getMaskSeeds(rai), 
+					img.dimensionsAsLongArray(), MAX_ENCODED_SIDE, MIN_ENCODED_AREA_SIDE, ENCODE_MARGIN, MAX_IMG_SIZE);
+			debugPrinter.printText("Batch of prompts split into " + clusters.size() + " clusters");
+			if (callback != null)
+				callback.setTotalNumberOfRois(clusters.stream().mapToInt(Cluster::getNumberOfPrompts).sum());
+			int nProcessed = 0;
+			for (Cluster cluster : clusters) {
+				if (token != null && token.isCancelled())
+					break;
+				decodeInShards(cluster.getPoints(), cluster.getRects(), cluster.getMaskPrompts(), cluster.getCrop(), 
+						nProcessed, returnAll, callback, dedup, token, keep, totalPolys);
+				nProcessed += cluster.getNumberOfPrompts();
+			}
+		}
+		if (key != null && keep && store == null && (token == null || !token.isCancelled()))
+			cacheMasks(key, totalPolys);
+		if (store != null)
+			return store.asList(firstStored, store.size());
+		return totalPolys;
+	}
+	
+	/**
+	 * Decode the prompts against a crop of the image, or against the whole image if the crop is null, in shards.
+	 * A shard is cut short before its next decoder call when a request with more priority than the batch is waiting
+	 * or when the callback cannot receive more masks, and the next shard starts at the first prompt not decoded. Before every shard the crop is encoded again if a
+	 * request run between the shards encoded another area. The prompts are taken in the order the Python loop
+	 * decodes them: mask prompts, points and rectangles
+	 * @param offset
+	 * 	number of prompts of the batch processed before these ones, for the progress
+	 */
+	private void decodeInShards(List<int[]> points, List<int[]> rects, List<List<int[]>> maskSeeds, Rectangle crop, 
+			int offset, boolean returnAll, BatchCallback callback, MaskDeduplicator dedup, CancellationToken token, 
+			boolean keep, List<Mask> totalPolys) throws IOException, RuntimeException, InterruptedException {
+		int shardSize = scheduler == null ? Integer.MAX_VALUE : scheduler.getShardSize();
+		Priority priority = scheduler == null ? null : scheduler.getRunningPriority();
+		BooleanSupplier preempt = () -> (priority != null && scheduler.hasPendingAbove(priority)) 
+				|| (callback != null && !callback.hasDemand());
+		int nMasks = maskSeeds.size();
+		int nMasksAndPoints = nMasks + points.size();
+		int nPrompts = nMasksAndPoints + rects.size();
+		int i = 0;
+		for (boolean first = true; i < nPrompts; first = false) {
+			if (token != null && token.isCancelled())
+				return;
+			if (!first)
+				waitBetweenShards(callback, token);
+			if (crop == null) {
+				encodeWholeImage();
+			} else if (targetDims[0] == 0 || !crop.equals(getCurrentlyEncodedArea())) {
+				this.encodeCoords = new long[] {crop.x, crop.y};
+				reencodeCrop(new long[] {crop.width, crop.height});
+			}
+			int end = (int) Math.min(nPrompts, (long) i + shardSize);
+			this.script = "";
+			processPromptsBatchWithSAM(returnAll);
 			HashMap<String, Object> inputs = new HashMap<String, Object>();
-			inputs.put("point_prompts", pointsList == null ? new ArrayList<int[]>() : pointsList);
-			List<int[]> rectPrompts = new ArrayList<int[]>();
-			if (rects != null && rects.size() > 0)
-				rectPrompts = rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
-											.collect(Collectors.toList());
-			inputs.put("rect_prompts", rectPrompts);
-			processPromptsBatchWithSAM(maskShma, returnAll);
+			inputs.put("mask_prompts", maskSeeds.subList(Math.min(i, nMasks), Math.min(end, nMasks))
+					.stream().map(seeds -> adaptPointPrompts(seeds)).collect(Collectors.toList()));
+			inputs.put("point_prompts", adaptPointPrompts(points.subList(
+					Math.min(Math.max(i - nMasks, 0), points.size()), Math.min(Math.max(end - nMasks, 0), points.size()))));
+			inputs.put("rect_prompts", adaptRectPrompts(rects.subList(
+					Math.min(Math.max(i - nMasksAndPoints, 0), rects.size()), Math.max(end - nMasksAndPoints, 0))));
 			printScript(script, "Batch of prompts inference");
-			List<Mask> polys = processAndRetrieveContours(inputs);
-			recalculatePolys(polys, encodeCoords);
-			if (PlatformDetection.isWindows() && maskShma != null) maskShma.close();
-			return polys;
-		} catch (IOException | RuntimeException | InterruptedException ex) {
-			if (maskShma != null)
-				maskShma.close();
-			throw ex;
+			BatchCallback shardCallback = new OffsetCallback(callback == null ? SILENT_CALLBACK : callback, offset + i);
+			List<Mask> polys = processAndRetrieveContours(inputs, shardCallback, dedup, token, keep, preempt);
+			if (keep && resultStore == null)
+				totalPolys.addAll(polys);
+			i = nPromptsDecoded < 0 ? end : i + nPromptsDecoded;
 		}
 	}
 	
+	/**
+	 * Called between two shards of a batch. The requests with more priority than the batch are run, and if
+	 * the callback cannot receive more masks, the batch waits until it can or until it is cancelled
+	 */
+	private void waitBetweenShards(BatchCallback callback, CancellationToken token) throws InterruptedException {
+		BooleanSupplier ready = () -> callback == null || callback.hasDemand() || (token != null && token.isCancelled());
+		if (scheduler != null)
+			scheduler.yieldUntil(ready);
+		else
+			while (!ready.getAsBoolean())
+				Thread.sleep(PriorityScheduler.POLL_MS);
+	}
+	
+	/**
+	 * Convert a mask prompt into point prompts. The connected components of the mask are labelled
+	 * in Java and only a few seed points per component are sent to Python, adapted to the 
+	 * encoded area of the image.
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask
+	 * @param rai
+	 * 	the mask prompt, can be null
+	 * @return a list containing the list of seed points for each of the connected components of the mask
+	 */
+	private <T extends RealType<T> & NativeType<T>>
+	List<List<int[]>> getMaskPrompts(RandomAccessibleInterval<T> rai) {
+		return getMaskSeeds(rai).stream().map(seeds -> adaptPointPrompts(seeds)).collect(Collectors.toList());
+	}
+	
 	private <T extends RealType<T> & NativeType<T>>
-	void checkPrompts(List<int[]> pointsList, List<Rectangle> rects, RandomAccessibleInterval<T> rai) {
+	List<List<int[]>> getMaskSeeds(RandomAccessibleInterval<T> rai) {
+		if (rai == null)
+			return new ArrayList<List<int[]>>();
+		return ConnectedComponents.label(rai).getSeeds(ConnectedComponents.DEFAULT_SEEDS_PER_COMPONENT);
+	}
+	
+	/**
+	 * 
+	 * @param dims
+	 * 	dimensions of an image, [width, height, ...]
+	 * @return whether the image is encoded at once or by crops around the prompts
+	 */
+	public static boolean isSmallImage(long[] dims) {
+		return dims[0] * dims[1] <= MAX_ENCODED_AREA_RS * MAX_ENCODED_AREA_RS
+				&& dims[0] <= MAX_ENCODED_SIDE && dims[1] <= MAX_ENCODED_SIDE;
+	}
+
+	/**
+	 * 
+	 * @param width
+	 * 	width of the area encoded
+	 * @param height
+	 * 	height of the area encoded
+	 * @return the subsampling factor applied to the area before sending it to Python
+	 */
+	public static int getSubsamplingScale(long width, long height) {
+		return (int) Math.max(1, Math.min(width, height) / MAX_IMG_SIZE);
+	}
+
+	/**
+	 * Crops that would be encoded to process a batch of point and rectangle prompts on an image that is too big
+	 * to be encoded at once, without running the model
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param dims
+	 * 	dimensions of the image, [width, height, ...]
+	 * @return the clusters of prompts and their crops
+	 */
+	public static List<Cluster> planBatchOfPrompts(List<int[]> points, List<Rectangle> rects, long[] dims) {
+		return planBatchOfPrompts(points, rects, null, dims);
+	}
+
+	/**
+	 * Crops that would be encoded to process a batch of prompts on an image that is too big to be encoded at once,
+	 * without running the model
+	 * @param points
+	 * 	point prompts, can be null
+	 * @param rects
+	 * 	rectangle prompts, can be null
+	 * @param maskSeeds
+	 * 	seed points of each of the objects of the mask prompt, as given by {@link ConnectedComponents#getSeeds(int)}.
+	 * 	Can be null
+	 * @param dims
+	 * 	dimensions of the image, [width, height, ...]
+	 * @return the clusters of prompts and their crops
+	 */
+	public static List<Cluster> planBatchOfPrompts(List<int[]> points, List<Rectangle> rects, List<List<int[]>> maskSeeds, 
+			long[] dims) {
+		return BatchPromptPlanner.plan(points, toRectPrompts(rects), maskSeeds, dims, 
+				MAX_ENCODED_SIDE, MIN_ENCODED_AREA_SIDE, ENCODE_MARGIN, MAX_IMG_SIZE);
+	}
+
+	/**
+	 * Encode the whole image if the encoded area is only a part of it. Only used for images small enough
+	 * to be encoded at once
+	 */
+	private void encodeWholeImage() throws IOException, RuntimeException, InterruptedException {
+		long[] imgDims = this.img.dimensionsAsLongArray();
+		if (this.encodeCoords[0] == 0 && this.encodeCoords[1] == 0 
+				&& targetDims[0] == imgDims[0] && targetDims[1] == imgDims[1])
+			return;
+		this.encodeCoords = new long[] {0, 0};
+		reencodeCrop(new long[] {imgDims[0], imgDims[1]});
+	}
+	
+	private static List<int[]> toRectPrompts(List<Rectangle> rects) {
+		if (rects == null)
+			return new ArrayList<int[]>();
+		return rects.stream().map(rr -> new int[] {rr.x, rr.y, rr.x + rr.width, rr.y + rr.height})
+				.collect(Collectors.toList());
+	}
+	
+	private List<int[]> adaptRectPrompts(List<int[]> rectsList) {
+		return rectsList.stream().map(rr -> new int[] {
+				(int) Math.ceil((rr[0] - this.encodeCoords[0]) / (double) scale), 
+				(int) Math.ceil((rr[1] - this.encodeCoords[1]) / (double) scale),
+				(int) Math.ceil((rr[2] - this.encodeCoords[0]) / (double) scale), 
+				(int) Math.ceil((rr[3] - this.encodeCoords[1]) / (double) scale)
+				}).collect(Collectors.toList());
+	}
+	
+	private <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<T> checkPrompts(List<int[]> pointsList, List<Rectangle> rects, RandomAccessibleInterval<T> rai) {
 		long[] dims;
 		if ((pointsList == null || pointsList.size() == 0)
 				&& (rects == null || rects.size() == 0)
@@ -589,15 +1036,17 @@ public abstract class AbstractSamJ implements AutoCloseable {
 				&& (rects == null || rects.size() == 0)
 				&& rai != null) {
 			dims = rai.dimensionsAsLongArray();
+			long[] imDims = this.img.dimensionsAsLongArray();
 			if ((dims.length == 2 || (dims.length == 3 && dims[2] == 1)) 
-					&& dims[1] == this.shma.getOriginalShape()[0] && dims[0] == this.shma.getOriginalShape()[1]) {
+					&& dims[1] == imDims[0] && dims[0] == imDims[1] && dims[0] != dims[1]) {
 				rai = Views.permute(rai, 0, 1);
-			} else if (dims[0] != this.shma.getOriginalShape()[0] && dims[1] != this.shma.getOriginalShape()[1]
+			} else if (dims[0] != imDims[0] || dims[1] != imDims[1]
 					|| (dims.length == 3 && dims[2] != 1) || dims.length > 3) {
 				throw new IllegalArgumentException("The provided mask should be a 2d image with just one channel of width "
-						+ this.shma.getOriginalShape()[1] + " and height " + this.shma.getOriginalShape()[0]);
+						+ imDims[0] + " and height " + imDims[1]);
 			}
 		}
+		return rai;
 	}
 	
 	public List<Mask> processBatchOfPoints(List<int[]> points) throws IOException, RuntimeException, InterruptedException {
@@ -749,6 +1198,115 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		Objects.requireNonNull(encodingArea, "Third argument cannot be null. Use the method "
 				+ "'processPoints(List<int[]> pointsList, List<int[]> pointsNegList, Rectangle zoomedArea, boolean returnAll)'"
 				+ " instead");
+		encodePointsArea(pointsList, pointsNegList, encodingArea);
+		String key = cacheKey("points", returnAll, pointsList, pointsNegList);
+		List<Mask> cached = getCachedMasks(key);
+		if (cached != null)
+			return cached;
+		pointsList = adaptPointPrompts(pointsList);
+		pointsNegList = adaptPointPrompts(pointsNegList);
+		this.script = "";
+		processPointsWithSAM(pointsList.size(), pointsNegList.size(), returnAll);
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("input_points", pointsList);
+		inputs.put("input_neg_points", pointsNegList);
+		printScript(script, "Points and negative points inference");
+		List<Mask> polys = processAndRetrieveContours(inputs);
+		recalculatePolys(polys, encodeCoords);
+		cacheMasks(key, polys);
+		debugPrinter.printText("processPoints() obtained " + polys.size() + " polygons");
+		return polys;
+	}
+	
+	/**
+	 * Add a point to an object that is being segmented interactively, click by click. Only the new point is sent
+	 * to the Python process, which keeps the previous points and the low resolution logits of the last mask
+	 * of the object and uses them as the mask prompt of the decoder. This is faster than decoding all the
+	 * prompts again and keeps the mask stable between clicks.
+	 * If the encoded area of the image changes, the prompts of the object are sent again.
+	 * 
+	 * @param objectId
+	 * 	unique identifier of the object being refined. If it has not been used before, a new object is started
+	 * @param point
+	 * 	the new point, int array of length 2 of the form [x, y]
+	 * @param isPositive
+	 * 	whether the point belongs to the object of interest or to the background
+	 * @param returnAll
+	 * 	whether to return all the polygons created by the model or only the biggest
+	 * @return a list of polygons where each polygon is the contour of a mask of the object
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> refinePoints(String objectId, int[] point, boolean isPositive, boolean returnAll)
+			throws IOException, RuntimeException, InterruptedException {
+		Objects.requireNonNull(objectId, "The object identifier cannot be null.");
+		List<int[]> history = refinePrompts.get(objectId);
+		if (history == null) {
+			history = new ArrayList<int[]>();
+			refinePrompts.put(objectId, history);
+		}
+		history.add(new int[] {point[0], point[1], isPositive ? 1 : 0});
+		List<int[]> pointsList = history.stream().filter(pp -> pp[2] == 1).collect(Collectors.toList());
+		List<int[]> pointsNegList = history.stream().filter(pp -> pp[2] == 0).collect(Collectors.toList());
+		if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
+				|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
+			evaluateReencodingNeeded(pointsList, pointsNegList, getCurrentlyEncodedArea());
+		}
+		boolean resetAll = refineStatesVersion != encodingVersion;
+		if (resetAll) {
+			refineStatesInPython.clear();
+			refineStatesVersion = encodingVersion;
+		}
+		boolean reset = !refineStatesInPython.contains(objectId);
+		List<int[]> newPrompts = reset ? history : history.subList(history.size() - 1, history.size());
+		this.script = "";
+		processRefineWithSAM(returnAll);
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("object_id", objectId);
+		inputs.put("new_points", adaptPointPrompts(newPrompts));
+		inputs.put("new_labels", newPrompts.stream().map(pp -> pp[2]).collect(Collectors.toList()));
+		inputs.put("reset", reset);
+		inputs.put("reset_all", resetAll);
+		printScript(script, "Interactive refinement inference");
+		// If the task fails, the state in Python might not be consistent anymore
+		refineStatesInPython.remove(objectId);
+		List<Mask> polys = processAndRetrieveContours(inputs);
+		refineStatesInPython.add(objectId);
+		recalculatePolys(polys, encodeCoords);
+		debugPrinter.printText("refinePoints() obtained " + polys.size() + " polygons");
+		return polys;
+	}
+	
+	/**
+	 * Forget the prompts of an object that was being refined interactively and free its state in Python. The next call to 
+	 * {@link #refinePoints(String, int[], boolean, boolean)} with the same identifier will start a new object.
+	 * @param objectId
+	 * 	unique identifier of the object
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public void forgetRefinement(String objectId) throws IOException, RuntimeException, InterruptedException {
+		refineStatesInPython.remove(objectId);
+		if (refinePrompts.remove(objectId) == null)
+			return;
+		String code = "refine_states.pop(object_id, None)" + System.lineSeparator();
+		printScript(code, "Forget refinement");
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("object_id", objectId);
+		Task task = python.task(code, inputs);
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new RuntimeException("Task canceled");
+		else if (task.status == TaskStatus.FAILED)
+			throw new RuntimeException(task.error);
+		else if (task.status == TaskStatus.CRASHED)
+			throw new RuntimeException(task.error);
+	}
+	
+	private void encodePointsArea(List<int[]> pointsList, List<int[]> pointsNegList, Rectangle encodingArea)
+			throws IOException, RuntimeException, InterruptedException {
 		if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
 				|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
 			if (encodingArea.x == -1) {
@@ -761,18 +1319,142 @@ public abstract class AbstractSamJ implements AutoCloseable {
 			}
 			evaluateReencodingNeeded(pointsList, pointsNegList, encodingArea);
 		}
-		pointsList = adaptPointPrompts(pointsList);
-		pointsNegList = adaptPointPrompts(pointsNegList);
+	}
+	
+	private int[] encodeBoxArea(int[] boundingBox) throws IOException, RuntimeException, InterruptedException {
+		if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
+				|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
+			if (needsMoreResolution(boundingBox)) {
+				this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
+				reencodeCrop();
+			} else if (!isAreaEncoded(boundingBox)) {
+				this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
+				reencodeCrop();
+			}
+		}
+		return new int[] {(int) Math.ceil((boundingBox[0] - encodeCoords[0]) / (double) scale), 
+				(int) Math.ceil((boundingBox[1] - encodeCoords[1]) / (double) scale),
+				(int) Math.ceil((boundingBox[2] - encodeCoords[0]) / (double) scale), (int) Math.ceil((boundingBox[3] - encodeCoords[1]) / (double) scale)};
+	}
+	
+	/**
+	 * Run the model with a list of points (and optionally negative points) as the prompt and return
+	 * all the candidate masks that the model produces, sorted by the IoU predicted by the model.
+	 * This is useful for ambiguous prompts, where the user can switch between candidates without 
+	 * calling the model again.
+	 * @param pointsList
+	 * 	the list of points that serve as a prompt. Each point is an int array
+	 * 	of length 2, first position is x-axis, second y-axis
+	 * @param pointsNegList
+	 * 	the list of points that does not point to the instance of interest, but the background
+	 * @param returnAll
+	 * 	whether to return all the polygons of each candidate or only the biggest
+	 * @return all the candidates produced by the model with their predicted IoU
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public MaskCandidates processPointsCandidates(List<int[]> pointsList, List<int[]> pointsNegList, boolean returnAll)
+			throws IOException, RuntimeException, InterruptedException {
+		if (pointsNegList == null)
+			pointsNegList = new ArrayList<int[]>();
+		Rectangle rect = new Rectangle();
+		rect.x = -1;
+		encodePointsArea(pointsList, pointsNegList, rect);
+		String key = cacheKey("points_candidates", returnAll, pointsList, pointsNegList);
+		MaskCandidates cached = getCachedCandidates(key);
+		if (cached != null)
+			return cached;
 		this.script = "";
-		processPointsWithSAM(pointsList.size(), pointsNegList.size(), returnAll);
+		processCandidatesWithSAM(returnAll);
 		HashMap<String, Object> inputs = new HashMap<String, Object>();
-		inputs.put("input_points", pointsList);
-		inputs.put("input_neg_points", pointsNegList);
-		printScript(script, "Points and negative points inference");
-		List<Mask> polys = processAndRetrieveContours(inputs);
-		recalculatePolys(polys, encodeCoords);
-		debugPrinter.printText("processPoints() obtained " + polys.size() + " polygons");
-		return polys;
+		inputs.put("input_points", adaptPointPrompts(pointsList));
+		inputs.put("input_neg_points", adaptPointPrompts(pointsNegList));
+		inputs.put("input_box", null);
+		printScript(script, "Points candidates inference");
+		MaskCandidates candidates = processAndRetrieveCandidates(inputs);
+		cacheCandidates(key, candidates);
+		debugPrinter.printText("processPointsCandidates() obtained " + candidates.size() + " candidates");
+		return candidates;
+	}
+	
+	/**
+	 * Run the model with a bounding box as the prompt and return all the candidate masks that the 
+	 * model produces, sorted by the IoU predicted by the model. The bounding box should
+	 * be a int array of length 4 of the form [x0, y0, x1, y1].
+	 * @param boundingBox
+	 * 	the bounding box that serves as the prompt
+	 * @param returnAll
+	 * 	whether to return all the polygons of each candidate or only the biggest
+	 * @return all the candidates produced by the model with their predicted IoU
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public MaskCandidates processBoxCandidates(int[] boundingBox, boolean returnAll)
+			throws IOException, RuntimeException, InterruptedException {
+		int[] adaptedBoundingBox = encodeBoxArea(boundingBox);
+		String key = cacheKey("box_candidates", returnAll, boundingBox);
+		MaskCandidates cached = getCachedCandidates(key);
+		if (cached != null)
+			return cached;
+		this.script = "";
+		processCandidatesWithSAM(returnAll);
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("input_points", new ArrayList<int[]>());
+		inputs.put("input_neg_points", new ArrayList<int[]>());
+		inputs.put("input_box", adaptedBoundingBox);
+		printScript(script, "Rectangle candidates inference");
+		MaskCandidates candidates = processAndRetrieveCandidates(inputs);
+		cacheCandidates(key, candidates);
+		debugPrinter.printText("processBoxCandidates() obtained " + candidates.size() + " candidates");
+		return candidates;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private MaskCandidates processAndRetrieveCandidates(HashMap<String, Object> inputs) 
+			throws IOException, RuntimeException, InterruptedException {
+		Task task = python.task(script, inputs);
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new RuntimeException("Task canceled");
+		else if (task.status != TaskStatus.COMPLETE)
+			throw new RuntimeException(task.error);
+		else if (task.outputs.get("candidate_ious") == null)
+			throw new RuntimeException("No 'candidate_ious' output found");
+		else if (task.outputs.get("candidate_n_polygons") == null)
+			throw new RuntimeException("No 'candidate_n_polygons' output found");
+		List<Number> ious = (List<Number>) task.outputs.get("candidate_ious");
+		List<Number> nPolygons = (List<Number>) task.outputs.get("candidate_n_polygons");
+		Iterator<String> contoursX = ((List<String>) task.outputs.get("contours_x")).iterator();
+		Iterator<String> contoursY = ((List<String>) task.outputs.get("contours_y")).iterator();
+		Iterator<String> rles = ((List<String>) task.outputs.get("rle")).iterator();
+		List<List<Mask>> candidates = new ArrayList<List<Mask>>(ious.size());
+		for (Number nn : nPolygons) {
+			List<Mask> masks = new ArrayList<Mask>(nn.intValue());
+			for (int i = 0; i < nn.intValue(); i ++) {
+				int[] xArr = unpackInt32(contoursX.next());
+				int[] yArr = unpackInt32(contoursY.next());
+				long[] rle = Arrays.stream(unpackInt32(rles.next())).asLongStream().toArray();
+				masks.add(Mask.build(new Polygon(xArr, yArr, xArr.length), rle));
+			}
+			recalculatePolys(masks, encodeCoords);
+			candidates.add(masks);
+		}
+		return MaskCandidates.build(candidates, ious.stream().mapToDouble(Number::doubleValue).toArray());
+	}
+	
+	/**
+	 * Decode an array of integers packed in Python as base64 little endian int32
+	 * @param packed
+	 * 	the base64 string
+	 * @return the array of integers
+	 */
+	private static int[] unpackInt32(String packed) {
+		IntBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(packed)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		int[] arr = new int[buffer.remaining()];
+		buffer.get(arr);
+		return arr;
 	}
 	
 	private List<int[]> adaptPointPrompts(List<int[]> pointsList) {
@@ -822,19 +1504,11 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 */
 	public List<Mask> processBox(int[] boundingBox, boolean returnAll)
 			throws IOException, RuntimeException, InterruptedException {
-		if (!this.imageSmall || this.encodeCoords[0] != 0 || this.encodeCoords[1] != 0 
-				|| targetDims[0] != img.dimensionsAsLongArray()[0] || targetDims[1] != img.dimensionsAsLongArray()[1]) {
-			if (needsMoreResolution(boundingBox)) {
-				this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
-				reencodeCrop();
-			} else if (!isAreaEncoded(boundingBox)) {
-				this.encodeCoords = calculateEncodingNewCoords(boundingBox, this.img.dimensionsAsLongArray());
-				reencodeCrop();
-			}
-		}
-		int[] adaptedBoundingBox = new int[] {(int) Math.ceil((boundingBox[0] - encodeCoords[0]) / (double) scale), 
-				(int) Math.ceil((boundingBox[1] - encodeCoords[1]) / (double) scale),
-				(int) Math.ceil((boundingBox[2] - encodeCoords[0]) / (double) scale), (int) Math.ceil((boundingBox[3] - encodeCoords[1]) / (double) scale)};;
+		int[] adaptedBoundingBox = encodeBoxArea(boundingBox);
+		String key = cacheKey("box", returnAll, boundingBox);
+		List<Mask> cached = getCachedMasks(key);
+		if (cached != null)
+			return cached;
 		this.script = "";
 		processBoxWithSAM(returnAll);
 		HashMap<String, Object> inputs = new HashMap<String, Object>();
@@ -842,6 +1516,7 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		printScript(script, "Rectangle inference");
 		List<Mask> polys = processAndRetrieveContours(inputs);
 		recalculatePolys(polys, encodeCoords);
+		cacheMasks(key, polys);
 		debugPrinter.printText("processBox() obtained " + polys.size() + " polygons");
 		return polys;
 	}
@@ -893,6 +1568,203 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		return polys;
 	}
 	
+	/**
+	 * Segment every object in the encoded area of the image without any prompt from the user.
+	 * A regular grid of points is run through the decoder in batches, the masks are filtered by the IoU 
+	 * predicted by the model and by their stability and the overlaps between them are removed.
+	 * The default parameters are used
+	 * 
+	 * @param callback
+	 * 	callback that receives the masks as they are found, can be null
+	 * @return the list of all the masks found
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(BatchCallback callback) 
+			throws IOException, RuntimeException, InterruptedException {
+		return segmentEverything(DEFAULT_POINTS_PER_SIDE, DEFAULT_POINTS_PER_BATCH, 
+				DEFAULT_PRED_IOU_THRESH, DEFAULT_STABILITY_THRESH, false, callback);
+	}
+	
+	/**
+	 * Segment every object in the encoded area of the image without any prompt from the user.
+	 * A regular grid of points is run through the decoder in batches, the masks are filtered by the IoU 
+	 * predicted by the model and by their stability and the overlaps between them are removed.
+	 * If no area has been encoded yet for a big image, the whole image is encoded.
+	 * 
+	 * @param pointsPerSide
+	 * 	number of points per side of the grid
+	 * @param pointsPerBatch
+	 * 	number of points of the grid that are decoded at the same time
+	 * @param predIouThresh
+	 * 	minimum IoU predicted by the model for a mask to be kept
+	 * @param stabilityThresh
+	 * 	minimum stability score for a mask to be kept
+	 * @param returnAll
+	 * 	whether to return all the polygons of each of the masks or only the biggest
+	 * @param callback
+	 * 	callback that receives the masks as they are found, can be null
+	 * @return the list of all the masks found
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, int pointsPerBatch, double predIouThresh, 
+			double stabilityThresh, boolean returnAll, BatchCallback callback) 
+			throws IOException, RuntimeException, InterruptedException {
+		return segmentEverything(pointsPerSide, pointsPerBatch, predIouThresh, stabilityThresh, returnAll, callback, null);
+	}
+	
+	/**
+	 * Segment every object in the encoded area of the image without any prompt from the user, as
+	 * {@link #segmentEverything(int, int, double, double, boolean, BatchCallback)}. With a callback, the
+	 * process can be stopped with the token: the decoder stops after the current batch of the grid and the
+	 * masks found until then are returned
+	 * 
+	 * @param pointsPerSide
+	 * 	number of points per side of the grid
+	 * @param pointsPerBatch
+	 * 	number of points of the grid that are decoded at the same time
+	 * @param predIouThresh
+	 * 	minimum IoU predicted by the model for a mask to be kept
+	 * @param stabilityThresh
+	 * 	minimum stability score for a mask to be kept
+	 * @param returnAll
+	 * 	whether to return all the polygons of each of the masks or only the biggest
+	 * @param callback
+	 * 	callback that receives the masks as they are found, can be null
+	 * @param token
+	 * 	token to cancel the process, only used with a callback. Can be null
+	 * @return the list of all the masks found
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Mask> segmentEverything(int pointsPerSide, int pointsPerBatch, double predIouThresh, 
+			double stabilityThresh, boolean returnAll, BatchCallback callback, CancellationToken token) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (pointsPerSide < 1 || pointsPerBatch < 1)
+			throw new IllegalArgumentException("The number of points per side and per batch should be at least 1.");
+		if (!this.imageSmall && targetDims[0] == 0) {
+			long[] imgDims = this.img.dimensionsAsLongArray();
+			this.encodeCoords = new long[] {0, 0};
+			reencodeCrop(new long[] {imgDims[0], imgDims[1]});
+		}
+		List<int[]> grid = createEverythingGrid(pointsPerSide);
+		String key = cacheKey("everything", returnAll, pointsPerSide, pointsPerBatch, predIouThresh, stabilityThresh);
+		List<Mask> cached = getCachedMasks(key);
+		if (cached != null)
+			return callback == null ? cached : replayCachedMasks(cached, callback);
+		this.script = "";
+		cellSAM(returnAll);
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("grid_points", grid);
+		inputs.put("points_per_batch", pointsPerBatch);
+		inputs.put("pred_iou_thresh", predIouThresh);
+		inputs.put("stability_thresh", stabilityThresh);
+		inputs.put("stream", callback != null);
+		printScript(script, "Segment everything inference");
+		List<Mask> polys;
+		if (callback != null) {
+			polys = processAndRetrieveContours(inputs, callback, token);
+		} else {
+			polys = processAndRetrieveContours(inputs);
+			recalculatePolys(polys, encodeCoords);
+			if (resultStore != null) {
+				int firstStored = resultStore.size();
+				resultStore.appendAll(polys);
+				polys = resultStore.asList(firstStored, resultStore.size());
+			}
+		}
+		if (resultStore == null && (token == null || !token.isCancelled()))
+			cacheMasks(key, polys);
+		debugPrinter.printText("segmentEverything() obtained " + polys.size() + " polygons");
+		return polys;
+	}
+	
+	/**
+	 * Segment every object of an image of any size, tile by tile. Each tile is encoded with some context
+	 * around it and segmented as in {@link #segmentEverything(int, int, double, double, boolean, BatchCallback)}.
+	 * The objects cut by the borders between tiles are merged by {@link TileStitcher}, and every object is
+	 * delivered as soon as the tiles that contain it are processed, so the masks of the whole image are never
+	 * kept in memory at the same time
+	 * @param tileSize
+	 * 	side of the tiles without the overlap
+	 * @param overlap
+	 * 	context added at each side of the tiles
+	 * @param pointsPerSide
+	 * 	number of points per side of the grid of each tile
+	 * @param pointsPerBatch
+	 * 	number of points of the grid decoded at the same time
+	 * @param predIouThresh
+	 * 	minimum IoU predicted by the model for a mask to be kept
+	 * @param stabilityThresh
+	 * 	minimum stability score for a mask to be kept
+	 * @param returnAll
+	 * 	whether to return all the polygons of each mask or only the biggest
+	 * @param consumer
+	 * 	receives the masks of the objects, in image coordinates, as they are completed
+	 * @return the number of objects delivered
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public long segmentEverythingTiled(int tileSize, int overlap, int pointsPerSide, int pointsPerBatch, 
+			double predIouThresh, double stabilityThresh, boolean returnAll, Consumer<Mask> consumer) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (tileSize < MIN_ENCODED_AREA_SIDE || overlap < 0)
+			throw new IllegalArgumentException("The tiles should have a side of at least " + MIN_ENCODED_AREA_SIDE 
+					+ " pixels and the overlap cannot be negative.");
+		if (pointsPerSide < 1 || pointsPerBatch < 1)
+			throw new IllegalArgumentException("The number of points per side and per batch should be at least 1.");
+		long[] imgDims = this.img.dimensionsAsLongArray();
+		TileStitcher stitcher = new TileStitcher(imgDims[0], imgDims[1], tileSize, tileSize, consumer);
+		for (int ty = 0; ty < stitcher.getTilesY(); ty ++) {
+			for (int tx = 0; tx < stitcher.getTilesX(); tx ++) {
+				if (tx + ty > 0)
+					waitBetweenShards(null, null);
+				long[] core = stitcher.getCore(tx, ty);
+				long x0 = Math.max(0, core[0] - overlap);
+				long y0 = Math.max(0, core[1] - overlap);
+				this.encodeCoords = new long[] {x0, y0};
+				reencodeCrop(new long[] {Math.min(imgDims[0], core[2] + overlap) - x0, Math.min(imgDims[1], core[3] + overlap) - y0});
+				this.script = "";
+				cellSAM(returnAll);
+				HashMap<String, Object> inputs = new HashMap<String, Object>();
+				inputs.put("grid_points", createEverythingGrid(pointsPerSide));
+				inputs.put("points_per_batch", pointsPerBatch);
+				inputs.put("pred_iou_thresh", predIouThresh);
+				inputs.put("stability_thresh", stabilityThresh);
+				inputs.put("stream", false);
+				printScript(script, "Segment everything inference");
+				List<Mask> polys = processAndRetrieveContours(inputs);
+				recalculatePolys(polys, encodeCoords);
+				stitcher.addTile(tx, ty, polys);
+				debugPrinter.printText("segmentEverythingTiled() tile " + (tx + ty * stitcher.getTilesX() + 1) + "/" 
+						+ (stitcher.getTilesX() * stitcher.getTilesY()) + " obtained " + polys.size() + " polygons, " 
+						+ stitcher.getNumberOfPendingPieces() + " pieces waiting for the next tiles");
+			}
+		}
+		stitcher.finish();
+		return stitcher.getNumberOfDelivered();
+	}
+	
+	/**
+	 * Regular grid of points over the encoded area, in the coordinates of the encoded (and subsampled) crop
+	 */
+	private List<int[]> createEverythingGrid(int pointsPerSide) {
+		long[] encodedDims = scale == 1 ? targetDims : targetReescaledDims;
+		List<int[]> grid = new ArrayList<int[]>(pointsPerSide * pointsPerSide);
+		for (int j = 0; j < pointsPerSide; j ++) {
+			for (int i = 0; i < pointsPerSide; i ++) {
+				grid.add(new int[] {(int) ((i + 0.5) * encodedDims[0] / pointsPerSide), 
+						(int) ((j + 0.5) * encodedDims[1] / pointsPerSide)});
+			}
+		}
+		return grid;
+	}
+	
 	private ArrayList<int[]> getPointsNotInRect(List<int[]> pointsList, List<int[]> pointsNegList, Rectangle encodingArea) {
 		ArrayList<int[]> points = new ArrayList<int[]>();
 		ArrayList<int[]> not = new ArrayList<int[]>();
@@ -1152,23 +2024,10 @@ public abstract class AbstractSamJ implements AutoCloseable {
 	 * 	position of the crop in the total image
 	 */
 	protected void recalculatePolys(List<Mask> masks, long[] encodeCoords) {
-		masks.stream().forEach(pp -> {
-			pp.getContour().xpoints = Arrays.stream(pp.getContour().xpoints).map(x -> x * scale + (int) encodeCoords[0]).toArray();
-			pp.getContour().ypoints = Arrays.stream(pp.getContour().ypoints).map(y -> y * scale + (int) encodeCoords[1]).toArray();
-			long[] upscaledRLE = new long[pp.getRLEMask().length * scale];
-			for (int i = 0; i < pp.getRLEMask().length; i += 2) {
-				int x = (int) (pp.getRLEMask()[i] % Math.ceil(this.targetDims[0] / (double) scale));
-				int y = (int) (pp.getRLEMask()[i] / Math.ceil(this.targetDims[0] / (double) scale));
-				int newX = x * scale;
-				int newY = y * scale;
-				long newLen = pp.getRLEMask()[i + 1] * scale;
-				for (int j = 0; j < scale; j ++) {
-					upscaledRLE[i * scale + j * 2] = newX + encodeCoords[0] + (encodeCoords[1] + newY + j) * this.img.dimensionsAsLongArray()[0];
-					upscaledRLE[i * scale + j * 2 + 1] = newLen;
-				}
-			}
-			pp.rleEncoding = upscaledRLE;
-		});
+		if (contourTolerance >= 0)
+			PolygonSimplifier.simplify(masks, contourTolerance / scale);
+		long encodedWidth = (long) Math.ceil(this.targetDims[0] / (double) scale);
+		MaskBackProjector.backProject(masks, encodeCoords, scale, encodedWidth, this.img.dimensionsAsLongArray()[0]);
 	}
 
 	public String persistEncoding() throws IOException, InterruptedException {
@@ -1187,6 +2046,7 @@ public abstract class AbstractSamJ implements AutoCloseable {
 			throw e;
 		}
 		this.savedEncodings.add(uuid);
+		this.persistedEncodings.put(uuid, new EncodingState());
 		return uuid;
 	}
 
@@ -1194,6 +2054,7 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		if (!this.savedEncodings.contains(encodingName))
 			throw new IllegalArgumentException("No saved encoding found with name: " + encodingName);
 		String setEncoding = selectEncodingScript(encodingName);
+		encodingVersion ++;
 		try {
 			Task task = python.task(setEncoding);
 			task.waitFor();
@@ -1206,7 +2067,12 @@ public abstract class AbstractSamJ implements AutoCloseable {
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			throw e;
 		}
-		
+		EncodingState state = persistedEncodings.get(encodingName);
+		if (state != null)
+			state.restore();
+		else
+			activeEncodingId = UUID.randomUUID().toString();
+		purgeResultCache();
 	}
 
 
@@ -1227,6 +2093,351 @@ public abstract class AbstractSamJ implements AutoCloseable {
 			throw e;
 		}
 		this.savedEncodings.remove(encodingName);
+		this.persistedEncodings.remove(encodingName);
+		purgeResultCache();
+	}
+	
+	/**
+	 * Set the tolerance used to simplify the contours of the masks returned. The simplified contours are
+	 * always at most at this distance from the boundary of the exact mask. The RLE masks are not simplified.
+	 * The results cached with the previous tolerance are discarded
+	 * @param tolerance
+	 * 	maximum distance in pixels between the simplified contour and the exact one. 0 only removes the
+	 * 	collinear vertices and a negative value disables the simplification
+	 */
+	public void setContourTolerance(double tolerance) {
+		if (tolerance == contourTolerance)
+			return;
+		this.contourTolerance = tolerance;
+		clearResultCache();
+	}
+	
+	/**
+	 * 
+	 * @return the tolerance used to simplify the contours of the masks returned, negative if they are not simplified
+	 */
+	public double getContourTolerance() {
+		return this.contourTolerance;
+	}
+	
+	/**
+	 * Enable or disable the suppression of duplicated masks in the outputs of the batches of prompts.
+	 * When several prompts segment the same object, only the first mask is delivered and returned and the rest
+	 * are reported through {@link BatchCallback#deleteDuplicates(List)} when the batch has a callback.
+	 * The results cached with the previous setting are discarded
+	 * @param iouThreshold
+	 * 	masks whose IoU with a mask already produced in the batch is bigger than this value are suppressed.
+	 * 	Between 0 and 1, a negative value disables the deduplication
+	 */
+	public void setBatchDeduplication(double iouThreshold) {
+		if (iouThreshold > 1)
+			throw new IllegalArgumentException("The IoU threshold should be between 0 and 1, or negative to disable the deduplication.");
+		if (iouThreshold == batchIouThreshold)
+			return;
+		this.batchIouThreshold = iouThreshold;
+		clearResultCache();
+	}
+	
+	/**
+	 * Set a store where the masks produced by the batches of prompts and by segment everything are appended
+	 * as they arrive, with or without a {@link BatchCallback}, instead of being accumulated in the heap.
+	 * Those methods then return a lazy view of the part of the store that they wrote.
+	 * The results of the batches are not cached while a store is set
+	 * @param store
+	 * 	the store, or null to keep the results in the heap
+	 */
+	public void setResultStore(MaskStore store) {
+		this.resultStore = store;
+	}
+	
+	/**
+	 * 
+	 * @return the store where the results of the batches are appended, null if they are kept in the heap
+	 */
+	public MaskStore getResultStore() {
+		return this.resultStore;
+	}
+	
+	/**
+	 * Set the scheduler that runs the calls to this instance, so the batches are decoded in shards of at most
+	 * {@link PriorityScheduler#getShardSize()} prompts, cut short when an interactive request arrives, and the
+	 * interactive requests are run between them
+	 * @param scheduler
+	 * 	the scheduler, or null to decode every batch at once
+	 */
+	public void setScheduler(PriorityScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+	
+	/**
+	 * Restrict the Python process to a subset of the CPU cores and make PyTorch use one thread per core.
+	 * Useful when several models run in parallel on the same machine, so they do not compete for the same cores.
+	 * The affinity is applied to every thread of the process, so the threads created afterwards inherit it, but only
+	 * on the systems that support it (Linux). The number of threads of PyTorch is always set
+	 * @param cores
+	 * 	indexes of the cores the process can run on
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void setCpuAffinity(int[] cores) throws IOException, RuntimeException, InterruptedException {
+		if (cores == null || cores.length == 0)
+			throw new IllegalArgumentException("At least one core is needed.");
+		String code = ""
+				+ "import os" + System.lineSeparator()
+				+ "import torch" + System.lineSeparator()
+				+ "cores = [" + Arrays.stream(cores).mapToObj(String::valueOf).collect(Collectors.joining(", ")) + "]" + System.lineSeparator()
+				+ "if hasattr(os, 'sched_setaffinity'):" + System.lineSeparator()
+				+ "  tids = os.listdir('/proc/self/task') if os.path.isdir('/proc/self/task') else ['0']" + System.lineSeparator()
+				+ "  for tid in tids:" + System.lineSeparator()
+				+ "    try:" + System.lineSeparator()
+				+ "      os.sched_setaffinity(int(tid), cores)" + System.lineSeparator()
+				+ "    except OSError:" + System.lineSeparator()
+				+ "      pass" + System.lineSeparator()
+				+ "  os.sched_setaffinity(0, cores)" + System.lineSeparator()
+				+ "torch.set_num_threads(len(cores))" + System.lineSeparator();
+		printScript(code, "CPU affinity");
+		Task task = python.task(code);
+		task.waitFor();
+		if (task.status == TaskStatus.CANCELED)
+			throw new RuntimeException("Task canceled");
+		else if (task.status == TaskStatus.FAILED)
+			throw new RuntimeException(task.error);
+		else if (task.status == TaskStatus.CRASHED)
+			throw new RuntimeException(task.error);
+	}
+	
+	/**
+	 * Set the maximum number of results that are kept in memory to avoid running the model again
+	 * for prompts that have already been processed on the same encoding
+	 * @param size
+	 * 	maximum number of results cached, 0 disables the cache
+	 */
+	public void setResultCacheSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("The size of the cache cannot be negative.");
+		synchronized (resultCache) {
+			this.resultCacheSize = size;
+			Iterator<String> it = resultCache.keySet().iterator();
+			while (resultCache.size() > size) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Remove all the results cached
+	 */
+	public void clearResultCache() {
+		synchronized (resultCache) {
+			resultCache.clear();
+		}
+	}
+	
+	/**
+	 * Remove the cached results that belong to encodings that cannot be active anymore, 
+	 * that is, every encoding that is not the active one nor a persisted one
+	 */
+	private void purgeResultCache() {
+		Set<String> alive = new HashSet<String>();
+		alive.add(activeEncodingId);
+		persistedEncodings.values().forEach(ee -> alive.add(ee.id));
+		synchronized (resultCache) {
+			resultCache.keySet().removeIf(kk -> !alive.contains(kk.substring(0, kk.indexOf('|'))));
+		}
+	}
+	
+	/**
+	 * Build the key of the result cache for a request. The points are sorted so the order in which they 
+	 * were given does not matter
+	 * @param kind
+	 * 	type of request
+	 * @param returnAll
+	 * 	whether all the polygons are returned or only the biggest
+	 * @param prompts
+	 * 	the prompts of the request, lists of points, arrays or numbers
+	 * @return the key
+	 */
+	private String cacheKey(String kind, boolean returnAll, Object... prompts) {
+		StringBuilder key = new StringBuilder(activeEncodingId).append('|').append(kind)
+				.append('|').append(returnAll).append('|').append(isIJROIManager);
+		for (Object pp : prompts) {
+			key.append('|');
+			if (pp instanceof List) {
+				List<?> list = (List<?>) pp;
+				list.stream().map(AbstractSamJ::promptToString).sorted().forEach(str -> key.append(str).append(';'));
+			} else {
+				key.append(promptToString(pp));
+			}
+		}
+		return key.toString();
+	}
+	
+	private static String promptToString(Object prompt) {
+		if (prompt instanceof int[])
+			return Arrays.toString((int[]) prompt);
+		else if (prompt instanceof Rectangle) {
+			Rectangle rr = (Rectangle) prompt;
+			return "[" + rr.x + ", " + rr.y + ", " + rr.width + ", " + rr.height + "]";
+		} else if (prompt instanceof List)
+			return ((List<?>) prompt).stream().map(AbstractSamJ::promptToString).sorted().collect(Collectors.joining(";", "{", "}"));
+		return String.valueOf(prompt);
+	}
+	
+	private List<Mask> getCachedMasks(String key) {
+		Object cached;
+		synchronized (resultCache) {
+			cached = resultCache.get(key);
+		}
+		if (!(cached instanceof List))
+			return null;
+		List<?> masks = (List<?>) cached;
+		return masks.stream().map(mm -> ((Mask) mm).copy()).collect(Collectors.toList());
+	}
+	
+	private void cacheMasks(String key, List<Mask> masks) {
+		if (resultCacheSize == 0)
+			return;
+		List<Mask> copy = masks.stream().map(Mask::copy).collect(Collectors.toList());
+		synchronized (resultCache) {
+			resultCache.put(key, copy);
+		}
+	}
+	
+	private MaskCandidates getCachedCandidates(String key) {
+		Object cached;
+		synchronized (resultCache) {
+			cached = resultCache.get(key);
+		}
+		if (!(cached instanceof MaskCandidates))
+			return null;
+		return copyCandidates((MaskCandidates) cached);
+	}
+	
+	private void cacheCandidates(String key, MaskCandidates candidates) {
+		if (resultCacheSize == 0)
+			return;
+		MaskCandidates copy = copyCandidates(candidates);
+		synchronized (resultCache) {
+			resultCache.put(key, copy);
+		}
+	}
+	
+	private static MaskCandidates copyCandidates(MaskCandidates candidates) {
+		List<List<Mask>> masks = candidates.getCandidates().stream()
+				.map(cc -> cc.stream().map(Mask::copy).collect(Collectors.toList())).collect(Collectors.toList());
+		double[] ious = new double[candidates.size()];
+		for (int i = 0; i < ious.length; i ++)
+			ious[i] = candidates.getIoU(i);
+		return MaskCandidates.build(masks, ious);
+	}
+	
+	/**
+	 * Send a cached result of a batch to the callback as if it had just been computed
+	 */
+	private static List<Mask> replayCachedMasks(List<Mask> masks, BatchCallback callback) {
+		callback.setTotalNumberOfRois(1);
+		callback.drawRoi(masks);
+		callback.updateProgress(1);
+		return masks;
+	}
+	
+	/**
+	 * Callback of the batches run without one, the masks are only collected in the result
+	 */
+	private static final BatchCallback SILENT_CALLBACK = new BatchCallback() {
+
+		@Override
+		public void setTotalNumberOfRois(int nRois) {
+		}
+
+		@Override
+		public void updateProgress(int n) {
+		}
+
+		@Override
+		public void drawRoi(List<Mask> masks) {
+		}
+
+		@Override
+		public void deletePointPrompt(List<int[]> promptList) {
+		}
+
+		@Override
+		public void deleteRectPrompt(List<int[]> promptList) {
+		}
+	};
+	
+	/**
+	 * Callback that forwards the events of one part of a batch (a cluster or a shard of prompts), offsetting the
+	 * progress by the prompts of the parts already processed. The total number of prompts is reported once for all the parts
+	 */
+	static class OffsetCallback implements BatchCallback {
+		
+		private final BatchCallback callback;
+		
+		private final int offset;
+		
+		OffsetCallback(BatchCallback callback, int offset) {
+			this.callback = callback;
+			this.offset = offset;
+		}
+
+		@Override
+		public void setTotalNumberOfRois(int nRois) {
+		}
+
+		@Override
+		public void updateProgress(int n) {
+			callback.updateProgress(offset + n);
+		}
+
+		@Override
+		public void drawRoi(List<Mask> masks) {
+			callback.drawRoi(masks);
+		}
+
+		@Override
+		public void deletePointPrompt(List<int[]> promptList) {
+			callback.deletePointPrompt(promptList);
+		}
+
+		@Override
+		public void deleteRectPrompt(List<int[]> promptList) {
+			callback.deleteRectPrompt(promptList);
+		}
+
+		@Override
+		public void deleteDuplicates(List<Mask> duplicates) {
+			callback.deleteDuplicates(duplicates);
+		}
+
+		@Override
+		public boolean hasDemand() {
+			return callback.hasDemand();
+		}
+	}
+	
+	/**
+	 * Everything needed to go back to a persisted encoding
+	 */
+	private class EncodingState {
+		
+		private final String id = activeEncodingId;
+		private final long[] encodeCoords = AbstractSamJ.this.encodeCoords == null ? null : AbstractSamJ.this.encodeCoords.clone();
+		private final long[] targetDims = AbstractSamJ.this.targetDims == null ? null : AbstractSamJ.this.targetDims.clone();
+		private final long[] targetReescaledDims = 
+				AbstractSamJ.this.targetReescaledDims == null ? null : AbstractSamJ.this.targetReescaledDims.clone();
+		private final int scale = AbstractSamJ.this.scale;
+		
+		private void restore() {
+			activeEncodingId = id;
+			AbstractSamJ.this.encodeCoords = encodeCoords == null ? null : encodeCoords.clone();
+			AbstractSamJ.this.targetDims = targetDims == null ? null : targetDims.clone();
+			AbstractSamJ.this.targetReescaledDims = targetReescaledDims == null ? null : targetReescaledDims.clone();
+			AbstractSamJ.this.scale = scale;
+		}
 	}
 	
 	public static String getProgressString() {
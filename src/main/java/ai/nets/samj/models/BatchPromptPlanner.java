@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class that plans how to process a batch of prompts on an image that is too big to be encoded at once.
+ *
+ * The prompts are grouped into spatial clusters: the image is divided into cells that fit in the maximum encoded side
+ * (minus the margin), and every prompt goes to the cell that contains the center of its extent. Prompts bigger than a
+ * cell get a cluster of their own. Each cluster gets the crop that contains all its prompts plus the margin, so every
+ * crop is encoded once and all the prompts of the cluster are decoded against it.
+ * The clusters are returned in raster order of their cells.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class BatchPromptPlanner {
+
+	/**
+	 * Group of prompts that are processed with the same encoding
+	 */
+	public static class Cluster {
+
+		private final List<int[]> points = new ArrayList<int[]>();
+
+		private final List<int[]> rects = new ArrayList<int[]>();
+
+		private final List<List<int[]>> maskPrompts = new ArrayList<List<int[]>>();
+
+		private long minX = Long.MAX_VALUE;
+
+		private long minY = Long.MAX_VALUE;
+
+		private long maxX = Long.MIN_VALUE;
+
+		private long maxY = Long.MIN_VALUE;
+
+		private Rectangle crop;
+
+		private int scale;
+
+		private void include(int[] extent) {
+			minX = Math.min(minX, extent[0]);
+			minY = Math.min(minY, extent[1]);
+			maxX = Math.max(maxX, extent[2]);
+			maxY = Math.max(maxY, extent[3]);
+		}
+
+		/**
+		 *
+		 * @return the point prompts of the cluster, [x, y] in image coordinates
+		 */
+		public List<int[]> getPoints() {
+			return points;
+		}
+
+		/**
+		 *
+		 * @return the rectangle prompts of the cluster, [x0, y0, x1, y1] in image coordinates
+		 */
+		public List<int[]> getRects() {
+			return rects;
+		}
+
+		/**
+		 *
+		 * @return the seed points of each of the objects of the mask prompt that belong to the cluster, in image coordinates
+		 */
+		public List<List<int[]>> getMaskPrompts() {
+			return maskPrompts;
+		}
+
+		/**
+		 *
+		 * @return the number of objects prompted in the cluster
+		 */
+		public int getNumberOfPrompts() {
+			return points.size() + rects.size() + maskPrompts.size();
+		}
+
+		/**
+		 *
+		 * @return the area of the image that is encoded to process the cluster
+		 */
+		public Rectangle getCrop() {
+			return crop;
+		}
+
+		/**
+		 *
+		 * @return the subsampling factor that will be applied to the crop before encoding it
+		 */
+		public int getScale() {
+			return scale;
+		}
+	}
+
+	/**
+	 * Group the prompts into clusters and choose the crop of each of them
+	 * @param points
+	 * 	point prompts, [x, y] in image coordinates. Can be null
+	 * @param rects
+	 * 	rectangle prompts, [x0, y0, x1, y1] in image coordinates. Can be null
+	 * @param maskPrompts
+	 * 	seed points of each of the objects of a mask prompt, in image coordinates. Can be null
+	 * @param imageDims
+	 * 	dimensions of the image, [width, height, ...]
+	 * @param maxSide
+	 * 	maximum side of the crop encoded for a cluster, unless a single prompt is bigger
+	 * @param minSide
+	 * 	minimum side of the crop encoded for a cluster
+	 * @param margin
+	 * 	context added around the prompts of a cluster
+	 * @param maxImgSize
+	 * 	maximum side of the image sent to the encoder, bigger crops are subsampled
+	 * @return the clusters, in raster order
+	 */
+	public static List<Cluster> plan(List<int[]> points, List<int[]> rects, List<List<int[]>> maskPrompts,
+			long[] imageDims, long maxSide, long minSide, long margin, long maxImgSize) {
+		long cellSide = Math.max(minSide, maxSide - 2 * margin);
+		long cellsX = (imageDims[0] + cellSide - 1) / cellSide;
+		TreeMap<Long, Cluster> cells = new TreeMap<Long, Cluster>();
+		List<Cluster> single = new ArrayList<Cluster>();
+		if (points != null) {
+			for (int[] pp : points) {
+				int[] extent = new int[] {pp[0], pp[1], pp[0], pp[1]};
+				Cluster cluster = clusterFor(extent, cells, single, cellSide, cellsX);
+				cluster.points.add(pp);
+				cluster.include(extent);
+			}
+		}
+		if (rects != null) {
+			for (int[] rr : rects) {
+				int[] extent = new int[] {Math.min(rr[0], rr[2]), Math.min(rr[1], rr[3]), Math.max(rr[0], rr[2]), Math.max(rr[1], rr[3])};
+				Cluster cluster = clusterFor(extent, cells, single, cellSide, cellsX);
+				cluster.rects.add(rr);
+				cluster.include(extent);
+			}
+		}
+		if (maskPrompts != null) {
+			for (List<int[]> seeds : maskPrompts) {
+				if (seeds.size() == 0)
+					continue;
+				int[] extent = new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+				for (int[] ss : seeds) {
+					extent[0] = Math.min(extent[0], ss[0]);
+					extent[1] = Math.min(extent[1], ss[1]);
+					extent[2] = Math.max(extent[2], ss[0]);
+					extent[3] = Math.max(extent[3], ss[1]);
+				}
+				Cluster cluster = clusterFor(extent, cells, single, cellSide, cellsX);
+				cluster.maskPrompts.add(seeds);
+				cluster.include(extent);
+			}
+		}
+		List<Cluster> clusters = new ArrayList<Cluster>(cells.values());
+		clusters.addAll(single);
+		for (Cluster cc : clusters) {
+			cc.crop = crop(cc, imageDims, minSide, margin);
+			cc.scale = (int) Math.max(1, Math.min(cc.crop.width, cc.crop.height) / maxImgSize);
+		}
+		return Collections.unmodifiableList(clusters);
+	}
+
+	private static Cluster clusterFor(int[] extent, Map<Long, Cluster> cells, List<Cluster> single, long cellSide, long cellsX) {
+		if (extent[2] - extent[0] > cellSide || extent[3] - extent[1] > cellSide) {
+			Cluster cluster = new Cluster();
+			single.add(cluster);
+			return cluster;
+		}
+		long cx = Math.max(0, ((long) extent[0] + extent[2]) / 2 / cellSide);
+		long cy = Math.max(0, ((long) extent[1] + extent[3]) / 2 / cellSide);
+		return cells.computeIfAbsent(cy * cellsX + cx, k -> new Cluster());
+	}
+
+	/**
+	 * Bounding box of the prompts plus the margin, at least of the minimum side and inside of the image
+	 */
+	private static Rectangle crop(Cluster cluster, long[] imageDims, long minSide, long margin) {
+		long[] x = cropAxis(cluster.minX, cluster.maxX, imageDims[0], minSide, margin);
+		long[] y = cropAxis(cluster.minY, cluster.maxY, imageDims[1], minSide, margin);
+		return new Rectangle((int) x[0], (int) y[0], (int) (x[1] - x[0]), (int) (y[1] - y[0]));
+	}
+
+	private static long[] cropAxis(long min, long max, long size, long minSide, long margin) {
+		long start = Math.max(0, min - margin);
+		long end = Math.min(size, max + 1 + margin);
+		long missing = Math.min(size, minSide) - (end - start);
+		if (missing > 0) {
+			start = Math.max(0, start - (missing + 1) / 2);
+			end = Math.min(size, start + Math.min(size, minSide));
+			start = end - Math.min(size, minSide);
+		}
+		return new long[] {start, end};
+	}
+}
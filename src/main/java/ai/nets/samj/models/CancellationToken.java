@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token used to stop a batch of prompts or the segmentation of everything while it is running.
+ *
+ * Cancelling is cooperative: the Python loop checks the request before every decoder call and stops,
+ * and the method returns the masks that were completed until then instead of throwing an exception.
+ * A token cannot be reset, a new one should be created for every job.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class CancellationToken {
+
+	private volatile boolean cancelled = false;
+
+	private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+	/**
+	 * Request the cancellation of the jobs that use this token
+	 */
+	public void cancel() {
+		List<Runnable> toRun;
+		synchronized (this) {
+			if (cancelled)
+				return;
+			cancelled = true;
+			toRun = new ArrayList<Runnable>(listeners);
+			listeners.clear();
+		}
+		toRun.forEach(Runnable::run);
+	}
+
+	/**
+	 *
+	 * @return whether the cancellation has been requested
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Add an action run when the cancellation is requested. If it was already requested, the action is run now
+	 * @param listener
+	 * 	the action
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!cancelled) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Remove an action added with {@link #addListener(Runnable)}, once the job it belongs to has finished
+	 * @param listener
+	 * 	the action
+	 */
+	public synchronized void removeListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+}
@@ -0,0 +1,227 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.models.AbstractSamJ.BatchCallback;
+
+/**
+ * Callback that groups the events of a batch into frames before passing them to another callback.
+ *
+ * The masks, prompts to delete and progress received during a frame (about 16 ms by default, one screen
+ * refresh) are delivered together with a single task sent to the executor, for example
+ * {@code SwingUtilities::invokeLater}, so the UI thread gets one big list instead of one task per mask.
+ * Only the last progress of the frame is delivered. A frame is sent earlier if it reaches the maximum number
+ * of masks, and only one frame is waiting in the executor at a time: while the UI is busy the events keep
+ * accumulating in the next frame.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class CoalescingCallback implements BatchCallback {
+
+	/**
+	 * Default duration of a frame, in milliseconds
+	 */
+	public static final long DEFAULT_FRAME_MS = 16;
+
+	/**
+	 * Default number of masks that makes a frame be sent before its time ends
+	 */
+	public static final int DEFAULT_MAX_MASKS = 1024;
+
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "samj-callback-coalescer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final BatchCallback callback;
+
+	private final Executor executor;
+
+	private final long frameMs;
+
+	private final int maxMasks;
+
+	private Frame frame = new Frame();
+
+	private boolean scheduled = false;
+
+	private boolean inFlight = false;
+
+	/**
+	 * Create a callback with frames of {@link #DEFAULT_FRAME_MS}
+	 * @param callback
+	 * 	the callback that receives the grouped events
+	 * @param executor
+	 * 	executor where the callback is called, such as {@code SwingUtilities::invokeLater}
+	 */
+	public CoalescingCallback(BatchCallback callback, Executor executor) {
+		this(callback, executor, DEFAULT_FRAME_MS, DEFAULT_MAX_MASKS);
+	}
+
+	/**
+	 * Create a callback
+	 * @param callback
+	 * 	the callback that receives the grouped events
+	 * @param executor
+	 * 	executor where the callback is called, such as {@code SwingUtilities::invokeLater}
+	 * @param frameMs
+	 * 	maximum time, in milliseconds, that an event waits before being delivered
+	 * @param maxMasks
+	 * 	number of masks that makes a frame be delivered before its time ends
+	 */
+	public CoalescingCallback(BatchCallback callback, Executor executor, long frameMs, int maxMasks) {
+		if (frameMs < 0 || maxMasks < 1)
+			throw new IllegalArgumentException("The duration of the frames cannot be negative and they should "
+					+ "allow at least one mask.");
+		this.callback = callback;
+		this.executor = executor;
+		this.frameMs = frameMs;
+		this.maxMasks = maxMasks;
+	}
+
+	@Override
+	public synchronized void setTotalNumberOfRois(int nRois) {
+		frame.nRois = nRois;
+		frame.progress = -1;
+		schedule();
+	}
+
+	@Override
+	public synchronized void updateProgress(int n) {
+		frame.progress = n;
+		schedule();
+	}
+
+	@Override
+	public synchronized void drawRoi(List<Mask> masks) {
+		frame.masks.addAll(masks);
+		if (frame.masks.size() >= maxMasks)
+			send();
+		else
+			schedule();
+	}
+
+	@Override
+	public synchronized void deletePointPrompt(List<int[]> promptList) {
+		frame.points.addAll(promptList);
+		schedule();
+	}
+
+	@Override
+	public synchronized void deleteRectPrompt(List<int[]> promptList) {
+		frame.rects.addAll(promptList);
+		schedule();
+	}
+
+	@Override
+	public synchronized void deleteDuplicates(List<Mask> duplicates) {
+		frame.duplicates.addAll(duplicates);
+		schedule();
+	}
+
+	@Override
+	public boolean hasDemand() {
+		return callback.hasDemand();
+	}
+
+	/**
+	 * Deliver the events received until now without waiting for the end of the frame
+	 */
+	public synchronized void flush() {
+		send();
+	}
+
+	private void schedule() {
+		if (scheduled || inFlight)
+			return;
+		scheduled = true;
+		TIMER.schedule(() -> {
+			synchronized (CoalescingCallback.this) {
+				scheduled = false;
+				send();
+			}
+		}, frameMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void send() {
+		if (inFlight || frame.isEmpty())
+			return;
+		Frame toSend = frame;
+		frame = new Frame();
+		inFlight = true;
+		executor.execute(() -> {
+			try {
+				toSend.deliver(callback);
+			} finally {
+				synchronized (CoalescingCallback.this) {
+					inFlight = false;
+					if (!frame.isEmpty())
+						schedule();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Events received during a frame
+	 */
+	private static class Frame {
+
+		private int nRois = -1;
+
+		private int progress = -1;
+
+		private final List<Mask> masks = new ArrayList<Mask>();
+
+		private final List<int[]> points = new ArrayList<int[]>();
+
+		private final List<int[]> rects = new ArrayList<int[]>();
+
+		private final List<Mask> duplicates = new ArrayList<Mask>();
+
+		private boolean isEmpty() {
+			return nRois < 0 && progress < 0 && masks.isEmpty() && points.isEmpty() && rects.isEmpty() && duplicates.isEmpty();
+		}
+
+		private void deliver(BatchCallback callback) {
+			if (nRois >= 0)
+				callback.setTotalNumberOfRois(nRois);
+			if (masks.size() > 0)
+				callback.drawRoi(masks);
+			if (duplicates.size() > 0)
+				callback.deleteDuplicates(duplicates);
+			if (points.size() > 0)
+				callback.deletePointPrompt(points);
+			if (rects.size() > 0)
+				callback.deleteRectPrompt(rects);
+			if (progress >= 0)
+				callback.updateProgress(progress);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Class that labels the connected components of a mask prompt directly in Java and extracts a few
+ * seed points per component. The seed points are the only thing that needs to be sent to the
+ * Python process, so the mask image itself never has to be copied into shared memory.
+ *
+ * The labelling is run-based: every row of the mask is compressed into runs of non-zero pixels,
+ * and the runs of consecutive rows that overlap are merged with a union-find structure. Rows are
+ * processed in parallel horizontal strips, and only the seams between strips are merged sequentially.
+ * The connectivity used is the 4-connectivity, the same as the default of scipy.ndimage.label.
+ *
+ * @author Carlos Garcia
+ */
+public class ConnectedComponents {
+
+	/**
+	 * Default number of seed points extracted per connected component
+	 */
+	public static final int DEFAULT_SEEDS_PER_COMPONENT = 3;
+	/**
+	 * Minimum number of rows per strip, below that the overhead of the parallelization is not worth it
+	 */
+	private static final int MIN_ROWS_PER_STRIP = 64;
+	/**
+	 * Offset of the mask in the x-axis
+	 */
+	private final long minX;
+	/**
+	 * Offset of the mask in the y-axis
+	 */
+	private final long minY;
+	/**
+	 * Position of the first run of each row in the run arrays. Has one more entry than rows in the mask
+	 */
+	private final int[] rowStart;
+	/**
+	 * Row (relative to {@link #minY}) of each of the runs
+	 */
+	private final int[] runRow;
+	/**
+	 * First pixel (relative to {@link #minX}) of each of the runs
+	 */
+	private final int[] runX0;
+	/**
+	 * Pixel after the last pixel (relative to {@link #minX}) of each of the runs
+	 */
+	private final int[] runX1;
+	/**
+	 * Position of the first run of each component in {@link #componentRuns}
+	 */
+	private int[] componentStart;
+	/**
+	 * Indices of the runs sorted by component, in raster order inside each component
+	 */
+	private int[] componentRuns;
+	/**
+	 * Number of pixels of each component
+	 */
+	private long[] componentArea;
+
+	private ConnectedComponents(long minX, long minY, int[] rowStart, int[] runRow, int[] runX0, int[] runX1) {
+		this.minX = minX;
+		this.minY = minY;
+		this.rowStart = rowStart;
+		this.runRow = runRow;
+		this.runX0 = runX0;
+		this.runX1 = runX1;
+	}
+
+	/**
+	 * Label the connected components of a 2D mask. Every non-zero pixel is considered foreground.
+	 * @param <T>
+	 * 	the ImgLib2 data type of the mask
+	 * @param mask
+	 * 	the mask, a 2D image or a 3D image with a single slice in the third dimension, with axes "xy"
+	 * @return the labelled connected components
+	 */
+	public static <T extends RealType<T>> ConnectedComponents label(RandomAccessibleInterval<T> mask) {
+		long[] dims = mask.dimensionsAsLongArray();
+		if (dims.length < 2 || (dims.length == 3 && dims[2] != 1) || dims.length > 3)
+			throw new IllegalArgumentException("The mask should be a 2D image with just one channel.");
+		if (dims[0] > Integer.MAX_VALUE || dims[1] > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The mask sides cannot be bigger than " + Integer.MAX_VALUE + " pixels.");
+		final int width = (int) dims[0];
+		final int height = (int) dims[1];
+		final long[] min = new long[dims.length];
+		for (int d = 0; d < dims.length; d ++)
+			min[d] = mask.min(d);
+
+		int nStrips = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / MIN_ROWS_PER_STRIP));
+		final int[] stripY0 = new int[nStrips + 1];
+		for (int s = 0; s <= nStrips; s ++)
+			stripY0[s] = (int) ((long) height * s / nStrips);
+
+		// First pass: compress each row into runs of foreground pixels, one strip per thread
+		final int[] rowCount = new int[height];
+		final int[][] stripRuns = new int[nStrips][];
+		IntStream.range(0, nStrips).parallel().forEach(s -> {
+			RandomAccess<T> ra = mask.randomAccess();
+			long[] pos = min.clone();
+			int[] runs = new int[64];
+			int n = 0;
+			for (int y = stripY0[s]; y < stripY0[s + 1]; y ++) {
+				pos[0] = min[0];
+				pos[1] = min[1] + y;
+				ra.setPosition(pos);
+				int start = -1;
+				for (int x = 0; x < width; x ++) {
+					boolean fg = ra.get().getRealDouble() != 0;
+					if (fg && start == -1) {
+						start = x;
+					} else if (!fg && start != -1) {
+						if (n + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+						runs[n ++] = start;
+						runs[n ++] = x;
+						rowCount[y] ++;
+						start = -1;
+					}
+					ra.fwd(0);
+				}
+				if (start != -1) {
+					if (n + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+					runs[n ++] = start;
+					runs[n ++] = width;
+					rowCount[y] ++;
+				}
+			}
+			stripRuns[s] = Arrays.copyOf(runs, n);
+		});
+
+		final int[] rowStart = new int[height + 1];
+		for (int y = 0; y < height; y ++)
+			rowStart[y + 1] = rowStart[y] + rowCount[y];
+		final int nRuns = rowStart[height];
+		final int[] runRow = new int[nRuns];
+		final int[] runX0 = new int[nRuns];
+		final int[] runX1 = new int[nRuns];
+		IntStream.range(0, nStrips).parallel().forEach(s -> {
+			int[] runs = stripRuns[s];
+			int i = rowStart[stripY0[s]];
+			int r = 0;
+			for (int y = stripY0[s]; y < stripY0[s + 1]; y ++) {
+				for (int k = 0; k < rowCount[y]; k ++, i ++) {
+					runRow[i] = y;
+					runX0[i] = runs[r ++];
+					runX1[i] = runs[r ++];
+				}
+			}
+			stripRuns[s] = null;
+		});
+
+		ConnectedComponents cc = new ConnectedComponents(min[0], mask.min(1), rowStart, runRow, runX0, runX1);
+		final int[] parent = new int[nRuns];
+		for (int i = 0; i < nRuns; i ++)
+			parent[i] = i;
+		// Second pass: merge the overlapping runs of consecutive rows. Each strip only touches its own runs
+		IntStream.range(0, nStrips).parallel().forEach(s -> {
+			for (int y = stripY0[s] + 1; y < stripY0[s + 1]; y ++)
+				cc.mergeRows(parent, y - 1, y);
+		});
+		for (int s = 1; s < nStrips; s ++) {
+			if (stripY0[s] > 0 && stripY0[s] < height)
+				cc.mergeRows(parent, stripY0[s] - 1, stripY0[s]);
+		}
+		cc.resolveComponents(parent);
+		return cc;
+	}
+
+	/**
+	 * Merge in the union-find structure the runs of the row above with the runs of the row below
+	 * that overlap (4-connectivity)
+	 */
+	private void mergeRows(int[] parent, int above, int below) {
+		int i = rowStart[above];
+		int iEnd = rowStart[above + 1];
+		int j = rowStart[below];
+		int jEnd = rowStart[below + 1];
+		while (i < iEnd && j < jEnd) {
+			if (runX0[i] < runX1[j] && runX0[j] < runX1[i])
+				union(parent, i, j);
+			if (runX1[i] < runX1[j]) i ++;
+			else j ++;
+		}
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra < rb) parent[rb] = ra;
+		else if (rb < ra) parent[ra] = rb;
+	}
+
+	/**
+	 * Assign consecutive component ids, in raster order of their first pixel, and group
+	 * the runs per component
+	 */
+	private void resolveComponents(int[] parent) {
+		int nRuns = parent.length;
+		int[] runComponent = new int[nRuns];
+		int nComponents = 0;
+		for (int i = 0; i < nRuns; i ++) {
+			int root = find(parent, i);
+			// roots are always the smallest index of their set, so they are visited first
+			runComponent[i] = root == i ? nComponents ++ : runComponent[root];
+		}
+		componentStart = new int[nComponents + 1];
+		componentArea = new long[nComponents];
+		for (int i = 0; i < nRuns; i ++) {
+			componentStart[runComponent[i] + 1] ++;
+			componentArea[runComponent[i]] += runX1[i] - runX0[i];
+		}
+		for (int c = 0; c < nComponents; c ++)
+			componentStart[c + 1] += componentStart[c];
+		componentRuns = new int[nRuns];
+		int[] fill = Arrays.copyOf(componentStart, nComponents);
+		for (int i = 0; i < nRuns; i ++)
+			componentRuns[fill[runComponent[i]] ++] = i;
+	}
+
+	/**
+	 *
+	 * @return the number of connected components found in the mask
+	 */
+	public int getNumberOfComponents() {
+		return componentArea.length;
+	}
+
+	/**
+	 *
+	 * @param component
+	 * 	index of the component, from 0 to {@link #getNumberOfComponents()} - 1
+	 * @return the number of pixels of the component
+	 */
+	public long getArea(int component) {
+		return componentArea[component];
+	}
+
+	/**
+	 * Extract seed points that lie inside a component. The seeds are the centers of the longest runs
+	 * of rows evenly spread along the y-axis extent of the component, so they are distributed over
+	 * the object and are always foreground pixels. Components smaller than the number of seeds
+	 * requested return one seed per pixel.
+	 * @param component
+	 * 	index of the component, from 0 to {@link #getNumberOfComponents()} - 1
+	 * @param nSeeds
+	 * 	maximum number of seeds wanted
+	 * @return list of points, each of them an int array of length 2 with the x and y coordinates
+	 */
+	public List<int[]> getSeeds(int component, int nSeeds) {
+		int first = componentStart[component];
+		int last = componentStart[component + 1];
+		int minRow = runRow[componentRuns[first]];
+		int maxRow = runRow[componentRuns[last - 1]];
+		List<int[]> seeds = new ArrayList<int[]>(nSeeds);
+		int k = first;
+		for (int s = 1; s <= nSeeds && seeds.size() < componentArea[component]; s ++) {
+			int targetRow = minRow + (int) Math.round((maxRow - minRow) * (s - 0.5) / nSeeds);
+			// runs are in raster order, so the search for the target row continues from the previous one
+			while (k < last - 1 && runRow[componentRuns[k]] < targetRow)
+				k ++;
+			int row = runRow[componentRuns[k]];
+			int best = componentRuns[k];
+			for (int j = k; j < last && runRow[componentRuns[j]] == row; j ++) {
+				int r = componentRuns[j];
+				if (runX1[r] - runX0[r] > runX1[best] - runX0[best]) best = r;
+			}
+			int x = (runX0[best] + runX1[best] - 1) / 2;
+			addSeed(seeds, x, row, best);
+		}
+		// very thin components might not have enough distinct pixels on the rows chosen
+		for (int j = first; j < last && seeds.size() < Math.min(nSeeds, componentArea[component]); j ++) {
+			int r = componentRuns[j];
+			addSeed(seeds, runX0[r], runRow[r], r);
+		}
+		return seeds;
+	}
+
+	private void addSeed(List<int[]> seeds, int x, int row, int run) {
+		int y = (int) (row + minY);
+		// if the center of the run is already a seed, move along the run to find a pixel that is not used yet
+		for (int xx = x; xx < x + runX1[run] - runX0[run]; xx ++) {
+			int candidate = (int) (runX0[run] + (xx - runX0[run]) % (runX1[run] - runX0[run]) + minX);
+			boolean used = false;
+			for (int[] other : seeds)
+				used = used || (other[0] == candidate && other[1] == y);
+			if (!used) {
+				seeds.add(new int[] {candidate, y});
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Extract the seeds of every component in parallel
+	 * @param nSeeds
+	 * 	maximum number of seeds wanted per component
+	 * @return a list with the seeds of each component, in the order of the component ids
+	 * @see #getSeeds(int, int)
+	 */
+	public List<List<int[]>> getSeeds(int nSeeds) {
+		return IntStream.range(0, getNumberOfComponents()).parallel()
+				.mapToObj(c -> getSeeds(c, nSeeds)).collect(Collectors.toList());
+	}
+}
@@ -77,6 +77,8 @@ public class EfficientSamJ extends AbstractSamJ {
 			+ "task.update('created predictor')" + System.lineSeparator()
 			+ "encodings_map = {}" + System.lineSeparator()
 			+ "globals()['encodings_map'] = encodings_map" + System.lineSeparator()
+			+ "refine_states = {}" + System.lineSeparator()
+			+ "globals()['refine_states'] = refine_states" + System.lineSeparator()
 			+ "globals()['shared_memory'] = shared_memory" + System.lineSeparator()
 			+ "globals()['measure'] = measure" + System.lineSeparator()
 			+ "globals()['np'] = np" + System.lineSeparator()
@@ -128,7 +130,8 @@ public class EfficientSamJ extends AbstractSamJ {
 				manager.getModelEnv() + File.separator + EfficientSamEnvManager.ESAM_NAME,
 				manager.getModelWeigthPath());
 		//printScript(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES, "Edges tracing code");
-		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES);
+		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES
+				+ PythonMethods.CANDIDATES_METHOD + PythonMethods.SAM_EVERYTHING);
 		task.waitFor();
 		if (task.status == TaskStatus.CANCELED)
 			throw new RuntimeException("Task canceled");
@@ -269,6 +272,74 @@ public class EfficientSamJ extends AbstractSamJ {
 		this.script = code;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * EfficientSAM does not accept a previous mask as a prompt, so the points accumulated for
+	 * the object are kept in Python and decoded together with the new ones
+	 */
+	@Override
+	protected void processRefineWithSAM(boolean returnAll) {
+		String code = "" + System.lineSeparator()
+				+ "task.update('start predict')" + System.lineSeparator()
+				+ "if reset_all:" + System.lineSeparator()
+				+ "  refine_states.clear()" + System.lineSeparator()
+				+ "state = None if reset else refine_states.get(object_id)" + System.lineSeparator()
+				+ "if state is None:" + System.lineSeparator()
+				+ "  state = {'points': np.zeros((0, 2), dtype='int64'), 'labels': np.zeros((0,), dtype='int64'), 'logits': None}" + System.lineSeparator()
+				+ "state['points'] = np.concatenate((state['points'], np.array(new_points, dtype='int64').reshape(-1, 2)), axis=0)" + System.lineSeparator()
+				+ "state['labels'] = np.concatenate((state['labels'], np.array(new_labels, dtype='int64').reshape(-1)), axis=0)" + System.lineSeparator()
+				+ "input_points = torch.reshape(torch.tensor(state['points']), [1, 1, -1, 2])" + System.lineSeparator()
+				+ "input_label = torch.reshape(torch.tensor(state['labels']), [1, 1, -1])" + System.lineSeparator()
+				+ "predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
+				+ "    input_points," + System.lineSeparator()
+				+ "    input_label," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    input_h=input_h," + System.lineSeparator()
+				+ "    input_w=input_w," + System.lineSeparator()
+				+ "    output_h=input_h," + System.lineSeparator()
+				+ "    output_w=input_w,)" + System.lineSeparator()
+				+ "sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)" + System.lineSeparator()
+				+ "predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)" + System.lineSeparator()
+				+ "mask = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()" + System.lineSeparator()
+				+ "refine_states[object_id] = state" + System.lineSeparator()
+				+ "task.update('end predict')" + System.lineSeparator()
+				+ (this.isIJROIManager ? "mask[1:, 1:] += mask[:-1, :-1]" : "") + System.lineSeparator()
+				+ "contours_x, contours_y, rle_masks = get_polygons_from_binary_mask(mask, only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
+				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+		this.script = code;
+	}
+
+	@Override
+	protected void processCandidatesWithSAM(boolean returnAll) {
+		String code = "" + System.lineSeparator()
+				+ "task.update('start predict')" + System.lineSeparator()
+				+ "point_coords = np.concatenate((np.array(input_points).reshape(-1, 2), np.array(input_neg_points).reshape(-1, 2)), axis=0)" + System.lineSeparator()
+				+ "point_labels = [1] * len(input_points) + [0] * len(input_neg_points)" + System.lineSeparator()
+				+ "if input_box is not None:" + System.lineSeparator()
+				+ "  point_coords = np.concatenate((point_coords, np.array(input_box).reshape(2, 2)), axis=0)" + System.lineSeparator()
+				+ "  point_labels += [2, 3]" + System.lineSeparator()
+				+ "input_points = torch.reshape(torch.tensor(point_coords), [1, 1, -1, 2])" + System.lineSeparator()
+				+ "input_label = torch.reshape(torch.tensor(np.array(point_labels)), [1, 1, -1])" + System.lineSeparator()
+				+ "predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
+				+ "    input_points," + System.lineSeparator()
+				+ "    input_label," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    input_h=input_h," + System.lineSeparator()
+				+ "    input_w=input_w," + System.lineSeparator()
+				+ "    output_h=input_h," + System.lineSeparator()
+				+ "    output_w=input_w,)" + System.lineSeparator()
+				+ "masks = torch.ge(predicted_logits[0, 0], 0).cpu().detach().numpy()" + System.lineSeparator()
+				+ "ious = predicted_iou[0, 0].cpu().detach().numpy()" + System.lineSeparator()
+				+ "task.update('end predict')" + System.lineSeparator()
+				+ "send_candidates(task, masks, ious, only_biggest=" + (!returnAll ? "True" : "False") 
+				+ ", ij_roi_manager=" + (this.isIJROIManager ? "True" : "False") + ")" + System.lineSeparator();
+		this.script = code;
+	}
+
 	@Override
 	protected void processBoxWithSAM(boolean returnAll) {
 		String code = "" + System.lineSeparator()
@@ -302,8 +373,34 @@ public class EfficientSamJ extends AbstractSamJ {
 	}
 
 	@Override
-	protected void cellSAM(List<int[]> grid, boolean returnAll) {
-		// TODO Auto-generated method stub
+	protected void cellSAM(boolean returnAll) {
+		String code = ""
+				+ "def decode_grid_batch(points):" + System.lineSeparator()
+				+ "  ip = torch.reshape(torch.tensor(points), [1, -1, 1, 2])" + System.lineSeparator()
+				+ "  il = torch.reshape(torch.tensor(np.ones(points.shape[0], dtype='int64')), [1, -1, 1])" + System.lineSeparator()
+				+ "  predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
+				+ "    ip," + System.lineSeparator()
+				+ "    il," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    input_h=input_h," + System.lineSeparator()
+				+ "    input_w=input_w," + System.lineSeparator()
+				+ "    output_h=input_h," + System.lineSeparator()
+				+ "    output_w=input_w,)" + System.lineSeparator()
+				+ "  best = torch.argmax(predicted_iou[0], dim=-1)" + System.lineSeparator()
+				+ "  rows = torch.arange(points.shape[0])" + System.lineSeparator()
+				+ "  logits = predicted_logits[0, rows, best].cpu().detach().numpy()" + System.lineSeparator()
+				+ "  ious = predicted_iou[0, rows, best].cpu().detach().numpy()" + System.lineSeparator()
+				+ "  return logits, ious" + System.lineSeparator()
+				+ "" + System.lineSeparator()
+				+ "contours_x, contours_y, rle_masks = sam_everything(task, grid_points, decode_grid_batch," + System.lineSeparator()
+				+ "  points_per_batch=points_per_batch, pred_iou_thresh=pred_iou_thresh, stability_thresh=stability_thresh," + System.lineSeparator()
+				+ "  only_biggest=" + (!returnAll ? "True" : "False") + ", ij_roi_manager=" + (this.isIJROIManager ? "True" : "False") + ", stream=stream," + System.lineSeparator()
+				+ "  contour_message='" + AbstractSamJ.UPDATE_ID_CONTOUR + "', n_message='" + AbstractSamJ.UPDATE_ID_N_CONTOURS + "')" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
+				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+		this.script = code;
 	}
 	
 	private <T extends RealType<T> & NativeType<T>>
@@ -388,8 +485,7 @@ public class EfficientSamJ extends AbstractSamJ {
 	}
 
 	@Override
-	protected void processPromptsBatchWithSAM(SharedMemoryArray shmArr,
-			boolean returnAll) {
+	protected void processPromptsBatchWithSAM(boolean returnAll) {
 		String code = ""
 				+ "num_threads = 3" + System.lineSeparator()
 				+ "finished_threads = []" + System.lineSeparator()
@@ -406,22 +502,7 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "        if not future.running() and not future.done():" + System.lineSeparator()
 				+ "            future.cancel()" + System.lineSeparator()
 				+ "" + System.lineSeparator()
-				+ "num_features = 0" + System.lineSeparator();
-		if (shmArr != null) {
-			code += ""
-					+ "shm_mask = shared_memory.SharedMemory(name='" + shmArr.getNameForPython() + "')" + System.lineSeparator()
-					+ "mask_batch = np.ndarray(%s, buffer=shm_mask.buf, dtype='" 
-					+ shmArr.getOriginalDataType() + "').reshape([";
-			long size = 1;
-			for (long l : shmArr.getOriginalShape()) {
-				code += l + ",";
-				size *= l;
-			}
-			code = String.format(code, size);
-			code += "])" + System.lineSeparator();
-			code += "labeled_array, num_features = label(mask_batch)" + System.lineSeparator();
-		}
-		code += ""
+				+ "num_features = len(mask_prompts)" + System.lineSeparator()
 				+ "contours_x = []" + System.lineSeparator()
 				+ "contours_y = []" + System.lineSeparator()
 				+ "rle_masks = []" + System.lineSeparator()
@@ -433,15 +514,11 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "with ThreadPoolExecutor(max_workers=num_threads) as executor:" + System.lineSeparator()
 				+ "  futures = []" + System.lineSeparator()
 				+ "  n_objects = 0" + System.lineSeparator()
-				+ "  for n_feat in range(1, num_features + 1):" + System.lineSeparator()
-				+ "    extracted_point_prompts = []" + System.lineSeparator()
-				+ "    extracted_point_labels = []" + System.lineSeparator()
-				+ "    inds = np.where(labeled_array == n_feat)" + System.lineSeparator()
-				+ "    n_points = np.min([3, inds[0].shape[0]])" + System.lineSeparator()
-				+ "    random_positions = np.random.choice(inds[0].shape[0], n_points, replace=False)" + System.lineSeparator()
-				+ "    for pp in range(n_points):" + System.lineSeparator()
-				+ "      extracted_point_prompts += [[inds[0][random_positions[pp]], inds[1][random_positions[pp]]]]" + System.lineSeparator()
-				+ "      extracted_point_labels += [1]" + System.lineSeparator()
+				+ "  n_done = 0" + System.lineSeparator()
+				+ "  for extracted_point_prompts in mask_prompts:" + System.lineSeparator()
+				+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+				+ "      break" + System.lineSeparator()
+				+ "    extracted_point_labels = [1] * len(extracted_point_prompts)" + System.lineSeparator()
 				+ "    ip = torch.reshape(torch.tensor(np.array(extracted_point_prompts).reshape(len(extracted_point_prompts), 2)), [1, 1, -1, 2])" + System.lineSeparator()
 				+ "    il = torch.reshape(torch.tensor(np.array(extracted_point_labels)), [1, 1, -1])" + System.lineSeparator()
 				+ "    predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
@@ -465,9 +542,12 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
 				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
 				+ "    futures.append(future)" + System.lineSeparator()
+				+ "    n_done += 1" + System.lineSeparator()
 				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "  for p_prompt in point_prompts:" + System.lineSeparator()
+				+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+				+ "      break" + System.lineSeparator()
 				+ "    ip = torch.reshape(torch.tensor(np.array(p_prompt).reshape(1, 2)), [1, 1, -1, 2])" + System.lineSeparator()
 				+ "    il = torch.reshape(torch.tensor(np.array([1])), [1, 1, -1])" + System.lineSeparator()
 				+ "    predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
@@ -491,10 +571,13 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
 				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
 				+ "    futures.append(future)" + System.lineSeparator()
+				+ "    n_done += 1" + System.lineSeparator()
 				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "  for rect_prompt in rect_prompts:" + System.lineSeparator()
+				+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+				+ "      break" + System.lineSeparator()
 				+ "    input_box = np.array([[rect_prompt[0], rect_prompt[1]], [rect_prompt[2], rect_prompt[3]]])" + System.lineSeparator()
 				+ "    input_box = torch.reshape(torch.tensor(input_box), [1, 1, -1, 2])" + System.lineSeparator()
 				+ "    input_label = np.array([2,3])" + System.lineSeparator()
@@ -520,6 +603,7 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
 				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
 				+ "    futures.append(future)" + System.lineSeparator()
+				+ "    n_done += 1" + System.lineSeparator()
 				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "" + System.lineSeparator()
@@ -536,12 +620,8 @@ public class EfficientSamJ extends AbstractSamJ {
 				+ "task.update('all contours traced')" + System.lineSeparator()
 				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
 				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
-		code += "mask_batch = None" + System.lineSeparator();
-		if (shmArr != null) {
-			code += "shm_mask.close()" + System.lineSeparator();
-			code += "shm_mask.unlink()" + System.lineSeparator();
-		}
+				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator()
+				+ "task.outputs['n_done'] = str(n_done)" + System.lineSeparator();
 		this.script = code;
 	}
 }
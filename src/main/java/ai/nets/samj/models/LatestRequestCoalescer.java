@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import ai.nets.samj.models.PriorityScheduler.Priority;
+
+/**
+ * Class that keeps only the newest request of each object annotated in instant mode.
+ *
+ * Every request is identified by the object it belongs to. When a new request of an object arrives, the previous
+ * one is dropped if it has not started yet, and if it is already running its result is discarded when it finishes,
+ * because the decoder call of a single prompt cannot be interrupted in Python. So only the newest prompt of
+ * each object reaches the model after the one running, and the result delivered is always the one of
+ * the newest prompt. Requests of different objects do not replace each other.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class LatestRequestCoalescer {
+
+	private final PriorityScheduler scheduler;
+
+	private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+	/**
+	 * Create the coalescer
+	 * @param scheduler
+	 * 	scheduler of the model where the requests are run with {@link Priority#INTERACTIVE} priority
+	 */
+	public LatestRequestCoalescer(PriorityScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Queue a request that replaces the previous one of the same object
+	 * @param <R>
+	 * 	type of the result
+	 * @param objectId
+	 * 	identifier of the object the request belongs to
+	 * @param request
+	 * 	the request
+	 * @param onResult
+	 * 	receives the result if no newer request of the object has arrived by then. It is called from the thread of
+	 * 	the scheduler without holding any lock of the coalescer, and it should be quick, for example passing the
+	 * 	result to the UI thread
+	 * @return the future result of the request, cancelled if the request is replaced before it starts
+	 */
+	public synchronized <R> Future<R> submit(String objectId, Callable<R> request, Consumer<R> onResult) {
+		Slot slot = slots.get(objectId);
+		if (slot == null) {
+			slot = new Slot();
+			slots.put(objectId, slot);
+		} else if (slot.future != null) {
+			slot.future.cancel(false);
+		}
+		final Slot current = slot;
+		final long generation = ++ slot.generation;
+		Future<R> future = scheduler.submit(Priority.INTERACTIVE, () -> {
+			R result;
+			try {
+				result = request.call();
+			} catch (Exception e) {
+				synchronized (LatestRequestCoalescer.this) {
+					if (current.generation == generation)
+						slots.remove(objectId, current);
+				}
+				throw e;
+			}
+			synchronized (LatestRequestCoalescer.this) {
+				if (current.generation != generation)
+					return result;
+				slots.remove(objectId, current);
+			}
+			// outside of the lock, so a consumer that waits for another thread that is submitting cannot deadlock
+			onResult.accept(result);
+			return result;
+		});
+		slot.future = future;
+		return future;
+	}
+
+	/**
+	 * Drop the requests of an object that have not been delivered yet
+	 * @param objectId
+	 * 	identifier of the object
+	 */
+	public synchronized void discard(String objectId) {
+		Slot slot = slots.remove(objectId);
+		if (slot == null)
+			return;
+		slot.generation ++;
+		if (slot.future != null)
+			slot.future.cancel(false);
+	}
+
+	/**
+	 *
+	 * @return the number of objects with a request queued or running
+	 */
+	public synchronized int getNumberOfPending() {
+		return slots.size();
+	}
+
+	/**
+	 * Newest request of an object
+	 */
+	private static class Slot {
+
+		private long generation = 0;
+
+		private Future<?> future;
+	}
+}
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ai.nets.samj.annotation.Mask;
+
+/**
+ * Class that maps the masks produced by the model on the encoded crop (that might be subsampled)
+ * back to the coordinates of the whole image.
+ *
+ * The contours are transformed in place with primitive loops. The RLE is also transformed in place when
+ * the crop was not subsampled. When it was, every run of the crop covers 'scale' rows of the image, so a single
+ * array of the exact final size is allocated and filled. The row of each run is tracked incrementally because
+ * runs come in raster order, so a division is only needed when a run jumps to a row that is not the next one.
+ * Masks are processed in parallel when there are enough of them.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class MaskBackProjector {
+
+	/**
+	 * Minimum number of masks to process them in parallel
+	 */
+	private static final int MIN_PARALLEL_MASKS = 64;
+
+	/**
+	 * Map the masks from the coordinates of the encoded crop to the coordinates of the whole image
+	 * @param masks
+	 * 	the masks, they are modified
+	 * @param encodeCoords
+	 * 	position of the upper left corner of the crop in the image
+	 * @param scale
+	 * 	subsampling factor applied to the crop before encoding it
+	 * @param encodedWidth
+	 * 	width of the crop after subsampling, the width that the RLE of the masks refers to
+	 * @param imageWidth
+	 * 	width of the whole image
+	 */
+	public static void backProject(List<Mask> masks, long[] encodeCoords, int scale, long encodedWidth, long imageWidth) {
+		if (masks.size() >= MIN_PARALLEL_MASKS)
+			masks.parallelStream().forEach(mm -> backProject(mm, encodeCoords, scale, encodedWidth, imageWidth));
+		else
+			masks.forEach(mm -> backProject(mm, encodeCoords, scale, encodedWidth, imageWidth));
+	}
+
+	/**
+	 * Map a mask from the coordinates of the encoded crop to the coordinates of the whole image
+	 * @param mask
+	 * 	the mask, it is modified
+	 * @param encodeCoords
+	 * 	position of the upper left corner of the crop in the image
+	 * @param scale
+	 * 	subsampling factor applied to the crop before encoding it
+	 * @param encodedWidth
+	 * 	width of the crop after subsampling, the width that the RLE of the mask refers to
+	 * @param imageWidth
+	 * 	width of the whole image
+	 */
+	public static void backProject(Mask mask, long[] encodeCoords, int scale, long encodedWidth, long imageWidth) {
+		int ox = (int) encodeCoords[0];
+		int oy = (int) encodeCoords[1];
+		Polygon contour = mask.getContour();
+		int[] xs = contour.xpoints;
+		int[] ys = contour.ypoints;
+		for (int i = 0; i < contour.npoints; i ++) {
+			xs[i] = xs[i] * scale + ox;
+			ys[i] = ys[i] * scale + oy;
+		}
+		contour.invalidate();
+		if (scale == 1)
+			projectRLEInPlace(mask.getRLEMask(), ox, oy, encodedWidth, imageWidth);
+		else
+			mask.rleEncoding = projectRLEUpscaled(mask.getRLEMask(), ox, oy, scale, encodedWidth, imageWidth);
+	}
+
+	private static void projectRLEInPlace(long[] rle, long ox, long oy, long encodedWidth, long imageWidth) {
+		long row = 0;
+		long rowStart = 0;
+		long rowEnd = encodedWidth;
+		for (int i = 0; i < rle.length; i += 2) {
+			long start = rle[i];
+			if (start >= rowEnd || start < rowStart) {
+				row = start >= rowEnd && start < rowEnd + encodedWidth ? row + 1 : start / encodedWidth;
+				rowStart = row * encodedWidth;
+				rowEnd = rowStart + encodedWidth;
+			}
+			rle[i] = start - rowStart + ox + (row + oy) * imageWidth;
+		}
+	}
+
+	private static long[] projectRLEUpscaled(long[] rle, long ox, long oy, int scale, long encodedWidth, long imageWidth) {
+		long[] upscaled = new long[rle.length * scale];
+		long row = 0;
+		long rowStart = 0;
+		long rowEnd = encodedWidth;
+		for (int i = 0; i < rle.length; i += 2) {
+			long start = rle[i];
+			if (start >= rowEnd || start < rowStart) {
+				row = start >= rowEnd && start < rowEnd + encodedWidth ? row + 1 : start / encodedWidth;
+				rowStart = row * encodedWidth;
+				rowEnd = rowStart + encodedWidth;
+			}
+			long newStart = (start - rowStart) * scale + ox + (row * scale + oy) * imageWidth;
+			long newLen = rle[i + 1] * scale;
+			int pos = i * scale;
+			for (int j = 0; j < scale; j ++) {
+				upscaled[pos ++] = newStart;
+				upscaled[pos ++] = newLen;
+				newStart += imageWidth;
+			}
+		}
+		return upscaled;
+	}
+
+	/**
+	 * Implementation that was used before, kept as the reference for the benchmark
+	 */
+	private static void legacyBackProject(List<Mask> masks, long[] encodeCoords, int scale, long[] targetDims, long imageWidth) {
+		masks.stream().forEach(pp -> {
+			pp.getContour().xpoints = Arrays.stream(pp.getContour().xpoints).map(x -> x * scale + (int) encodeCoords[0]).toArray();
+			pp.getContour().ypoints = Arrays.stream(pp.getContour().ypoints).map(y -> y * scale + (int) encodeCoords[1]).toArray();
+			long[] upscaledRLE = new long[pp.getRLEMask().length * scale];
+			for (int i = 0; i < pp.getRLEMask().length; i += 2) {
+				int x = (int) (pp.getRLEMask()[i] % Math.ceil(targetDims[0] / (double) scale));
+				int y = (int) (pp.getRLEMask()[i] / Math.ceil(targetDims[0] / (double) scale));
+				int newX = x * scale;
+				int newY = y * scale;
+				long newLen = pp.getRLEMask()[i + 1] * scale;
+				for (int j = 0; j < scale; j ++) {
+					upscaledRLE[i * scale + j * 2] = newX + encodeCoords[0] + (encodeCoords[1] + newY + j) * imageWidth;
+					upscaledRLE[i * scale + j * 2 + 1] = newLen;
+				}
+			}
+			pp.rleEncoding = upscaledRLE;
+		});
+	}
+
+	private static List<Mask> createRandomMasks(int nMasks, int encodedWidth, int encodedHeight, long seed) {
+		Random rand = new Random(seed);
+		List<Mask> masks = new ArrayList<Mask>(nMasks);
+		for (int n = 0; n < nMasks; n ++) {
+			int w = 5 + rand.nextInt(60);
+			int h = 5 + rand.nextInt(60);
+			int x0 = rand.nextInt(encodedWidth - w);
+			int y0 = rand.nextInt(encodedHeight - h);
+			int nPoints = 2 * (w + h);
+			int[] xs = new int[nPoints];
+			int[] ys = new int[nPoints];
+			for (int i = 0; i < nPoints; i ++) {
+				xs[i] = x0 + rand.nextInt(w);
+				ys[i] = y0 + rand.nextInt(h);
+			}
+			long[] rle = new long[2 * h];
+			for (int y = 0; y < h; y ++) {
+				int start = rand.nextInt(w / 2);
+				rle[2 * y] = x0 + start + (y0 + y) * (long) encodedWidth;
+				rle[2 * y + 1] = 1 + rand.nextInt(w - start);
+			}
+			masks.add(Mask.build(new Polygon(xs, ys, nPoints), rle));
+		}
+		return masks;
+	}
+
+	/**
+	 * Tests during development. Benchmark against the previous implementation and check that both
+	 * produce the same result
+	 * @param args
+	 * 	nothing
+	 */
+	public static void main(String[] args) {
+		int nMasks = 20000;
+		int encodedWidth = 1024;
+		int encodedHeight = 1024;
+		long imageWidth = 10000;
+		long[] encodeCoords = new long[] {1234, 567};
+		for (int scale : new int[] {1, 2, 4}) {
+			long[] targetDims = new long[] {encodedWidth * scale, encodedHeight * scale, 3};
+			for (int rep = 0; rep < 5; rep ++) {
+				List<Mask> legacy = createRandomMasks(nMasks, encodedWidth, encodedHeight, rep);
+				List<Mask> current = createRandomMasks(nMasks, encodedWidth, encodedHeight, rep);
+				long t0 = System.nanoTime();
+				legacyBackProject(legacy, encodeCoords, scale, targetDims, imageWidth);
+				long t1 = System.nanoTime();
+				backProject(current, encodeCoords, scale, encodedWidth, imageWidth);
+				long t2 = System.nanoTime();
+				for (int i = 0; i < nMasks; i ++) {
+					if (!Arrays.equals(legacy.get(i).getRLEMask(), current.get(i).getRLEMask())
+							|| !Arrays.equals(legacy.get(i).getContour().xpoints, current.get(i).getContour().xpoints)
+							|| !Arrays.equals(legacy.get(i).getContour().ypoints, current.get(i).getContour().ypoints))
+						throw new RuntimeException("Different result for mask " + i + " with scale " + scale);
+				}
+				System.out.println("scale " + scale + ", " + nMasks + " masks: previous " + (t1 - t0) / 1000000 + " ms, "
+						+ "current " + (t2 - t1) / 1000000 + " ms");
+			}
+		}
+	}
+}
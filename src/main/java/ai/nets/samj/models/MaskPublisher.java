@@ -0,0 +1,309 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.nets.samj.annotation.Mask;
+import ai.nets.samj.models.AbstractSamJ.BatchCallback;
+
+/**
+ * Class that publishes the masks of a batch one by one to a subscriber that decides how many it can take.
+ *
+ * The interfaces follow the contract of java.util.concurrent.Flow, which is not available in Java 8:
+ * the subscriber asks for n more masks with {@link Subscription#request(long)} and never receives more than
+ * it asked for. The masks produced in advance are kept in a buffer. When it holds the buffer size, the batch stops
+ * before its next decoder call and waits until the subscriber asks for more or cancels, and the interactive requests
+ * to the model are run in the meantime. So the buffer only exceeds its size by the masks decoded while the stop
+ * reaches Python, and the thread that reads the masks from Python never waits for the subscriber, which is called
+ * from a thread of the publisher.
+ * The batch is run with {@link AbstractSamJ#streamBatchOfPrompts}, which does not keep the masks, so the memory used
+ * does not depend on the size of the batch. Cancelling stops the batch with a {@link CancellationToken} before
+ * the next decoder call.
+ *
+ * A publisher runs a single batch and accepts a single subscriber.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class MaskPublisher {
+
+	/**
+	 * Default number of masks kept waiting for the subscriber
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	/**
+	 * Receiver of the masks, with the same contract as java.util.concurrent.Flow.Subscriber
+	 */
+	public interface Subscriber {
+
+		/**
+		 * Called once, before any other method
+		 * @param subscription
+		 * 	the subscription used to ask for masks or to cancel the batch
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with each of the masks requested
+		 * @param mask
+		 * 	the next mask of the batch
+		 */
+		void onNext(Mask mask);
+
+		/**
+		 * Called if the batch fails, no other method is called afterwards
+		 * @param throwable
+		 * 	the error
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Called when all the masks of the batch have been delivered, no other method is called afterwards
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * Link between the publisher and the subscriber, with the same contract as java.util.concurrent.Flow.Subscription
+	 */
+	public interface Subscription {
+
+		/**
+		 * Ask for more masks
+		 * @param n
+		 * 	number of masks added to the demand, should be positive
+		 */
+		void request(long n);
+
+		/**
+		 * Stop the batch, no more masks are delivered
+		 */
+		void cancel();
+	}
+
+	/**
+	 * The batch published, which delivers its masks to the callback
+	 */
+	public interface BatchSource {
+
+		/**
+		 * Run the batch
+		 * @param callback
+		 * 	callback that receives the masks as they are found
+		 * @param token
+		 * 	token cancelled when the subscriber cancels
+		 * @throws IOException if any of the files needed to run the Python script is missing 
+		 * @throws RuntimeException if there is any error running the Python process
+		 * @throws InterruptedException if the process in interrupted
+		 */
+		void run(BatchCallback callback, CancellationToken token) throws IOException, RuntimeException, InterruptedException;
+	}
+
+	private final BatchSource source;
+
+	private final int bufferSize;
+
+	private final ConcurrentLinkedQueue<Mask> buffer = new ConcurrentLinkedQueue<Mask>();
+
+	private final AtomicInteger buffered = new AtomicInteger();
+
+	private final ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "samj-mask-publisher-delivery");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	private final AtomicLong demand = new AtomicLong();
+
+	private final AtomicInteger wip = new AtomicInteger();
+
+	private final CancellationToken token = new CancellationToken();
+
+	private Subscriber subscriber;
+
+	private volatile boolean done = false;
+
+	private volatile boolean terminated = false;
+
+	private volatile Throwable error;
+
+	/**
+	 * Create a publisher for a batch
+	 * @param source
+	 * 	the batch, it starts when the subscriber subscribes
+	 * @param bufferSize
+	 * 	number of masks produced that the subscriber has not requested yet that makes the batch wait
+	 */
+	public MaskPublisher(BatchSource source, int bufferSize) {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("The buffer should have room for at least one mask.");
+		this.source = source;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Subscribe to the masks and start the batch in a new thread
+	 * @param subscriber
+	 * 	the subscriber, only one is accepted
+	 */
+	public void subscribe(Subscriber subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("The subscriber cannot be null.");
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Subscription() {
+				@Override
+				public void request(long n) {}
+				@Override
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("A batch can only be published to one subscriber."));
+			return;
+		}
+		this.subscriber = subscriber;
+		subscriber.onSubscribe(new Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					error = new IllegalArgumentException("The number of masks requested should be positive, not " + n + ".");
+					done = true;
+					token.cancel();
+					drain();
+					return;
+				}
+				long prev, next;
+				do {
+					prev = demand.get();
+					next = prev + n < 0 ? Long.MAX_VALUE : prev + n;
+				} while (!demand.compareAndSet(prev, next));
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				terminated = true;
+				token.cancel();
+				clearBuffer();
+				delivery.shutdown();
+			}
+		});
+		Thread producer = new Thread(this::produce, "samj-mask-publisher");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private void produce() {
+		try {
+			source.run(new BufferCallback(), token);
+		} catch (Throwable e) {
+			if (error == null)
+				error = e;
+		} finally {
+			done = true;
+			drain();
+		}
+	}
+
+	/**
+	 * Deliver the masks in the buffer while there is demand. The calls are serialized, so the subscriber is
+	 * never called from two threads at the same time
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			while (!terminated && demand.get() > 0) {
+				Mask mask = buffer.poll();
+				if (mask == null)
+					break;
+				buffered.decrementAndGet();
+				if (demand.get() != Long.MAX_VALUE)
+					demand.decrementAndGet();
+				subscriber.onNext(mask);
+			}
+			if (!terminated && done && (buffer.isEmpty() || error != null)) {
+				terminated = true;
+				clearBuffer();
+				delivery.shutdown();
+				if (error != null)
+					subscriber.onError(error);
+				else
+					subscriber.onComplete();
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void clearBuffer() {
+		while (buffer.poll() != null)
+			buffered.decrementAndGet();
+	}
+
+	/**
+	 * Callback that puts the masks of the batch in the buffer and makes the batch wait while it is full
+	 */
+	private class BufferCallback implements BatchCallback {
+
+		@Override
+		public void setTotalNumberOfRois(int nRois) {
+		}
+
+		@Override
+		public void updateProgress(int n) {
+		}
+
+		@Override
+		public void drawRoi(List<Mask> masks) {
+			if (terminated)
+				return;
+			buffer.addAll(masks);
+			buffered.addAndGet(masks.size());
+			try {
+				delivery.execute(MaskPublisher.this::drain);
+			} catch (RejectedExecutionException e) {
+				// the subscription already finished
+			}
+		}
+
+		@Override
+		public boolean hasDemand() {
+			return terminated || buffered.get() < bufferSize;
+		}
+
+		@Override
+		public void deletePointPrompt(List<int[]> promptList) {
+		}
+
+		@Override
+		public void deleteRectPrompt(List<int[]> promptList) {
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.models;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Class that orders the requests sent to a model, which has a single Python process, by priority.
+ *
+ * All the requests are run one by one by a single thread. When it is free, it takes the pending request with the
+ * highest priority, and among those with the same priority the oldest one. A batch of prompts is a single request,
+ * but {@link AbstractSamJ} decodes it in shards of at most {@link #getShardSize()} prompts and calls
+ * {@link #yieldUntil(BooleanSupplier)} between them, which runs the requests with more priority that are waiting.
+ * While a shard is decoded, {@link #hasPendingAbove(Priority)} is checked before every decoder call and the shard
+ * is cut short if a request with more priority arrived. So an interactive request waits for a single decoder call,
+ * the shards are only split when there are such requests, and the batch keeps its plan of crops and its deduplication.
+ *
+ * @author Carlos Garcia Lopez de Haro
+ */
+public class PriorityScheduler {
+
+	/**
+	 * Priority classes of the requests, from the highest to the lowest
+	 */
+	public enum Priority {
+		/**
+		 * Requests done by the user that wait for the answer, such as a click
+		 */
+		INTERACTIVE,
+		/**
+		 * Long jobs, such as batches of prompts, and the changes of image that they depend on
+		 */
+		BATCH
+	}
+
+	/**
+	 * Default maximum number of prompts of each of the shards of a batch. The shards are cut short when a request
+	 * with more priority arrives, so they can be big and the batch is sent in few calls to Python
+	 */
+	public static final int DEFAULT_SHARD_SIZE = 1024;
+
+	/**
+	 * Time, in milliseconds, between the checks of a batch that waits between two shards
+	 */
+	static final long POLL_MS = 10;
+
+	private final PriorityBlockingQueue<Job<?>> queue = new PriorityBlockingQueue<Job<?>>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Priority of the request that the current thread is running, null if it is not a thread of the scheduler
+	 */
+	private final ThreadLocal<Priority> running = new ThreadLocal<Priority>();
+
+	private volatile Thread dispatcher;
+
+	private volatile int shardSize = DEFAULT_SHARD_SIZE;
+
+	/**
+	 * Set the maximum number of prompts of each shard of a batch. The interactive requests do not wait for the
+	 * end of the shard, so this only limits the prompts sent to Python at once
+	 * @param shardSize
+	 * 	maximum number of prompts decoded in each call to the model, at least 1
+	 */
+	public void setShardSize(int shardSize) {
+		if (shardSize < 1)
+			throw new IllegalArgumentException("The shards should contain at least one prompt.");
+		this.shardSize = shardSize;
+	}
+
+	/**
+	 *
+	 * @return the maximum number of prompts decoded in each call to the model when a batch is processed
+	 */
+	public int getShardSize() {
+		return shardSize;
+	}
+
+	/**
+	 *
+	 * @return the priority of the request that the current thread is running, or null if it is not running
+	 * 	a request of the scheduler
+	 */
+	public Priority getRunningPriority() {
+		return running.get();
+	}
+
+	/**
+	 * Whether a request with more priority than the given one is waiting. It can be called from any thread
+	 * @param priority
+	 * 	the priority compared
+	 * @return true if there is a pending request with more priority
+	 */
+	public boolean hasPendingAbove(Priority priority) {
+		Job<?> job = queue.peek();
+		return job != null && job.priority.compareTo(priority) < 0;
+	}
+
+	/**
+	 * Queue a request
+	 * @param <R>
+	 * 	type of the result
+	 * @param priority
+	 * 	priority of the request
+	 * @param request
+	 * 	the request
+	 * @return the future result of the request
+	 */
+	public <R> Future<R> submit(Priority priority, Callable<R> request) {
+		Job<R> job = new Job<R>(priority, sequence.getAndIncrement(), request);
+		queue.add(job);
+		startDispatcher();
+		return job;
+	}
+
+	/**
+	 * Queue a request and wait for its result. If it is called from a request that is being run, the new
+	 * request is run directly
+	 * @param <R>
+	 * 	type of the result
+	 * @param priority
+	 * 	priority of the request
+	 * @param request
+	 * 	the request
+	 * @return the result of the request
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <R> R run(Priority priority, Callable<R> request) throws IOException, RuntimeException, InterruptedException {
+		if (running.get() != null) {
+			try {
+				return request.call();
+			} catch (IOException | RuntimeException | InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Future<R> future = submit(priority, request);
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Called by a request that is being run to let the requests with more priority run before it continues.
+	 * They are run now, in this thread, and then the request waits, running the new requests with more priority
+	 * that arrive, until the condition is true. If it is not called from a request of the scheduler, it only
+	 * waits for the condition
+	 * @param ready
+	 * 	condition for the request to continue
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void yieldUntil(BooleanSupplier ready) throws InterruptedException {
+		Priority current = running.get();
+		while (true) {
+			if (current != null)
+				runHigherPriority(current);
+			if (ready.getAsBoolean())
+				return;
+			Job<?> job = current == null ? null : queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+			if (job != null && job.priority.compareTo(current) < 0) {
+				runInline(job);
+			} else {
+				if (job != null)
+					queue.add(job);
+				Thread.sleep(POLL_MS);
+			}
+		}
+	}
+
+	private void runHigherPriority(Priority current) {
+		Job<?> job;
+		while ((job = queue.poll()) != null) {
+			if (job.priority.compareTo(current) >= 0) {
+				queue.add(job);
+				return;
+			}
+			runInline(job);
+		}
+	}
+
+	private void runInline(Job<?> job) {
+		Priority previous = running.get();
+		running.set(job.priority);
+		try {
+			job.run();
+		} finally {
+			running.set(previous);
+		}
+	}
+
+	private static RuntimeException unwrap(ExecutionException e) throws IOException, InterruptedException {
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException)
+			throw (IOException) cause;
+		else if (cause instanceof InterruptedException)
+			throw (InterruptedException) cause;
+		else if (cause instanceof RuntimeException)
+			return (RuntimeException) cause;
+		else if (cause instanceof Error)
+			throw (Error) cause;
+		return new RuntimeException(cause);
+	}
+
+	/**
+	 * Cancel the requests that have not started and stop the thread that runs them. The scheduler can
+	 * still be used afterwards, a new thread is started with the next request. If a request was running,
+	 * the old thread finishes it and stops without taking any other
+	 */
+	public synchronized void close() {
+		List<Job<?>> pending = new ArrayList<Job<?>>();
+		queue.drainTo(pending);
+		pending.forEach(jj -> jj.cancel(false));
+		if (dispatcher != null)
+			dispatcher.interrupt();
+		dispatcher = null;
+	}
+
+	private synchronized void startDispatcher() {
+		if (dispatcher != null)
+			return;
+		dispatcher = new Thread(this::dispatch, "samj-priority-scheduler");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Loop of the thread that runs the requests. It stops as soon as it is no longer the dispatcher
+	 * of the scheduler, so there is never more than one thread taking requests
+	 */
+	private void dispatch() {
+		Thread self = Thread.currentThread();
+		while (dispatcher == self) {
+			Job<?> job;
+			try {
+				job = queue.poll(POLL_MS * 10, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (job == null)
+				continue;
+			if (dispatcher != self) {
+				queue.add(job);
+				return;
+			}
+			runInline(job);
+		}
+	}
+
+	/**
+	 * Request queued in the scheduler, ordered by priority and then by arrival
+	 */
+	private static class Job<R> extends FutureTask<R> implements Comparable<Job<?>> {
+
+		private final Priority priority;
+
+		private final long order;
+
+		private Job(Priority priority, long order, Callable<R> request) {
+			super(request);
+			this.priority = priority;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Job<?> other) {
+			int cmp = priority.compareTo(other.priority);
+			return cmp != 0 ? cmp : Long.compare(order, other.order);
+		}
+	}
+}
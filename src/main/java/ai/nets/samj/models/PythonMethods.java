@@ -157,68 +157,123 @@ public class PythonMethods {
 			+ "globals()['encode_rle'] = encode_rle" + System.lineSeparator();
 	
 	
+	/**
+	 * String containing the Python methods used to send all the candidate masks produced by the model for a
+	 * prompt, together with their predicted IoU, in a compact form
+	 */
+	protected static String CANDIDATES_METHOD = ""
+			+ "import base64" + System.lineSeparator()
+			+ "def pack_int32(values):" + System.lineSeparator()
+			+ "    \"\"\"" + System.lineSeparator()
+			+ "    Pack a list of integers as a base64 string of little endian int32, which is much more compact" + System.lineSeparator()
+			+ "    than sending the numbers one by one" + System.lineSeparator()
+			+ "    \"\"\"" + System.lineSeparator()
+			+ "    return base64.b64encode(np.asarray(values, dtype='<i4').tobytes()).decode('ascii')" + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "def send_candidates(task, masks, ious, only_biggest=False, ij_roi_manager=True):" + System.lineSeparator()
+			+ "    \"\"\"" + System.lineSeparator()
+			+ "    Set as outputs of the task all the candidate masks produced by the model for a prompt, sorted by" + System.lineSeparator()
+			+ "    decreasing predicted IoU. The contours and RLE masks of every candidate are packed with pack_int32" + System.lineSeparator()
+			+ "    and 'candidate_n_polygons' contains the number of polygons that belong to each candidate" + System.lineSeparator()
+			+ "    \"\"\"" + System.lineSeparator()
+			+ "    ious = np.asarray(ious).reshape(-1)" + System.lineSeparator()
+			+ "    contours_x = []" + System.lineSeparator()
+			+ "    contours_y = []" + System.lineSeparator()
+			+ "    rles = []" + System.lineSeparator()
+			+ "    n_polygons = []" + System.lineSeparator()
+			+ "    scores = []" + System.lineSeparator()
+			+ "    for i in np.argsort(-ious):" + System.lineSeparator()
+			+ "        mask = (masks[i] > 0).astype('uint8')" + System.lineSeparator()
+			+ "        if ij_roi_manager:" + System.lineSeparator()
+			+ "            mask[1:, 1:] += mask[:-1, :-1]" + System.lineSeparator()
+			+ "        x, y, r = get_polygons_from_binary_mask(mask, only_biggest=False)" + System.lineSeparator()
+			+ "        if only_biggest and len(r) > 1:" + System.lineSeparator()
+			+ "            biggest = np.argmax([sum(rr[1::2]) for rr in r])" + System.lineSeparator()
+			+ "            x, y, r = [x[biggest]], [y[biggest]], [r[biggest]]" + System.lineSeparator()
+			+ "        contours_x += [pack_int32(c) for c in x]" + System.lineSeparator()
+			+ "        contours_y += [pack_int32(c) for c in y]" + System.lineSeparator()
+			+ "        rles += [pack_int32(c) for c in r]" + System.lineSeparator()
+			+ "        n_polygons.append(len(r))" + System.lineSeparator()
+			+ "        scores.append(float(ious[i]))" + System.lineSeparator()
+			+ "    task.outputs['candidate_ious'] = scores" + System.lineSeparator()
+			+ "    task.outputs['candidate_n_polygons'] = n_polygons" + System.lineSeparator()
+			+ "    task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+			+ "    task.outputs['contours_y'] = contours_y" + System.lineSeparator()
+			+ "    task.outputs['rle'] = rles" + System.lineSeparator()
+			+ "globals()['base64'] = base64" + System.lineSeparator()
+			+ "globals()['pack_int32'] = pack_int32" + System.lineSeparator()
+			+ "globals()['send_candidates'] = send_candidates" + System.lineSeparator();
+	
+	/**
+	 * String containing the Python method used to segment everything on the encoded image. It runs a grid
+	 * of point prompts through a model specific method called 'decode_grid_batch', filters the masks obtained
+	 * and removes the overlaps between them
+	 */
 	protected static String SAM_EVERYTHING = ""
-			+ "def calculate_pairs(masks):\n"
-			+ "    added_masks = masks.sum(2)\n"
-			+ "    inds = np.where(added_masks > 1)\n"
-			+ "    pairs = np.zeros((0, 2))\n"
-			+ "    for ii in range(inds.shape[0]):\n"
-			+ "        overlapping = np.where(masks[inds[0][ii], inds[1][ii]])[0]\n"
-			+ "        for i in range(overlapping[0].shape[0]):\n"
-			+ "            for j in range(i + 1, overlapping[0].shape[0]):\n"
-			+ "                pp = np.unique(np.array([overlapping[i], overlapping[j]])).reshape(-1, 2)\n"
-			+ "                matches = np.all(pairs == pp, axis=1)\n"
-			+ "                if not matches.any():\n"
-			+ "                    pairs = np.concatenate((pairs, pp), axis=0)\n"
-			+ "    return pairs\n"
-			+ "\n"
-			+ "def sam_everything(point_list, return_all=False):\n"
-			+ "    masks = np.zeros((input_h, input_w, 0), dtype='uint8')\n"
-			+ "    scores = []\n"
-			+ "    for ii, pp in enumerate(point_list):\n"
-			+ "        input_points = np.array(pp).reshape(1, 2)\n"
-			+ "        input_points = torch.reshape(torch.tensor(input_points), [1, 1, -1, 2])\n"
-			+ "        input_label = np.array([0])\n"
-			+ "        input_label = torch.reshape(torch.tensor(input_label), [1, 1, -1])\n"
-			+ "        predicted_logits, predicted_iou = predictor.predict_masks(predictor.encoded_images,\n"
-			+ "				input_points,\n"
-			+ "				input_label,\n"
-			+ "				multimask_output=True,\n"
-			+ "				input_h=input_h,\n"
-			+ "				input_w=input_w,\n"
-			+ "				output_h=input_h,\n"
-			+ "				output_w=input_w,)\n"
-			+ "        sorted_ids = torch.argsort(predicted_iou, dim=-1, descending=True)\n"
-			+ "        predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)\n"
-			+ "        predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)\n"
-			+ "        mask = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()\n"
-			+ "        if predicted_iou[0] > 1:\n"
-			+ "            masks = np.concatenate((masks, mask.reshape(mask.shape[0], mask.shape[1], 1)), axis=1)\n"
-			+ "            scores.append(predicted_iou[0].cpu().detach().numpy())\n"
-			+ "\n"
-			+ "    # TODO do we support detection of objects within objects?\n"
-			+ "    pairs = calculate_pairs(masks)\n"
-			+ "    while pairs.shape[0] != 0:\n"
-			+ "        pp = pairs[0]\n"
-			+ "        mask_sum = (masks[:, :, pp[0]] + masks[:, :, pp[1]])\n"
-			+ "        union = (mask_sum > 0).sum()\n"
-			+ "        intersec = (mask_sum == 2).sum()\n"
-			+ "        if intersec / union > 0.8:\n"
-			+ "            new_mask = (mask_sum > 0) * 1\n"
-			+ "            masks = np.delete(masks, interest, axis=2)\n"
-			+ "            masks = np.concatenate((masks, new_mask.reshape(masks.shape[0], masks.shape[1], 1)), axis=2)\n"
-			+ "            pairs = calculate_pairs(masks)\n"
-			+ "        elif intersec == masks[:, :, pp[0]].sum() or intersec == masks[:, :, pp[1]].sum():\n"
-			+ "            pairs = np.concatenate((pairs, np.unique(np.array([pp[0], pp[1]])).reshape(-1, 2)), axis=0)\n"
-			+ "        else:\n"
-			+ "            ## TODO run again precition\n"
-			+ "            if score[pp[0]] > score[pp[1]]:\n"
-			+ "                (masks[:, :, pp[1]] = ((masks[:, :, pp[1]] - masks[:, :, pp[0]]) > 0) * 1\n"
-			+ "            else:\n"
-			+ "                (masks[:, :, pp[0]] = ((masks[:, :, pp[0]] - masks[:, :, pp[1]]) > 0) * 1\n"
-			+ "            pairs = calculate_pairs(masks)\n"
-			+ "        added_masks = masks.sum(2)\n"
-			+ "        inds = np.where(added_masks > 1)\n"
-			+ "    label = np.arange(masks.shape[2])\n"
-			+ "    return label.reshape(1, 1, -1) * masks";
+			+ "def sam_everything(task, grid_points, decode_grid_batch, points_per_batch=16, pred_iou_thresh=0.88," + System.lineSeparator()
+			+ "                   stability_thresh=0.92, stability_offset=1.0, overlap_thresh=0.5, only_biggest=True," + System.lineSeparator()
+			+ "                   ij_roi_manager=True, stream=True, contour_message='', n_message=''):" + System.lineSeparator()
+			+ "    \"\"\"" + System.lineSeparator()
+			+ "    Automatic mask generation from a grid of point prompts." + System.lineSeparator()
+			+ "" + System.lineSeparator()
+			+ "    The grid is decoded in batches by decode_grid_batch, which returns the logits of the best mask" + System.lineSeparator()
+			+ "    for each point (BxHxW) and its predicted IoU (B). Masks are filtered by predicted IoU and by" + System.lineSeparator()
+			+ "    stability, and overlaps are removed in linear time keeping a map of the pixels already claimed" + System.lineSeparator()
+			+ "    by previous masks. Points that fall on claimed pixels are not decoded." + System.lineSeparator()
+			+ "    If stream is True the masks of every batch are sent as an update as soon as they are ready." + System.lineSeparator()
+			+ "    If the task is cancelled, the loop stops after the current batch and the masks found so far are returned." + System.lineSeparator()
+			+ "    \"\"\"" + System.lineSeparator()
+			+ "    grid_points = np.array(grid_points, dtype='int64').reshape(-1, 2)" + System.lineSeparator()
+			+ "    n_batches = int(np.ceil(grid_points.shape[0] / points_per_batch))" + System.lineSeparator()
+			+ "    task._respond(ResponseType.UPDATE, {\"outputs\": {'n': str(n_batches)}, \"message\": n_message})" + System.lineSeparator()
+			+ "    claimed = None" + System.lineSeparator()
+			+ "    contours_x = []" + System.lineSeparator()
+			+ "    contours_y = []" + System.lineSeparator()
+			+ "    rles = []" + System.lineSeparator()
+			+ "    for b in range(n_batches):" + System.lineSeparator()
+			+ "        if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+			+ "            break" + System.lineSeparator()
+			+ "        points = grid_points[b * points_per_batch:(b + 1) * points_per_batch]" + System.lineSeparator()
+			+ "        if claimed is not None:" + System.lineSeparator()
+			+ "            points = points[~claimed[points[:, 1], points[:, 0]]]" + System.lineSeparator()
+			+ "        c_x = []" + System.lineSeparator()
+			+ "        c_y = []" + System.lineSeparator()
+			+ "        r_m = []" + System.lineSeparator()
+			+ "        if points.shape[0] > 0:" + System.lineSeparator()
+			+ "            logits, ious = decode_grid_batch(points)" + System.lineSeparator()
+			+ "            if claimed is None:" + System.lineSeparator()
+			+ "                claimed = np.zeros(logits.shape[1:], dtype=bool)" + System.lineSeparator()
+			+ "            stable = (logits > stability_offset).sum(axis=(1, 2))" + System.lineSeparator()
+			+ "            unstable = np.maximum((logits > -stability_offset).sum(axis=(1, 2)), 1)" + System.lineSeparator()
+			+ "            keep = (ious >= pred_iou_thresh) & (stable / unstable >= stability_thresh)" + System.lineSeparator()
+			+ "            for i in np.argsort(-ious):" + System.lineSeparator()
+			+ "                if not keep[i]:" + System.lineSeparator()
+			+ "                    continue" + System.lineSeparator()
+			+ "                mask = logits[i] > 0" + System.lineSeparator()
+			+ "                area = mask.sum()" + System.lineSeparator()
+			+ "                free = mask & ~claimed" + System.lineSeparator()
+			+ "                n_free = free.sum()" + System.lineSeparator()
+			+ "                if n_free == 0 or n_free < (1 - overlap_thresh) * area:" + System.lineSeparator()
+			+ "                    continue" + System.lineSeparator()
+			+ "                claimed |= free" + System.lineSeparator()
+			+ "                free = free.astype('uint8')" + System.lineSeparator()
+			+ "                if ij_roi_manager:" + System.lineSeparator()
+			+ "                    free[1:, 1:] += free[:-1, :-1]" + System.lineSeparator()
+			+ "                x, y, r = get_polygons_from_binary_mask(free, only_biggest=False)" + System.lineSeparator()
+			+ "                if len(r) == 0:" + System.lineSeparator()
+			+ "                    continue" + System.lineSeparator()
+			+ "                if only_biggest:" + System.lineSeparator()
+			+ "                    biggest = np.argmax([sum(rr[1::2]) for rr in r])" + System.lineSeparator()
+			+ "                    x, y, r = [x[biggest]], [y[biggest]], [r[biggest]]" + System.lineSeparator()
+			+ "                c_x += x" + System.lineSeparator()
+			+ "                c_y += y" + System.lineSeparator()
+			+ "                r_m += r" + System.lineSeparator()
+			+ "        if stream:" + System.lineSeparator()
+			+ "            task._respond(ResponseType.UPDATE, {\"outputs\": {'temp_x': c_x, 'temp_y': c_y, 'temp_mask': r_m}, \"message\": contour_message})" + System.lineSeparator()
+			+ "        else:" + System.lineSeparator()
+			+ "            contours_x += c_x" + System.lineSeparator()
+			+ "            contours_y += c_y" + System.lineSeparator()
+			+ "            rles += r_m" + System.lineSeparator()
+			+ "    return contours_x, contours_y, rles" + System.lineSeparator()
+			+ "globals()['sam_everything'] = sam_everything" + System.lineSeparator();
 }
@@ -88,6 +88,8 @@ public class Sam2 extends AbstractSamJ {
 			+ "task.update('created predictor')" + System.lineSeparator()
 			+ "encodings_map = {}" + System.lineSeparator()
 			+ "globals()['encodings_map'] = encodings_map" + System.lineSeparator()
+			+ "refine_states = {}" + System.lineSeparator()
+			+ "globals()['refine_states'] = refine_states" + System.lineSeparator()
 			+ "globals()['shared_memory'] = shared_memory" + System.lineSeparator()
 			+ "globals()['measure'] = measure" + System.lineSeparator()
 			+ "globals()['np'] = np" + System.lineSeparator()
@@ -151,7 +153,8 @@ public class Sam2 extends AbstractSamJ {
 		IMPORTS_FORMATED = String.format(IMPORTS, type, manager.getModelWeigthPath());
 		
 		//printScript(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES, "Edges tracing code");
-		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES);
+		Task task = python.task(IMPORTS_FORMATED + PythonMethods.RLE_METHOD + PythonMethods.TRACE_EDGES
+				+ PythonMethods.CANDIDATES_METHOD + PythonMethods.SAM_EVERYTHING);
 		task.waitFor();
 		if (task.status == TaskStatus.CANCELED)
 			throw new RuntimeException("Task canceled");
@@ -342,6 +345,57 @@ public class Sam2 extends AbstractSamJ {
 		this.script = code;
 	}
 
+	@Override
+	protected void processRefineWithSAM(boolean returnAll) {
+		String code = "" + System.lineSeparator()
+				+ "task.update('start predict')" + System.lineSeparator()
+				+ "if reset_all:" + System.lineSeparator()
+				+ "  refine_states.clear()" + System.lineSeparator()
+				+ "state = None if reset else refine_states.get(object_id)" + System.lineSeparator()
+				+ "if state is None:" + System.lineSeparator()
+				+ "  state = {'points': np.zeros((0, 2), dtype='int64'), 'labels': np.zeros((0,), dtype='int64'), 'logits': None}" + System.lineSeparator()
+				+ "state['points'] = np.concatenate((state['points'], np.array(new_points, dtype='int64').reshape(-1, 2)), axis=0)" + System.lineSeparator()
+				+ "state['labels'] = np.concatenate((state['labels'], np.array(new_labels, dtype='int64').reshape(-1)), axis=0)" + System.lineSeparator()
+				+ "mask, _, low_res = predictor.predict(" + System.lineSeparator()
+				+ "    point_coords=state['points']," + System.lineSeparator()
+				+ "    point_labels=state['labels']," + System.lineSeparator()
+				+ "    mask_input=state['logits']," + System.lineSeparator()
+				+ "    multimask_output=False," + System.lineSeparator()
+				+ "    box=None,)" + System.lineSeparator()
+				+ "state['logits'] = low_res" + System.lineSeparator()
+				+ "refine_states[object_id] = state" + System.lineSeparator()
+				+ "task.update('end predict')" + System.lineSeparator()
+				+ (this.isIJROIManager ? "mask[0, 1:, 1:] += mask[0, :-1, :-1]" : "") + System.lineSeparator()
+				+ "contours_x, contours_y, rle_masks = get_polygons_from_binary_mask(mask[0], only_biggest=" + (!returnAll ? "True" : "False") + ")" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
+				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+		this.script = code;
+	}
+
+	@Override
+	protected void processCandidatesWithSAM(boolean returnAll) {
+		String code = "" + System.lineSeparator()
+				+ "task.update('start predict')" + System.lineSeparator()
+				+ "point_coords = np.concatenate((np.array(input_points).reshape(-1, 2), np.array(input_neg_points).reshape(-1, 2)), axis=0)" + System.lineSeparator()
+				+ "point_labels = np.array([1] * len(input_points) + [0] * len(input_neg_points))" + System.lineSeparator()
+				+ "if point_coords.shape[0] == 0:" + System.lineSeparator()
+				+ "  point_coords = None" + System.lineSeparator()
+				+ "  point_labels = None" + System.lineSeparator()
+				+ "if input_box is not None:" + System.lineSeparator()
+				+ "  input_box = np.array([[input_box[0], input_box[1]], [input_box[2], input_box[3]]])" + System.lineSeparator()
+				+ "masks, ious, _ = predictor.predict(" + System.lineSeparator()
+				+ "    point_coords=point_coords," + System.lineSeparator()
+				+ "    point_labels=point_labels," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    box=input_box,)" + System.lineSeparator()
+				+ "task.update('end predict')" + System.lineSeparator()
+				+ "send_candidates(task, masks, ious, only_biggest=" + (!returnAll ? "True" : "False") 
+				+ ", ij_roi_manager=" + (this.isIJROIManager ? "True" : "False") + ")" + System.lineSeparator();
+		this.script = code;
+	}
+
 	@Override
 	protected void processBoxWithSAM(boolean returnAll) {
 		String code = "" + System.lineSeparator()
@@ -417,9 +471,30 @@ public class Sam2 extends AbstractSamJ {
 	}
 
 	@Override
-	protected void cellSAM(List<int[]> grid, boolean returnAll) {
-		// TODO Auto-generated method stub
-		
+	protected void cellSAM(boolean returnAll) {
+		String code = ""
+				+ "def decode_grid_batch(points):" + System.lineSeparator()
+				+ "  masks, ious, _ = predictor.predict(" + System.lineSeparator()
+				+ "    point_coords=points.reshape(-1, 1, 2)," + System.lineSeparator()
+				+ "    point_labels=np.ones((points.shape[0], 1))," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    return_logits=True," + System.lineSeparator()
+				+ "    box=None,)" + System.lineSeparator()
+				+ "  masks = masks.reshape(points.shape[0], -1, masks.shape[-2], masks.shape[-1])" + System.lineSeparator()
+				+ "  ious = ious.reshape(points.shape[0], -1)" + System.lineSeparator()
+				+ "  best = ious.argmax(axis=1)" + System.lineSeparator()
+				+ "  rows = np.arange(points.shape[0])" + System.lineSeparator()
+				+ "  return masks[rows, best], ious[rows, best]" + System.lineSeparator()
+				+ "" + System.lineSeparator()
+				+ "contours_x, contours_y, rle_masks = sam_everything(task, grid_points, decode_grid_batch," + System.lineSeparator()
+				+ "  points_per_batch=points_per_batch, pred_iou_thresh=pred_iou_thresh, stability_thresh=stability_thresh," + System.lineSeparator()
+				+ "  only_biggest=" + (!returnAll ? "True" : "False") + ", ij_roi_manager=" + (this.isIJROIManager ? "True" : "False") + ", stream=stream," + System.lineSeparator()
+				+ "  contour_message='" + AbstractSamJ.UPDATE_ID_CONTOUR + "', n_message='" + AbstractSamJ.UPDATE_ID_N_CONTOURS + "')" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
+				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
+		this.script = code;
 	}
 
 	@Override
@@ -438,7 +513,7 @@ public class Sam2 extends AbstractSamJ {
 	}
 
 	@Override
-	protected void processPromptsBatchWithSAM(SharedMemoryArray shmArr, boolean returnAll) {
+	protected void processPromptsBatchWithSAM(boolean returnAll) {
 		String code = ""
 				+ "num_threads = 3" + System.lineSeparator()
 				+ "finished_threads = []" + System.lineSeparator()
@@ -461,22 +536,7 @@ public class Sam2 extends AbstractSamJ {
 				+ "        if not future.running() and not future.done():" + System.lineSeparator()
 				+ "            future.cancel()" + System.lineSeparator()
 				+ "" + System.lineSeparator()
-				+ "num_features = 0" + System.lineSeparator();
-		if (shmArr != null) {
-			code += ""
-					+ "shm_mask = shared_memory.SharedMemory(name='" + shmArr.getNameForPython() + "')" + System.lineSeparator()
-					+ "mask_batch = np.ndarray(%s, buffer=shm_mask.buf, dtype='" 
-					+ shmArr.getOriginalDataType() + "').reshape([";
-			long size = 1;
-			for (long l : shmArr.getOriginalShape()) {
-				code += l + ",";
-				size *= l;
-			}
-			code = String.format(code, size);
-			code += "])" + System.lineSeparator();
-			code += "labeled_array, num_features = label(mask_batch)" + System.lineSeparator();
-		}
-		code += ""
+				+ "num_features = len(mask_prompts)" + System.lineSeparator()
 				+ "contours_x = []" + System.lineSeparator()
 				+ "contours_y = []" + System.lineSeparator()
 				+ "rle_masks = []" + System.lineSeparator()
@@ -488,15 +548,11 @@ public class Sam2 extends AbstractSamJ {
 				+ "with ThreadPoolExecutor(max_workers=num_threads) as executor:" + System.lineSeparator()
 				+ "  futures = []" + System.lineSeparator()
 				+ "  n_objects = 0" + System.lineSeparator()
-				+ "  for n_feat in range(1, num_features + 1):" + System.lineSeparator()
-				+ "    extracted_point_prompts = []" + System.lineSeparator()
-				+ "    extracted_point_labels = []" + System.lineSeparator()
-				+ "    inds = np.where(labeled_array == n_feat)" + System.lineSeparator()
-				+ "    n_points = np.min([3, inds[0].shape[0]])" + System.lineSeparator()
-				+ "    random_positions = np.random.choice(inds[0].shape[0], n_points, replace=False)" + System.lineSeparator()
-				+ "    for pp in range(n_points):" + System.lineSeparator()
-				+ "      extracted_point_prompts += [[inds[0][random_positions[pp]], inds[1][random_positions[pp]]]]" + System.lineSeparator()
-				+ "      extracted_point_labels += [1]" + System.lineSeparator()
+				+ "  n_done = 0" + System.lineSeparator()
+				+ "  for extracted_point_prompts in mask_prompts:" + System.lineSeparator()
+				+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+				+ "      break" + System.lineSeparator()
+				+ "    extracted_point_labels = [1] * len(extracted_point_prompts)" + System.lineSeparator()
 				+ "    mask, _, _ = predictor.predict(" + System.lineSeparator()
 				+ "      point_coords=np.array(extracted_point_prompts)," + System.lineSeparator()
 				+ "      point_labels=np.array(extracted_point_labels)," + System.lineSeparator()
@@ -511,9 +567,12 @@ public class Sam2 extends AbstractSamJ {
 				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
 				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
 				+ "    futures.append(future)" + System.lineSeparator()
+				+ "    n_done += 1" + System.lineSeparator()
 				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "  for p_prompt in point_prompts:" + System.lineSeparator()
+				+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+				+ "      break" + System.lineSeparator()
 				+ "    mask, _, _ = predictor.predict(" + System.lineSeparator()
 				+ "      point_coords=np.array(p_prompt).reshape(1, 2)," + System.lineSeparator()
 				+ "      point_labels=np.array([1])," + System.lineSeparator()
@@ -528,10 +587,13 @@ public class Sam2 extends AbstractSamJ {
 				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
 				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
 				+ "    futures.append(future)" + System.lineSeparator()
+				+ "    n_done += 1" + System.lineSeparator()
 				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "  for rect_prompt in rect_prompts:" + System.lineSeparator()
+				+ "    if getattr(task, 'cancel_requested', False):" + System.lineSeparator()
+				+ "      break" + System.lineSeparator()
 				+ "    input_box = np.array([[rect_prompt[0], rect_prompt[1]], [rect_prompt[2], rect_prompt[3]]])" + System.lineSeparator()
 				+ "    mask, _, _ = predictor.predict(" + System.lineSeparator()
 				+ "      point_coords=None," + System.lineSeparator()
@@ -547,6 +609,7 @@ public class Sam2 extends AbstractSamJ {
 				+ "    it_list = list(range(n_objects, n_objects := n_objects + len(r_m)))" + System.lineSeparator()
 				+ "    future = executor.submit(respond_in_thread, task, args, it_list, lock, finished_threads)" + System.lineSeparator()
 				+ "    futures.append(future)" + System.lineSeparator()
+				+ "    n_done += 1" + System.lineSeparator()
 				// TODO + "    task._respond(ResponseType.UPDATE, args)" + System.lineSeparator()
 				+ "" + System.lineSeparator()
 				+ "" + System.lineSeparator()
@@ -563,12 +626,8 @@ public class Sam2 extends AbstractSamJ {
 				+ "task.update('all contours traced')" + System.lineSeparator()
 				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
 				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
-				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator();
-		code += "mask_batch = None" + System.lineSeparator();
-		if (shmArr != null) {
-			code += "shm_mask.close()" + System.lineSeparator();
-			code += "shm_mask.unlink()" + System.lineSeparator();
-		}
+				+ "task.outputs['rle'] = rle_masks" + System.lineSeparator()
+				+ "task.outputs['n_done'] = str(n_done)" + System.lineSeparator();
 		this.script = code;
 	}
 }
@@ -75,6 +75,8 @@ public abstract class ConsumerInterface {
 	 * Generate and display a labeling image in the consumer software.
 	 * Samples within each ROI will have a different integer value,
 	 * numbered from 1.
+	 * For images too big to be kept in memory, the labels can be written
+	 * directly to disk with {@link ai.nets.samj.annotation.TiledLabelExporter}.
 	 */
 	public abstract void exportImageLabeling();
 
@@ -87,6 +89,17 @@ public abstract class ConsumerInterface {
 	public abstract List<Rectangle> getRectRoisOnFocusImage();
 	
 	public abstract void addPolygonsFromGUI(List<Mask> masks);
+
+	/**
+	 * Add many masks produced by a batch at once. The batches of the GUI group their masks in frames of
+	 * about 16 ms, so this method receives big lists. By default it calls {@link #addPolygonsFromGUI(List)},
+	 * override it to insert all the ROIs with a single update of the display of the consumer software
+	 * @param masks
+	 * 	the masks produced during the last frame of the batch
+	 */
+	public void addPolygonsInBulkFromGUI(List<Mask> masks) {
+		addPolygonsFromGUI(masks);
+	}
 	
 	public abstract void activateListeners();
 	